@@ -0,0 +1,140 @@
+package jdtp;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of buffers, grouped into power-of-two size classes, through which messages are read and written without
+ * allocating a new buffer for each one. Buffers larger than the largest size class are allocated on demand and are not
+ * kept once released. The pool can be used from several threads at once.
+ * <p>
+ * The pool counts the buffers that have been acquired and not yet released, so that buffers leaked by a connection can
+ * be detected.
+ */
+class BufferPool {
+    /**
+     * Whether the pool holds direct buffers.
+     */
+    private final boolean direct;
+
+    /**
+     * The released buffers of each size class, ready to be acquired again.
+     */
+    private final Queue<ByteBuffer>[] sizeClasses;
+
+    /**
+     * The number of released buffers held in each size class.
+     */
+    private final AtomicIntegerArray sizeClassCounts;
+
+    /**
+     * The number of buffers that have been acquired and not yet released.
+     */
+    private final AtomicLong outstanding = new AtomicLong();
+
+    /**
+     * Instantiate a buffer pool.
+     *
+     * @param direct Whether to pool direct buffers rather than heap buffers.
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    BufferPool(boolean direct) {
+        int numSizeClasses = sizeClass(Util.maxPooledBufferSize) + 1;
+
+        this.direct = direct;
+        this.sizeClasses = new Queue[numSizeClasses];
+        this.sizeClassCounts = new AtomicIntegerArray(numSizeClasses);
+
+        for (int i = 0; i < numSizeClasses; i++) {
+            sizeClasses[i] = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    /**
+     * Acquire a buffer from the pool. The buffer's capacity may be larger than requested, but its limit is set to the
+     * requested size.
+     *
+     * @param size The number of bytes the buffer must hold.
+     * @return The buffer, with its position at zero.
+     */
+    ByteBuffer acquire(int size) {
+        outstanding.incrementAndGet();
+
+        if (size > Util.maxPooledBufferSize) {
+            return allocate(size);
+        }
+
+        int sizeClass = sizeClass(size);
+        ByteBuffer buffer = sizeClasses[sizeClass].poll();
+
+        if (buffer != null) {
+            sizeClassCounts.decrementAndGet(sizeClass);
+        } else {
+            buffer = allocate(Util.minPooledBufferSize << sizeClass);
+        }
+
+        buffer.clear().limit(size);
+        return buffer;
+    }
+
+    /**
+     * Release a buffer back to the pool. The buffer must have been acquired from this pool, and must not be used once
+     * it has been released.
+     *
+     * @param buffer The buffer.
+     */
+    void release(ByteBuffer buffer) {
+        outstanding.decrementAndGet();
+
+        int capacity = buffer.capacity();
+
+        if (capacity > Util.maxPooledBufferSize || Integer.bitCount(capacity) != 1 ||
+                capacity < Util.minPooledBufferSize) {
+            return;
+        }
+
+        int sizeClass = sizeClass(capacity);
+
+        if (sizeClassCounts.incrementAndGet(sizeClass) <= Util.maxPooledBytesPerSizeClass / capacity) {
+            sizeClasses[sizeClass].add(buffer);
+        } else {
+            sizeClassCounts.decrementAndGet(sizeClass);
+        }
+    }
+
+    /**
+     * Get the number of buffers that have been acquired and not yet released.
+     *
+     * @return The number of outstanding buffers.
+     */
+    long outstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * Allocate a new buffer.
+     *
+     * @param capacity The capacity of the buffer.
+     * @return The buffer.
+     */
+    private ByteBuffer allocate(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Get the size class of buffers able to hold a given number of bytes.
+     *
+     * @param size The number of bytes.
+     * @return The index of the smallest size class whose buffers can hold the bytes.
+     */
+    private static int sizeClass(int size) {
+        if (size <= Util.minPooledBufferSize) {
+            return 0;
+        }
+
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(Util.minPooledBufferSize);
+    }
+}
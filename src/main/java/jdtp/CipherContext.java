@@ -0,0 +1,232 @@
+package jdtp;
+
+import javax.crypto.Cipher;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The AES ciphers used to encrypt and decrypt the messages of a single connection. The ciphers are created once and
+ * reinitialized for each message, which avoids looking up a cipher provider per message. Encryption and decryption can
+ * run at the same time, but each is done by one thread at a time.
+ * <p>
+ * Messages are encrypted with AES-GCM under nonces made up of a prefix, identifying the sending side of the connection,
+ * and a counter, so that no nonce is ever reused with the connection's key. Messages must be decrypted in the order
+ * they were encrypted: a message whose nonce counter is not greater than that of the last message decrypted is
+ * rejected, so that messages cannot be replayed or reordered. Senders must therefore put messages on the wire in the
+ * order they were encrypted.
+ */
+class CipherContext {
+    /**
+     * The AES key.
+     */
+    private final Key key;
+
+    /**
+     * The cipher with which messages are encrypted.
+     */
+    private final Cipher encryptCipher;
+
+    /**
+     * The cipher with which messages are decrypted.
+     */
+    private final Cipher decryptCipher;
+
+    /**
+     * The nonce prefix of messages sent by this side of the connection.
+     */
+    private final int encryptNoncePrefix;
+
+    /**
+     * The nonce prefix of messages sent by the other side of the connection.
+     */
+    private final int decryptNoncePrefix;
+
+    /**
+     * The nonce counter of the next message to be encrypted.
+     */
+    private long encryptNonceCounter = 0;
+
+    /**
+     * The smallest nonce counter, compared as an unsigned number, that the next message to be decrypted may have. This
+     * is guarded by the decryption cipher.
+     */
+    private long decryptNonceCounter = 0;
+
+    /**
+     * Instantiate a cipher context.
+     *
+     * @param key                The AES key.
+     * @param encryptNoncePrefix The nonce prefix of messages sent by this side of the connection.
+     * @param decryptNoncePrefix The nonce prefix of messages sent by the other side of the connection.
+     * @throws GeneralSecurityException If the ciphers cannot be created.
+     */
+    CipherContext(Key key, int encryptNoncePrefix, int decryptNoncePrefix) throws GeneralSecurityException {
+        this.key = key;
+        this.encryptCipher = Crypto.newAESCipher();
+        this.decryptCipher = Crypto.newAESCipher();
+        this.encryptNoncePrefix = encryptNoncePrefix;
+        this.decryptNoncePrefix = decryptNoncePrefix;
+    }
+
+    /**
+     * Encrypt a message.
+     *
+     * @param frameType The frame type of the message.
+     * @param plaintext The buffer holding the message data, which is read from its position up to its limit.
+     * @return The encrypted message.
+     * @throws GeneralSecurityException If the message cannot be encrypted, or if the nonce counter is exhausted.
+     */
+    byte[] encrypt(byte frameType, ByteBuffer plaintext) throws GeneralSecurityException {
+        byte[] ciphertext = new byte[Crypto.aesEncryptedSize(plaintext.remaining())];
+        encrypt(frameType, plaintext, ByteBuffer.wrap(ciphertext));
+
+        return ciphertext;
+    }
+
+    /**
+     * Encrypt a message into a buffer, at the buffer's position.
+     *
+     * @param frameType The frame type of the message.
+     * @param plaintext The buffer holding the message data, which is read from its position up to its limit.
+     * @param output    The buffer to write the encrypted message to.
+     * @throws GeneralSecurityException If the message cannot be encrypted, or if the nonce counter is exhausted.
+     */
+    void encrypt(byte frameType, ByteBuffer plaintext, ByteBuffer output) throws GeneralSecurityException {
+        synchronized (encryptCipher) {
+            if (encryptNonceCounter == -1) {
+                throw new GeneralSecurityException("nonce counter exhausted");
+            }
+
+            byte[] nonce = Crypto.aesNonce(encryptNoncePrefix, encryptNonceCounter++);
+            Crypto.aesEncrypt(encryptCipher, key, nonce, frameType, plaintext, output);
+        }
+    }
+
+    /**
+     * Encrypt a message and encode it, size portion first, into a buffer acquired from a pool.
+     *
+     * @param frameType The frame type of the message.
+     * @param plaintext The buffer holding the message data, which is read from its position up to its limit.
+     * @param pool      The pool to acquire the buffer from.
+     * @return The buffer holding the encoded message, ready to be written. It must be released back to the pool once
+     *         it has been written.
+     * @throws GeneralSecurityException If the message cannot be encrypted, or if the nonce counter is exhausted.
+     */
+    ByteBuffer encryptMessage(byte frameType, ByteBuffer plaintext, BufferPool pool) throws GeneralSecurityException {
+        int encryptedSize = Crypto.aesEncryptedSize(plaintext.remaining());
+        ByteBuffer message = pool.acquire(Util.lenSize + encryptedSize);
+
+        try {
+            Util.encodeMessageSize(encryptedSize, message);
+            encrypt(frameType, plaintext, message);
+        } catch (GeneralSecurityException | RuntimeException e) {
+            pool.release(message);
+            throw e;
+        }
+
+        message.flip();
+        return message;
+    }
+
+    /**
+     * Encrypt several messages and encode them one after another, each size portion first, into buffers acquired from a
+     * pool. As many messages are packed into each buffer as fit in the largest pooled buffer size, and a message too
+     * large to fit alongside others gets a buffer of its own.
+     *
+     * @param frameTypes The frame types of the messages.
+     * @param plaintexts The buffers holding the message data, each of which is read from its position up to its limit.
+     * @param pool       The pool to acquire the buffers from.
+     * @return The buffers holding the encoded messages, in order, ready to be written. They must be released back to
+     *         the pool once they have been written.
+     * @throws GeneralSecurityException If a message cannot be encrypted, or if the nonce counter is exhausted.
+     */
+    List<ByteBuffer> encryptMessages(byte[] frameTypes, ByteBuffer[] plaintexts, BufferPool pool)
+            throws GeneralSecurityException {
+        ArrayList<ByteBuffer> messages = new ArrayList<>();
+
+        try {
+            int start = 0;
+
+            while (start < plaintexts.length) {
+                long size = Util.lenSize + Crypto.aesEncryptedSize(plaintexts[start].remaining());
+                int end = start + 1;
+
+                while (end < plaintexts.length) {
+                    long nextSize = size + Util.lenSize + Crypto.aesEncryptedSize(plaintexts[end].remaining());
+
+                    if (nextSize > Util.maxPooledBufferSize) {
+                        break;
+                    }
+
+                    size = nextSize;
+                    end++;
+                }
+
+                ByteBuffer message = pool.acquire((int) size);
+                messages.add(message);
+
+                for (int i = start; i < end; i++) {
+                    Util.encodeMessageSize(Crypto.aesEncryptedSize(plaintexts[i].remaining()), message);
+                    encrypt(frameTypes[i], plaintexts[i], message);
+                }
+
+                message.flip();
+                start = end;
+            }
+        } catch (GeneralSecurityException | RuntimeException e) {
+            for (ByteBuffer message : messages) {
+                pool.release(message);
+            }
+
+            throw e;
+        }
+
+        return messages;
+    }
+
+    /**
+     * Decrypt a message in place, overwriting the start of the message's buffer with the decrypted data.
+     *
+     * @param ciphertext The encrypted message.
+     * @return The length of the decrypted data.
+     * @throws GeneralSecurityException If the message cannot be decrypted, if it has been tampered with, if it was
+     *                                  not encrypted by the other side of the connection, or if it was encrypted before
+     *                                  a message that has already been decrypted.
+     */
+    int decrypt(byte[] ciphertext) throws GeneralSecurityException {
+        return decrypt(ciphertext, ciphertext.length);
+    }
+
+    /**
+     * Decrypt a message in place that fills only the start of its buffer, overwriting the start of the buffer with the
+     * decrypted data.
+     *
+     * @param ciphertext The buffer holding the encrypted message.
+     * @param length     The length of the encrypted message.
+     * @return The length of the decrypted data.
+     * @throws GeneralSecurityException If the message cannot be decrypted, if it has been tampered with, if it was
+     *                                  not encrypted by the other side of the connection, or if it was encrypted before
+     *                                  a message that has already been decrypted.
+     */
+    int decrypt(byte[] ciphertext, int length) throws GeneralSecurityException {
+        if (length < Crypto.aesEncryptedSize(0) || Crypto.aesNoncePrefix(ciphertext) != decryptNoncePrefix) {
+            throw new GeneralSecurityException("unexpected nonce");
+        }
+
+        long nonceCounter = Crypto.aesNonceCounter(ciphertext);
+
+        synchronized (decryptCipher) {
+            if (Long.compareUnsigned(nonceCounter, decryptNonceCounter) < 0 || nonceCounter == -1) {
+                throw new GeneralSecurityException("unexpected nonce");
+            }
+
+            int decryptedLength = Crypto.aesDecryptInPlace(decryptCipher, key, ciphertext, length);
+            decryptNonceCounter = nonceCounter + 1;
+
+            return decryptedLength;
+        }
+    }
+}
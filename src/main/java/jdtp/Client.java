@@ -1,148 +1,1024 @@
 package jdtp;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.security.Key;
 import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A socket client.
  */
 public abstract class Client {
+    /**
+     * The codec with which data is encoded and decoded.
+     */
+    private final Codec codec;
+
+    /**
+     * The pool of heap buffers that messages received from the server are decoded and decrypted into.
+     */
+    private final BufferPool inboundPool = new BufferPool(false);
+
+    /**
+     * The pool of direct buffers that messages sent to the server are encrypted into.
+     */
+    private final BufferPool outboundPool = new BufferPool(true);
+
+    /**
+     * The ID of the next stream sent to the server.
+     */
+    private final AtomicLong nextStreamID = new AtomicLong();
+
+    /**
+     * The streams being received from the server, by stream ID.
+     */
+    private final Map<Long, StreamInput> streams = new ConcurrentHashMap<>();
+
     /**
      * Whether the client is currently connected to a server.
      */
-    private boolean connected = false;
+    private boolean connected = false;
+
+    /**
+     * The client socket.
+     */
+    private SocketChannel sock = null;
+
+    /**
+     * The ciphers for the client crypto key.
+     */
+    private CipherContext cipherContext = null;
+
+    /**
+     * The compression context, or null if messages to and from the server are not compressed.
+     */
+    private CompressionContext compressionContext = null;
+
+    /**
+     * The ciphers for the server's broadcast key, or null if the server has not sent one. This is only accessed from
+     * the handle thread, once the key exchange has completed.
+     */
+    private CipherContext broadcastCipherContext = null;
+
+    /**
+     * The lock held while writing a message to the server, so that messages sent from different threads are not
+     * interleaved.
+     */
+    private final Object writeLock = new Object();
+
+    /**
+     * The encoded messages held back to be written later, by write combining or by <code>sendAsync</code>, in the order
+     * they were sent. This is guarded by the write lock.
+     */
+    private final ArrayList<OutboundMessage> heldMessages = new ArrayList<>();
+
+    /**
+     * The number of bytes held back to be written later. This is guarded by the write lock.
+     */
+    private long heldBytes = 0;
+
+    /**
+     * Whether a flush of the held back messages has been scheduled. This is guarded by the write lock.
+     */
+    private boolean flushScheduled = false;
+
+    /**
+     * The time at which the scheduled flush runs, as given by <code>System.nanoTime()</code>. This is guarded by the
+     * write lock.
+     */
+    private long scheduledFlushTime = 0;
+
+    /**
+     * Whether messages can no longer be held back, because the connection has closed. This is guarded by the write
+     * lock.
+     */
+    private boolean writesStopped = false;
+
+    /**
+     * The executor on which held back messages are written in the background, or null if none has been needed since
+     * the client connected. This is guarded by the write lock.
+     */
+    private ScheduledExecutorService writer = null;
+
+    /**
+     * The buffer that data received from the server is read into.
+     */
+    private ByteBuffer readBuffer = null;
+
+    /**
+     * The decoder that builds up messages received from the server.
+     */
+    private FrameDecoder decoder = null;
+
+    /**
+     * The thread from which the client will handle data received from the server.
+     */
+    private Thread handleThread = null;
+
+    /**
+     * The executor on which event methods are called, or null to use the default thread pool.
+     */
+    private Executor eventExecutor = null;
+
+    /**
+     * The maximum number of threads in the default event thread pool.
+     */
+    private int eventThreads = Util.defaultEventThreads;
+
+    /**
+     * The maximum number of events waiting to be run on the default event thread pool.
+     */
+    private int eventQueueCapacity = Util.defaultEventQueueCapacity;
+
+    /**
+     * The handler called when the default event thread pool's queue is full.
+     */
+    private RejectedExecutionHandler eventRejectionHandler = new ThreadPoolExecutor.CallerRunsPolicy();
+
+    /**
+     * Whether event methods are called on virtual threads.
+     */
+    private boolean virtualThreads = false;
+
+    /**
+     * Whether events are delivered in order.
+     */
+    private boolean orderedDelivery = false;
+
+    /**
+     * Whether messages are compressed, provided that the other side of the connection agrees.
+     */
+    private boolean compression = false;
+
+    /**
+     * The size, in bytes, from which messages are compressed.
+     */
+    private int compressionThreshold = Util.defaultCompressionThreshold;
+
+    /**
+     * The size, in bytes, of the largest message accepted once the key exchange has completed.
+     */
+    private int maxMessageSize = Util.defaultMaxMessageSize;
+
+    /**
+     * Whether small messages are held back briefly so that they can be written to the server together.
+     */
+    private boolean writeCombining = false;
+
+    /**
+     * The number of bytes held back by write combining, from which they are written at once.
+     */
+    private int writeCombiningThreshold = Util.defaultWriteCombiningThreshold;
+
+    /**
+     * The time, in microseconds, for which write combining holds back a message.
+     */
+    private long writeCombiningDelay = Util.defaultWriteCombiningDelay;
+
+    /**
+     * The dispatcher through which event methods are called.
+     */
+    private EventDispatcher eventDispatcher = null;
+
+    /**
+     * The queue through which events are dispatched.
+     */
+    private Executor eventQueue = null;
+
+    /**
+     * Instantiate a socket client that sends data using Java serialization.
+     */
+    public Client() {
+        this(new JavaSerializationCodec());
+    }
+
+    /**
+     * Instantiate a socket client that sends data using a custom codec.
+     *
+     * @param codec The codec with which data is encoded and decoded.
+     */
+    public Client(Codec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * Set the executor on which event methods are called. By default, events are run on a bounded thread pool owned by
+     * the client, configured through <code>setEventThreads</code>, <code>setEventQueueCapacity</code> and
+     * <code>setEventRejectionHandler</code>.
+     *
+     * @param eventExecutor The event executor, or null to use the default thread pool.
+     * @throws JDTPException If the client is already connected to a server.
+     */
+    public void setEventExecutor(Executor eventExecutor) throws JDTPException {
+        if (connected) {
+            throw new JDTPException("client is already connected to a server");
+        }
+
+        this.eventExecutor = eventExecutor;
+    }
+
+    /**
+     * Set the maximum number of threads in the default event thread pool.
+     *
+     * @param eventThreads The maximum number of event threads.
+     * @throws JDTPException If the client is already connected to a server, or if the number of threads is not
+     *                       positive.
+     */
+    public void setEventThreads(int eventThreads) throws JDTPException {
+        if (connected) {
+            throw new JDTPException("client is already connected to a server");
+        }
+
+        if (eventThreads < 1) {
+            throw new JDTPException("at least one event thread is required");
+        }
+
+        this.eventThreads = eventThreads;
+    }
+
+    /**
+     * Set the maximum number of events that the default event thread pool will hold while all of its threads are busy.
+     *
+     * @param eventQueueCapacity The event queue capacity.
+     * @throws JDTPException If the client is already connected to a server, or if the capacity is not positive.
+     */
+    public void setEventQueueCapacity(int eventQueueCapacity) throws JDTPException {
+        if (connected) {
+            throw new JDTPException("client is already connected to a server");
+        }
+
+        if (eventQueueCapacity < 1) {
+            throw new JDTPException("event queue capacity must be positive");
+        }
+
+        this.eventQueueCapacity = eventQueueCapacity;
+    }
+
+    /**
+     * Set the handler called when an event is dispatched while the default event thread pool's queue is full. Event
+     * methods are never run on the thread reading from the server, so a handler that would run the event on that
+     * thread, like the default, <code>ThreadPoolExecutor.CallerRunsPolicy</code>, instead makes it wait for space in
+     * the queue. This stops the client from reading from the server until the backlog clears. Events rejected by the
+     * handler are dropped.
+     *
+     * @param eventRejectionHandler The event rejection handler.
+     * @throws JDTPException If the client is already connected to a server.
+     */
+    public void setEventRejectionHandler(RejectedExecutionHandler eventRejectionHandler) throws JDTPException {
+        if (connected) {
+            throw new JDTPException("client is already connected to a server");
+        }
+
+        this.eventRejectionHandler = eventRejectionHandler;
+    }
+
+    /**
+     * Set whether event methods are called on virtual threads. Each event is then run on its own virtual thread, which
+     * suits event methods that block, at the cost of there being no limit on the number of events in flight. This
+     * requires Java 21 or later, and is ignored if an event executor has been set.
+     *
+     * @param virtualThreads Whether to call event methods on virtual threads.
+     * @throws JDTPException If the client is already connected to a server, or if virtual threads are not supported
+     *                       by this JVM.
+     */
+    public void setVirtualThreads(boolean virtualThreads) throws JDTPException {
+        if (connected) {
+            throw new JDTPException("client is already connected to a server");
+        }
+
+        if (virtualThreads && !EventDispatcher.virtualThreadsSupported()) {
+            throw new JDTPException("virtual threads are not supported by this JVM");
+        }
+
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Set whether events are delivered in order. When enabled, event methods are called one at a time, in the order
+     * the events occurred. The event rejection handler must then run or reject events, rather than silently discard
+     * them.
+     *
+     * @param orderedDelivery Whether to deliver events in order.
+     * @throws JDTPException If the client is already connected to a server.
+     */
+    public void setOrderedDelivery(boolean orderedDelivery) throws JDTPException {
+        if (connected) {
+            throw new JDTPException("client is already connected to a server");
+        }
+
+        this.orderedDelivery = orderedDelivery;
+    }
+
+    /**
+     * Set whether messages are compressed. Compression is negotiated during the key exchange, and is only used with
+     * a server that enables it as well. Disabled by default.
+     *
+     * @param compression Whether to compress messages.
+     * @throws JDTPException If the client is already connected to a server.
+     */
+    public void setCompression(boolean compression) throws JDTPException {
+        if (connected) {
+            throw new JDTPException("client is already connected to a server");
+        }
+
+        this.compression = compression;
+    }
+
+    /**
+     * Set the size, in bytes, from which messages are compressed when compression is enabled. Smaller messages are sent
+     * as they are, as are messages that do not shrink when compressed.
+     *
+     * @param compressionThreshold The compression threshold.
+     * @throws JDTPException If the client is already connected to a server, or if the threshold is negative.
+     */
+    public void setCompressionThreshold(int compressionThreshold) throws JDTPException {
+        if (connected) {
+            throw new JDTPException("client is already connected to a server");
+        }
+
+        if (compressionThreshold < 0) {
+            throw new JDTPException("compression threshold must not be negative");
+        }
+
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * Set the size, in bytes, of the largest message accepted from the server, as sent over the network after
+     * compression and encryption, which is 16 MiB by default. Compressed messages are held to the same size once
+     * decompressed. Receiving a larger message disconnects from the server, before any memory is set aside for it.
+     * Larger payloads can be sent with <code>sendStream</code>, which splits them into small messages. The first
+     * message of the key exchange, received before the server is authenticated, is limited to a small fixed size
+     * regardless of this setting.
+     *
+     * @param maxMessageSize The maximum message size.
+     * @throws JDTPException If the client is already connected to a server, or if the size is not positive.
+     */
+    public void setMaxMessageSize(int maxMessageSize) throws JDTPException {
+        if (connected) {
+            throw new JDTPException("client is already connected to a server");
+        }
+
+        if (maxMessageSize < 1) {
+            throw new JDTPException("maximum message size must be positive");
+        }
+
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    /**
+     * Set whether small messages are held back briefly, so that messages sent in quick succession are written to the
+     * server together, with fewer writes. Held back messages are written once they add up to the write combining
+     * threshold, once the oldest of them has been held back for the write combining delay, or once <code>flush</code>
+     * is called, whichever comes first. Disabled by default.
+     *
+     * @param writeCombining Whether to combine writes.
+     * @throws JDTPException If the client is already connected to a server.
+     */
+    public void setWriteCombining(boolean writeCombining) throws JDTPException {
+        if (connected) {
+            throw new JDTPException("client is already connected to a server");
+        }
+
+        this.writeCombining = writeCombining;
+    }
+
+    /**
+     * Set the number of bytes, held back by write combining, from which they are written at once.
+     *
+     * @param writeCombiningThreshold The write combining threshold.
+     * @throws JDTPException If the client is already connected to a server, or if the threshold is negative.
+     */
+    public void setWriteCombiningThreshold(int writeCombiningThreshold) throws JDTPException {
+        if (connected) {
+            throw new JDTPException("client is already connected to a server");
+        }
+
+        if (writeCombiningThreshold < 0) {
+            throw new JDTPException("write combining threshold must not be negative");
+        }
+
+        this.writeCombiningThreshold = writeCombiningThreshold;
+    }
+
+    /**
+     * Set the longest time, in microseconds, for which write combining holds back a message.
+     *
+     * @param writeCombiningDelay The write combining delay.
+     * @throws JDTPException If the client is already connected to a server, or if the delay is negative.
+     */
+    public void setWriteCombiningDelay(long writeCombiningDelay) throws JDTPException {
+        if (connected) {
+            throw new JDTPException("client is already connected to a server");
+        }
+
+        if (writeCombiningDelay < 0) {
+            throw new JDTPException("write combining delay must not be negative");
+        }
+
+        this.writeCombiningDelay = writeCombiningDelay;
+    }
+
+    /**
+     * Connect to a server.
+     *
+     * @param host The server host.
+     * @param port The server port.
+     * @throws JDTPException If the client is already connected to a server, or if the client cannot be configured as
+     *                       requested.
+     * @throws IOException   If an error occurs while connecting to the server.
+     */
+    public void connect(String host, int port) throws JDTPException, IOException {
+        if (connected) {
+            throw new JDTPException("client is already connected to a server");
+        }
+
+        eventDispatcher = newEventDispatcher();
+        eventQueue = eventDispatcher.newEventQueue();
+
+        InetSocketAddress address = new InetSocketAddress(host, port);
+
+        sock = SocketChannel.open();
+        sock.connect(address);
+
+        readBuffer = ByteBuffer.allocateDirect(Util.readBufferSize);
+        readBuffer.flip();
+        decoder = new FrameDecoder(inboundPool, Util.maxHandshakeMessageSize);
+
+        connected = true;
+
+        try {
+            exchangeKeys();
+        } catch (ClassNotFoundException e) {
+            abortConnect();
+            throw new JDTPException("invalid key received from server", e);
+        } catch (JDTPException | IOException e) {
+            abortConnect();
+            throw e;
+        }
+
+        synchronized (writeLock) {
+            writesStopped = false;
+        }
+
+        callHandle();
+    }
+
+    /**
+     * Clean up after a connection attempt that failed during the key exchange, so that the client can try to connect
+     * again.
+     */
+    private void abortConnect() {
+        connected = false;
+        decoder.release();
+        eventDispatcher.shutdown();
+
+        try {
+            sock.close();
+        } catch (IOException e) {
+            // Connection attempt already failed, do nothing
+        }
+    }
+
+    /**
+     * Connect to a server, using the default port.
+     *
+     * @param host The server host.
+     * @throws JDTPException If the client is already connected to a server.
+     * @throws IOException   If an error occurs while connecting to the server.
+     */
+    public void connect(String host) throws JDTPException, IOException {
+        connect(host, Util.defaultPort);
+    }
+
+    /**
+     * Connect to a server, using the default host.
+     *
+     * @param port The server port.
+     * @throws JDTPException If the client is already connected to a server.
+     * @throws IOException   If an error occurs while connecting to the server.
+     */
+    public void connect(int port) throws JDTPException, IOException {
+        connect(Util.defaultHost(), port);
+    }
+
+    /**
+     * Connect to a server, using the default host and port.
+     *
+     * @throws JDTPException If the client is already connected to a server.
+     * @throws IOException   If an error occurs while connecting to the server.
+     */
+    public void connect() throws JDTPException, IOException {
+        connect(Util.defaultHost(), Util.defaultPort);
+    }
+
+    /**
+     * Disconnect from the server.
+     *
+     * @throws JDTPException        If the client is not connected to a server.
+     * @throws IOException          If an error occurs while disconnecting from the server.
+     * @throws InterruptedException If an error occurs while waiting for the handle thread to join.
+     */
+    public void disconnect() throws JDTPException, IOException, InterruptedException {
+        if (!connected) {
+            throw new JDTPException("client is not connected to a server");
+        }
+
+        connected = false;
+
+        flushInBackground();
+        sock.close();
+        stopWrites();
+        abortStreams();
+        eventDispatcher.shutdown();
+
+        if (handleThread != null && handleThread != Thread.currentThread()) {
+            handleThread.join();
+        }
+    }
+
+    /**
+     * Send data to the server.
+     *
+     * @param data The data to send.
+     * @throws JDTPException If the client is not connected to a server.
+     * @throws IOException   If an error occurs while sending the data.
+     */
+    public void send(Object data) throws JDTPException, IOException {
+        if (!connected) {
+            throw new JDTPException("client is not connected to a server");
+        }
+
+        byte[] serializedData = codec.encode(data);
+        sendFrame(Util.objectFrame, ByteBuffer.wrap(serializedData));
+    }
+
+    /**
+     * Send several pieces of data to the server at once. Each piece is encoded and encrypted as a message of its own,
+     * and is passed to <code>receive</code> on the server separately, but the messages are packed together into as few
+     * buffers as possible and written with as few writes as possible.
+     *
+     * @param data The pieces of data to send, in order.
+     * @throws JDTPException If the client is not connected to a server.
+     * @throws IOException   If an error occurs while sending the data.
+     */
+    public void sendBatch(Collection<?> data) throws JDTPException, IOException {
+        if (!connected) {
+            throw new JDTPException("client is not connected to a server");
+        }
+
+        byte[] frameTypes = new byte[data.size()];
+        ByteBuffer[] frames = new ByteBuffer[frameTypes.length];
+        int count = 0;
+
+        for (Object item : data) {
+            frameTypes[count] = Util.objectFrame;
+            frames[count] = ByteBuffer.wrap(codec.encode(item));
+            count++;
+        }
+
+        sendFrames(frameTypes, frames);
+    }
+
+    /**
+     * Send raw bytes to the server. The bytes are encrypted and framed as they are, bypassing the codec, and are passed
+     * to <code>receiveBytes</code> on the server.
+     *
+     * @param data The bytes to send.
+     * @throws JDTPException If the client is not connected to a server.
+     * @throws IOException   If an error occurs while sending the bytes.
+     */
+    public void sendBytes(byte[] data) throws JDTPException, IOException {
+        sendBuffer(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Send the bytes remaining in a buffer to the server. The bytes are encrypted and framed as they are, bypassing the
+     * codec, and are passed to <code>receiveBytes</code> on the server. The buffer's position is advanced to its limit.
+     *
+     * @param data The buffer holding the bytes to send.
+     * @throws JDTPException If the client is not connected to a server.
+     * @throws IOException   If an error occurs while sending the bytes.
+     */
+    public void sendBuffer(ByteBuffer data) throws JDTPException, IOException {
+        if (!connected) {
+            throw new JDTPException("client is not connected to a server");
+        }
+
+        sendFrame(Util.bytesFrame, data);
+    }
+
+    /**
+     * Open a stream to the server. Bytes written to the stream are sent in chunks, which are passed to
+     * <code>receiveStream</code> on the server as they arrive, so that data of any size can be sent without holding it
+     * all in memory. The stream must be closed once all of its bytes have been written.
+     *
+     * @return The stream.
+     * @throws JDTPException If the client is not connected to a server.
+     * @throws IOException   If an error occurs while opening the stream.
+     */
+    public OutputStream sendStream() throws JDTPException, IOException {
+        if (!connected) {
+            throw new JDTPException("client is not connected to a server");
+        }
+
+        return new StreamOutput(this::sendFrame, nextStreamID.getAndIncrement());
+    }
+
+    /**
+     * Send a file to the server. The file is memory-mapped and sent as a stream, a chunk at a time, so that files of
+     * any size can be sent without reading them into memory. The file is passed to <code>receiveFile</code> on the
+     * server as it arrives.
+     *
+     * @param path The path of the file to send.
+     * @throws JDTPException If the client is not connected to a server.
+     * @throws IOException   If an error occurs while reading or sending the file.
+     */
+    public void sendFile(Path path) throws JDTPException, IOException {
+        if (!connected) {
+            throw new JDTPException("client is not connected to a server");
+        }
+
+        StreamOutput.sendFile(this::sendFrame, nextStreamID.getAndIncrement(), path);
+    }
+
+    /**
+     * Encrypt a message and send it to the server.
+     *
+     * @param frameType The frame type of the message.
+     * @param data      The buffer holding the message data.
+     * @throws JDTPException If the message cannot be encrypted.
+     * @throws IOException   If an error occurs while sending the message.
+     */
+    private void sendFrame(byte frameType, ByteBuffer data) throws JDTPException, IOException {
+        sendFrame(frameType, data, null);
+    }
 
     /**
-     * The client socket.
+     * Encrypt a message and send it to the server. When a future is given, the message is written in the background,
+     * and the future is completed once it has been written.
+     *
+     * @param frameType  The frame type of the message.
+     * @param data       The buffer holding the message data.
+     * @param completion The future completed once the message has been written, or null to write the message before
+     *                   returning.
+     * @throws JDTPException If the message cannot be encrypted.
+     * @throws IOException   If an error occurs while sending the message.
      */
-    private SocketChannel sock = null;
+    private void sendFrame(byte frameType, ByteBuffer data, CompletableFuture<Void> completion)
+            throws JDTPException, IOException {
+        if (compressionContext != null && data.remaining() >= compressionThreshold) {
+            ByteBuffer compressedData = compressionContext.compress(data, outboundPool);
+
+            if (compressedData != null) {
+                frameType |= Util.compressedFrameFlag;
+                data = compressedData;
+            }
+        }
+
+        byte encryptedFrameType = frameType;
+        ByteBuffer encryptedData = data;
+
+        writeMessages(() -> {
+            try {
+                return List.of(new OutboundMessage(cipherContext.encryptMessage(encryptedFrameType, encryptedData,
+                        outboundPool), completion));
+            } catch (Exception e) {
+                throw new JDTPException("encryption error", e);
+            } finally {
+                if ((encryptedFrameType & Util.compressedFrameFlag) != 0) {
+                    outboundPool.release(encryptedData);
+                }
+            }
+        }, completion != null);
+    }
 
     /**
-     * The client crypto key.
+     * Encrypt several messages into as few buffers as possible, and write them to the server together.
+     *
+     * @param frameTypes The frame types of the messages.
+     * @param frames     The buffers holding the message data.
+     * @throws JDTPException If the messages cannot be encrypted.
+     * @throws IOException   If an error occurs while writing the messages.
      */
-    private Key key;
+    private void sendFrames(byte[] frameTypes, ByteBuffer[] frames) throws JDTPException, IOException {
+        if (compressionContext != null) {
+            for (int i = 0; i < frames.length; i++) {
+                if (frames[i].remaining() >= compressionThreshold) {
+                    ByteBuffer compressedData = compressionContext.compress(frames[i], outboundPool);
+
+                    if (compressedData != null) {
+                        frameTypes[i] |= Util.compressedFrameFlag;
+                        frames[i] = compressedData;
+                    }
+                }
+            }
+        }
+
+        writeMessages(() -> {
+            List<ByteBuffer> messages;
+
+            try {
+                messages = cipherContext.encryptMessages(frameTypes, frames, outboundPool);
+            } catch (Exception e) {
+                throw new JDTPException("encryption error", e);
+            } finally {
+                releaseCompressedFrames(frameTypes, frames);
+            }
+
+            ArrayList<OutboundMessage> outboundMessages = new ArrayList<>(messages.size());
+
+            for (ByteBuffer message : messages) {
+                outboundMessages.add(new OutboundMessage(message));
+            }
+
+            return outboundMessages;
+        }, false);
+    }
 
     /**
-     * The thread from which the client will handle data received from the server.
+     * Release the buffers of the messages that were compressed before being encrypted.
+     *
+     * @param frameTypes The frame types of the messages.
+     * @param frames     The buffers holding the message data.
      */
-    private Thread handleThread = null;
+    private void releaseCompressedFrames(byte[] frameTypes, ByteBuffer[] frames) {
+        for (int i = 0; i < frames.length; i++) {
+            if ((frameTypes[i] & Util.compressedFrameFlag) != 0) {
+                outboundPool.release(frames[i]);
+            }
+        }
+    }
 
     /**
-     * Instantiate a socket client.
+     * Encrypts messages to be written to the server.
      */
-    public Client() {
+    private interface MessageEncrypter {
+        /**
+         * Encrypt the messages.
+         *
+         * @return The encoded messages.
+         * @throws JDTPException If the messages cannot be encrypted.
+         */
+        List<OutboundMessage> encrypt() throws JDTPException;
     }
 
     /**
-     * Connect to a server.
+     * Encrypt messages and write them to the server, after any messages held back before them, releasing their buffers
+     * back to the pool once they have been written. The messages are encrypted while holding the write lock, so that
+     * they reach the server in the order of their nonce counters. Messages written in the background are held back and
+     * written on the writer thread, and when write combining is enabled, all messages are held back until enough bytes
+     * have been held back, or until the write combining delay is up.
      *
-     * @param host The server host.
-     * @param port The server port.
-     * @throws JDTPException If the client is already connected to a server.
-     * @throws IOException   If an error occurs while connecting to the server.
+     * @param encrypter  Encrypts the messages.
+     * @param background Whether to write the messages in the background, rather than before returning.
+     * @throws JDTPException If the messages cannot be encrypted.
+     * @throws IOException   If an error occurs while writing messages that are not written in the background.
      */
-    public void connect(String host, int port) throws JDTPException, IOException {
-        if (connected) {
-            throw new JDTPException("client is already connected to a server");
+    private void writeMessages(MessageEncrypter encrypter, boolean background) throws JDTPException, IOException {
+        ArrayList<OutboundMessage> done = new ArrayList<>();
+        Exception failure = null;
+
+        synchronized (writeLock) {
+            List<OutboundMessage> messages = encrypter.encrypt();
+
+            if (background && writesStopped) {
+                done.addAll(messages);
+                failure = new JDTPException("client is not connected to a server");
+            } else {
+                for (OutboundMessage message : messages) {
+                    heldMessages.add(message);
+                    heldBytes += message.size();
+                }
+
+                boolean full = !writeCombining || heldBytes >= writeCombiningThreshold;
+
+                if (writesStopped || (full && !background)) {
+                    failure = flushHeld(done);
+                } else {
+                    scheduleFlush(full ? 0 : writeCombiningDelay);
+                }
+            }
         }
 
-        InetSocketAddress address = new InetSocketAddress(host, port);
+        finishWrites(done, failure);
 
-        sock = SocketChannel.open();
-        sock.connect(address);
+        if (!background && failure instanceof IOException) {
+            throw (IOException) failure;
+        }
+    }
 
-        connected = true;
+    /**
+     * Send data to the server without waiting for it to be written. The data is encoded and encrypted on the calling
+     * thread, then written in the background, after any data sent before it. The returned future is completed once the
+     * data has been fully written to the socket, or failed if the connection closes first. Errors in sending the data,
+     * such as the client not being connected, fail the future rather than being thrown. Dependent actions that do not
+     * specify an executor may run on the client's writer thread, so they must not block.
+     *
+     * @param data The data to send.
+     * @return The future completed once the data has been written.
+     */
+    public CompletableFuture<Void> sendAsync(Object data) {
+        if (!connected) {
+            return CompletableFuture.failedFuture(new JDTPException("client is not connected to a server"));
+        }
+
+        CompletableFuture<Void> completion = new CompletableFuture<>();
 
         try {
-            exchangeKeys();
-        } catch (ClassNotFoundException e) {
-            throw new JDTPException("invalid key received from server", e);
+            byte[] serializedData = codec.encode(data);
+            sendFrame(Util.objectFrame, ByteBuffer.wrap(serializedData), completion);
+        } catch (JDTPException | IOException e) {
+            completion.completeExceptionally(e);
         }
 
-        callHandle();
+        return completion;
     }
 
     /**
-     * Connect to a server, using the default port.
+     * Write the messages held back by write combining or by <code>sendAsync</code> without waiting for them to be
+     * written in the background.
      *
-     * @param host The server host.
-     * @throws JDTPException If the client is already connected to a server.
-     * @throws IOException   If an error occurs while connecting to the server.
+     * @throws JDTPException If the client is not connected to a server.
+     * @throws IOException   If an error occurs while writing the messages.
      */
-    public void connect(String host) throws JDTPException, IOException {
-        connect(host, Util.defaultPort);
+    public void flush() throws JDTPException, IOException {
+        if (!connected) {
+            throw new JDTPException("client is not connected to a server");
+        }
+
+        ArrayList<OutboundMessage> done = new ArrayList<>();
+        IOException failure;
+
+        synchronized (writeLock) {
+            failure = flushHeld(done);
+        }
+
+        finishWrites(done, failure);
+
+        if (failure != null) {
+            throw failure;
+        }
     }
 
     /**
-     * Connect to a server, using the default host.
-     *
-     * @param port The server port.
-     * @throws JDTPException If the client is already connected to a server.
-     * @throws IOException   If an error occurs while connecting to the server.
+     * Write the held back messages. This is run on the writer thread once a scheduled flush is due.
      */
-    public void connect(int port) throws JDTPException, IOException {
-        connect(Util.defaultHost(), port);
+    private void flushInBackground() {
+        ArrayList<OutboundMessage> done = new ArrayList<>();
+        IOException failure;
+
+        synchronized (writeLock) {
+            flushScheduled = false;
+            failure = flushHeld(done);
+        }
+
+        finishWrites(done, failure);
     }
 
     /**
-     * Connect to a server, using the default host and port.
+     * Schedule a flush of the held back messages on the writer thread, unless one is already scheduled to run no later.
+     * This must be called while holding the write lock.
      *
-     * @throws JDTPException If the client is already connected to a server.
-     * @throws IOException   If an error occurs while connecting to the server.
+     * @param delay The time, in microseconds, after which to flush the messages.
      */
-    public void connect() throws JDTPException, IOException {
-        connect(Util.defaultHost(), Util.defaultPort);
+    private void scheduleFlush(long delay) {
+        long flushTime = System.nanoTime() + delay * 1000;
+
+        if (flushScheduled && flushTime - scheduledFlushTime >= 0) {
+            return;
+        }
+
+        if (writer == null) {
+            writer = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        writer.schedule(this::flushInBackground, delay, TimeUnit.MICROSECONDS);
+        flushScheduled = true;
+        scheduledFlushTime = flushTime;
     }
 
     /**
-     * Disconnect from the server.
+     * Write the held back messages to the server with gathering writes. The messages are added to a list, so that they
+     * can be finished once the write lock has been released. This must be called while holding the write lock.
      *
-     * @throws JDTPException        If the client is not connected to a server.
-     * @throws IOException          If an error occurs while disconnecting from the server.
-     * @throws InterruptedException If an error occurs while waiting for the handle thread to join.
+     * @param done The list to add the messages to.
+     * @return The error that occurred while writing the messages, or null if they were written.
      */
-    public void disconnect() throws JDTPException, IOException, InterruptedException {
-        if (!connected) {
-            throw new JDTPException("client is not connected to a server");
+    private IOException flushHeld(List<OutboundMessage> done) {
+        if (heldMessages.isEmpty()) {
+            return null;
         }
 
-        connected = false;
+        ByteBuffer[] gatherBuffers = new ByteBuffer[heldMessages.size()];
 
-        sock.close();
+        for (int i = 0; i < gatherBuffers.length; i++) {
+            gatherBuffers[i] = heldMessages.get(i).buffer;
+        }
 
-        if (handleThread != null && handleThread != Thread.currentThread()) {
-            handleThread.join();
+        done.addAll(heldMessages);
+        heldMessages.clear();
+        heldBytes = 0;
+
+        try {
+            ByteBuffer last = gatherBuffers[gatherBuffers.length - 1];
+
+            while (last.hasRemaining()) {
+                sock.write(gatherBuffers);
+            }
+        } catch (IOException e) {
+            return e;
         }
+
+        return null;
     }
 
     /**
-     * Send data to the server.
+     * Release the buffers of messages that have been written or dropped back to the pool, and complete their futures.
+     * This is called without holding the write lock, so that dependent actions of the futures can send messages.
      *
-     * @param data The data to send.
-     * @throws JDTPException If the client is not connected to a server.
-     * @throws IOException   If an error occurs while sending the data.
+     * @param done    The messages.
+     * @param failure The reason the messages were not written, or null if they were written.
      */
-    public void send(Object data) throws JDTPException, IOException {
-        if (!connected) {
-            throw new JDTPException("client is not connected to a server");
+    private void finishWrites(List<OutboundMessage> done, Exception failure) {
+        for (OutboundMessage message : done) {
+            if (failure == null) {
+                message.written(outboundPool);
+            } else {
+                message.dropped(outboundPool, failure);
+            }
+        }
+    }
+
+    /**
+     * Stop holding back messages once the connection has closed, dropping any messages still held back and stopping
+     * the writer thread.
+     */
+    private void stopWrites() {
+        ArrayList<OutboundMessage> done;
+
+        synchronized (writeLock) {
+            writesStopped = true;
+            done = new ArrayList<>(heldMessages);
+            heldMessages.clear();
+            heldBytes = 0;
+            flushScheduled = false;
+
+            if (writer != null) {
+                writer.shutdownNow();
+                writer = null;
+            }
         }
 
-        byte[] serializedData = Util.serialize(data);
-        byte[] encryptedData;
+        finishWrites(done, new JDTPException("client disconnected"));
+    }
 
-        try {
-            encryptedData = Crypto.aesEncrypt(key, serializedData);
-        } catch (Exception e) {
-            throw new JDTPException("encryption error", e);
+    /**
+     * Write an encoded message to the server.
+     *
+     * @param message The buffer holding the encoded message.
+     * @throws IOException If an error occurs while writing the message.
+     */
+    private void writeMessage(ByteBuffer message) throws IOException {
+        synchronized (writeLock) {
+            while (message.hasRemaining()) {
+                sock.write(message);
+            }
         }
+    }
 
-        byte[] encodedData = Util.encodeMessage(encryptedData);
-        ByteBuffer encodedDataBuffer = ByteBuffer.wrap(encodedData);
-        sock.write(encodedDataBuffer);
+    /**
+     * Get the number of pooled buffers that are in use, for detecting buffers that have leaked once the client has
+     * disconnected.
+     *
+     * @return The number of buffers acquired from the client's pools and not yet released.
+     */
+    long outstandingBuffers() {
+        return inboundPool.outstanding() + outboundPool.outstanding();
     }
 
     /**
@@ -218,6 +1094,22 @@ public abstract class Client {
         return address.getPort();
     }
 
+    /**
+     * Create the dispatcher through which event methods will be called.
+     *
+     * @return The event dispatcher.
+     * @throws JDTPException If virtual threads are used but are not supported by this JVM.
+     */
+    private EventDispatcher newEventDispatcher() throws JDTPException {
+        if (eventExecutor != null) {
+            return new EventDispatcher(eventExecutor, orderedDelivery);
+        } else if (virtualThreads) {
+            return new EventDispatcher(orderedDelivery);
+        } else {
+            return new EventDispatcher(eventThreads, eventQueueCapacity, eventRejectionHandler, orderedDelivery);
+        }
+    }
+
     /**
      * Call the handle method.
      */
@@ -238,67 +1130,93 @@ public abstract class Client {
      * @throws IOException If an error occurs while handling data received from the server.
      */
     private void handle() throws IOException {
-        ByteBuffer sizeBuffer = ByteBuffer.allocate(Util.lenSize);
-
-        while (connected) {
-            sizeBuffer.clear();
-
-            int bytesReceived;
-
-            try {
-                bytesReceived = sock.read(sizeBuffer);
-            } catch (IOException e) {
-                break;
-            }
-
-            if (bytesReceived != Util.lenSize) {
-                break;
-            }
+        try {
+            while (connected) {
+                ByteBuffer frame;
 
-            long messageSize = Util.decodeMessageSize(sizeBuffer.array());
-            ByteBuffer messageBuffer = ByteBuffer.allocate((int) messageSize);
+                try {
+                    frame = readFrame();
+                } catch (IOException | JDTPException e) {
+                    break;
+                }
 
-            try {
-                bytesReceived = sock.read(messageBuffer);
-            } catch (IOException e) {
-                break;
-            }
+                if (frame == null) {
+                    break;
+                }
 
-            if (bytesReceived != messageSize) {
-                break;
+                try {
+                    callReceive(frame);
+                } catch (JDTPException e) {
+                    break;
+                }
             }
-
-            callReceive(messageBuffer.array());
+        } finally {
+            decoder.release();
+            abortStreams();
         }
 
         if (connected) {
             connected = false;
             sock.close();
+            stopWrites();
 
             callDisconnected();
+            eventDispatcher.shutdown();
+        }
+    }
+
+    /**
+     * Read the next message from the server, reading from the socket only when no complete message is already
+     * buffered.
+     *
+     * @return The message data, or null if the server closed the connection.
+     * @throws JDTPException If the message cannot be decoded.
+     * @throws IOException   If an error occurs while reading from the socket.
+     */
+    private ByteBuffer readFrame() throws JDTPException, IOException {
+        while (!decoder.decode(readBuffer)) {
+            readBuffer.clear();
+            int bytesReceived = sock.read(readBuffer);
+            readBuffer.flip();
+
+            if (bytesReceived < 0) {
+                return null;
+            }
         }
+
+        return decoder.frame();
     }
 
     /**
-     * Exchange crypto keys with the server.
+     * Exchange crypto keys with the server. Each side precedes its part of the exchange with a byte of flags announcing
+     * its settings, from which the use of compression is negotiated, and with the fingerprint of its codec, which must
+     * be the same on both sides.
+     *
+     * @throws JDTPException          If the key exchange fails, or if the server's codec differs from the client's.
+     * @throws IOException            If an error occurs while communicating with the server.
+     * @throws ClassNotFoundException If the server's public key cannot be deserialized.
      */
     private void exchangeKeys() throws JDTPException, IOException, ClassNotFoundException {
-        ByteBuffer sizeBuffer = ByteBuffer.allocate(Util.lenSize);
-        int bytesReceived = sock.read(sizeBuffer);
+        ByteBuffer serverHelloFrame = readFrame();
 
-        if (bytesReceived != Util.lenSize) {
-            throw new JDTPException("invalid number of bytes received");
+        if (serverHelloFrame == null) {
+            throw new JDTPException("connection closed during key exchange");
         }
 
-        long messageSize = Util.decodeMessageSize(sizeBuffer.array());
-        ByteBuffer messageBuffer = ByteBuffer.allocate((int) messageSize);
-        bytesReceived = sock.read(messageBuffer);
+        byte[] serverHello = new byte[serverHelloFrame.remaining()];
+        serverHelloFrame.get(serverHello);
+        inboundPool.release(serverHelloFrame);
+        decoder.setMaxMessageSize(maxMessageSize);
+
+        if (serverHello.length < Util.helloHeaderSize) {
+            throw new JDTPException("invalid key exchange message");
+        }
 
-        if (bytesReceived != messageSize) {
-            throw new JDTPException("invalid number of bytes received");
+        if (ByteBuffer.wrap(serverHello).getLong(1) != codec.fingerprint()) {
+            throw new JDTPException("server codec does not match client codec");
         }
 
-        byte[] publicKeySerialized = messageBuffer.array();
+        byte[] publicKeySerialized = Arrays.copyOfRange(serverHello, Util.helloHeaderSize, serverHello.length);
         PublicKey publicKey = (PublicKey) Util.deserialize(publicKeySerialized);
 
         Key newKey;
@@ -318,42 +1236,207 @@ public abstract class Client {
             throw new JDTPException("key encryption failed", e);
         }
 
-        byte[] keyEncoded = Util.encodeMessage(keyEncrypted);
-        sock.write(ByteBuffer.wrap(keyEncoded));
+        byte[] clientHello = new byte[Util.helloHeaderSize + keyEncrypted.length];
+        clientHello[0] = compression ? Util.compressionHelloFlag : 0;
+        ByteBuffer.wrap(clientHello).putLong(1, codec.fingerprint());
+        System.arraycopy(keyEncrypted, 0, clientHello, Util.helloHeaderSize, keyEncrypted.length);
+        writeMessage(ByteBuffer.wrap(Util.encodeMessage(clientHello)));
+
+        try {
+            cipherContext = new CipherContext(newKey, Util.clientNoncePrefix, Util.serverNoncePrefix);
+            broadcastCipherContext = null;
+        } catch (Exception e) {
+            throw new JDTPException("cipher creation error", e);
+        }
 
-        key = newKey;
+        if (compression && (serverHello[0] & Util.compressionHelloFlag) != 0) {
+            compressionContext = new CompressionContext();
+        } else {
+            compressionContext = null;
+        }
     }
 
     /**
-     * Call the receive event method.
+     * Call the receive event method. The message's buffer is released back to the pool once the message has been
+     * handled. Messages broadcast by the server under its broadcast key are decrypted with that key.
      *
-     * @param data The data received from the server.
+     * @param frame The pooled buffer holding the message received from the server.
+     * @throws JDTPException If the data cannot be decrypted or deserialized, if its frame type is unknown, or if it is
+     *                       an invalid stream message.
      */
-    private void callReceive(byte[] data) {
-        byte[] decryptedData;
+    private void callReceive(ByteBuffer frame) throws JDTPException {
+        boolean frameRetained = false;
 
         try {
-            decryptedData = Crypto.aesDecrypt(key, data);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+            byte[] data = frame.array();
+            boolean broadcast = broadcastCipherContext != null && frame.limit() >= 4 &&
+                    Crypto.aesNoncePrefix(data) == Util.broadcastNoncePrefix;
+            int decryptedLength;
+
+            try {
+                if (broadcast) {
+                    decryptedLength = broadcastCipherContext.decrypt(data, frame.limit());
+                } else {
+                    decryptedLength = cipherContext.decrypt(data, frame.limit());
+                }
+            } catch (Exception e) {
+                throw new JDTPException("decryption error", e);
+            }
+
+            if (decryptedLength == 0) {
+                throw new JDTPException("unknown frame type");
+            }
+
+            byte frameType = data[0];
+            byte[] payload = data;
+            int offset = 1;
+            int length = decryptedLength - 1;
+
+            if ((frameType & Util.compressedFrameFlag) != 0) {
+                if (compressionContext == null) {
+                    throw new JDTPException("compression was not negotiated");
+                }
+
+                try {
+                    payload = compressionContext.decompress(data, offset, length, maxMessageSize);
+                } catch (Exception e) {
+                    throw new JDTPException("decompression error", e);
+                }
+
+                frameType &= ~Util.compressedFrameFlag;
+                offset = 0;
+                length = payload.length;
+            }
+
+            if (frameType == Util.streamOpenFrame || frameType == Util.streamDataFrame ||
+                    frameType == Util.streamCloseFrame || frameType == Util.fileOpenFrame) {
+                receiveStreamFrame(frameType, payload, offset, length);
+                return;
+            }
+
+            if (frameType == Util.broadcastKeyFrame && !broadcast) {
+                try {
+                    Key broadcastKey = (Key) Util.deserialize(Arrays.copyOfRange(payload, offset, offset + length));
+                    broadcastCipherContext = new CipherContext(broadcastKey, Util.broadcastNoncePrefix,
+                            Util.broadcastNoncePrefix);
+                } catch (Exception e) {
+                    throw new JDTPException("invalid broadcast key", e);
+                }
+
+                return;
+            }
+
+            if (frameType == Util.bytesFrame) {
+                ByteBuffer bytes = ByteBuffer.wrap(payload, offset, length).slice();
+                frameRetained = eventDispatcher.dispatch(eventQueue, () -> {
+                    try {
+                        receiveBytes(bytes);
+                    } finally {
+                        inboundPool.release(frame);
+                    }
+                });
+                return;
+            }
+
+            if (frameType != Util.objectFrame) {
+                throw new JDTPException("unknown frame type");
+            }
+
+            Object deserializedData;
+
+            try {
+                deserializedData = codec.decode(payload, offset, length);
+            } catch (Exception e) {
+                throw new JDTPException("deserialization error", e);
+            }
+
+            eventDispatcher.dispatch(eventQueue, () -> receive(deserializedData));
+        } finally {
+            if (!frameRetained) {
+                inboundPool.release(frame);
+            }
         }
+    }
 
-        Object deserializedData;
+    /**
+     * Handle a message opening, continuing or closing a stream from the server. Opening a stream calls the receive
+     * stream or receive file event method, and each chunk is handed to the stream's reader as it arrives. While a
+     * stream's reader falls behind, the server is not read from.
+     *
+     * @param frameType The frame type of the message.
+     * @param data      The buffer holding the message data.
+     * @param offset    The position in the buffer at which the message data starts.
+     * @param length    The length of the message data.
+     * @throws JDTPException If the message is malformed, or if it refers to a stream that is not open.
+     */
+    private void receiveStreamFrame(byte frameType, byte[] data, int offset, int length) throws JDTPException {
+        if (length < Util.streamIDSize) {
+            throw new JDTPException("invalid stream message");
+        }
 
-        try {
-            deserializedData = Util.deserialize(decryptedData);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+        long streamID = ByteBuffer.wrap(data, offset, Util.streamIDSize).getLong();
+
+        if (frameType == Util.streamOpenFrame || frameType == Util.fileOpenFrame) {
+            StreamInput stream = new StreamInput(null);
+            Runnable event;
+
+            if (frameType == Util.fileOpenFrame) {
+                if (length < Util.streamIDSize + 8) {
+                    throw new JDTPException("invalid stream message");
+                }
+
+                long size = ByteBuffer.wrap(data, offset + Util.streamIDSize, 8).getLong();
+                String fileName = new String(data, offset + Util.streamIDSize + 8, length - Util.streamIDSize - 8,
+                        StandardCharsets.UTF_8);
+                event = () -> receiveFile(fileName, size, stream);
+            } else {
+                event = () -> receiveStream(stream);
+            }
+
+            if (streams.putIfAbsent(streamID, stream) != null) {
+                throw new JDTPException("stream is already open");
+            }
+
+            if (!eventDispatcher.dispatchStream(eventQueue, event)) {
+                stream.close();
+            }
+
+            return;
+        }
+
+        StreamInput stream = frameType == Util.streamCloseFrame ? streams.remove(streamID) : streams.get(streamID);
+
+        if (stream == null) {
+            throw new JDTPException("stream is not open");
+        }
+
+        if (frameType == Util.streamCloseFrame) {
+            stream.finish();
+        } else if (stream.offer(Arrays.copyOfRange(data, offset + Util.streamIDSize, offset + length))) {
+            try {
+                stream.awaitDrained();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Cut short the streams being received from the server, once the connection has been lost.
+     */
+    private void abortStreams() {
+        for (StreamInput stream : streams.values()) {
+            stream.abort();
         }
 
-        new Thread(() -> receive(deserializedData)).start();
+        streams.clear();
     }
 
     /**
      * Call the disconnected event method.
      */
     private void callDisconnected() {
-        new Thread(() -> disconnected()).start();
+        eventDispatcher.dispatch(eventQueue, this::disconnected);
     }
 
     /**
@@ -363,6 +1446,60 @@ public abstract class Client {
      */
     protected abstract void receive(Object data);
 
+    /**
+     * An event method, called when raw bytes sent with <code>sendBytes</code> or <code>sendBuffer</code> are received
+     * from the server. By default, the bytes are copied into a <code>byte[]</code> and passed to <code>receive</code>.
+     * The buffer is reused once this returns, so any bytes that are needed afterwards must be copied out of it.
+     *
+     * @param data The buffer holding the bytes received from the server.
+     */
+    protected void receiveBytes(ByteBuffer data) {
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        receive(bytes);
+    }
+
+    /**
+     * An event method, called when the server opens a stream with <code>sendStream</code>. The stream's bytes can be
+     * read as they arrive, and the server stops being read from while the reader falls behind, so the method should
+     * read the stream to its end or close it. By default, the whole stream is read into a <code>byte[]</code> and
+     * passed to <code>receive</code>. If the connection is lost before the server closes the stream, reading from it
+     * fails.
+     *
+     * @param data The stream.
+     */
+    protected void receiveStream(InputStream data) {
+        byte[] bytes;
+
+        try (InputStream stream = data) {
+            bytes = stream.readAllBytes();
+        } catch (IOException e) {
+            return;
+        }
+
+        receive(bytes);
+    }
+
+    /**
+     * An event method, called when the server sends a file with <code>sendFile</code>. The file's contents are read
+     * from the stream as they arrive, just as with <code>receiveStream</code>. To write them straight to a file or
+     * channel, pass the stream to <code>Files.copy</code>, or call <code>transferTo</code> on it. By default, the
+     * file's contents are read and discarded as they arrive, so that a file of any size is received without being held
+     * in memory, and the method must be overridden to keep the file.
+     *
+     * @param fileName The name of the file, without its directory, as given by the server. It should be checked before
+     *                 being used to build a path.
+     * @param size     The size of the file, in bytes.
+     * @param data     The stream of the file's contents.
+     */
+    protected void receiveFile(String fileName, long size, InputStream data) {
+        try (InputStream stream = data) {
+            stream.transferTo(OutputStream.nullOutputStream());
+        } catch (IOException e) {
+            // Connection lost before the file was fully received, do nothing
+        }
+    }
+
     /**
      * An event method, called when the server has disconnected the client.
      */
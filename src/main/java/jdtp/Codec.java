@@ -0,0 +1,40 @@
+package jdtp;
+
+import java.io.IOException;
+
+/**
+ * Converts the objects sent between servers and clients to and from bytes. Both sides of a connection must use
+ * compatible codecs. A codec may be called from several threads at once, so it must be thread-safe.
+ */
+public interface Codec {
+    /**
+     * Encode an object as bytes.
+     *
+     * @param data The object to encode.
+     * @return The encoded object.
+     * @throws IOException If the object cannot be encoded.
+     */
+    byte[] encode(Object data) throws IOException;
+
+    /**
+     * Decode an object from bytes.
+     *
+     * @param data   The buffer holding the encoded object.
+     * @param offset The position in the buffer at which the encoded object starts.
+     * @param length The length of the encoded object.
+     * @return The decoded object.
+     * @throws IOException If the object cannot be decoded.
+     */
+    Object decode(byte[] data, int offset, int length) throws IOException;
+
+    /**
+     * Get a fingerprint of the codec's configuration. The fingerprints of both sides of a connection are compared
+     * during the key exchange, and the connection is refused if they differ, so a codec whose encoding depends on its
+     * configuration should return a fingerprint that changes along with it.
+     *
+     * @return The fingerprint.
+     */
+    default long fingerprint() {
+        return 0;
+    }
+}
@@ -0,0 +1,124 @@
+package jdtp;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The deflater and inflater used to compress and decompress the messages of a single connection. Both are created once
+ * and reset after each message. Compression and decompression can run at the same time, but each is done by one thread
+ * at a time.
+ * <p>
+ * A compressed message holds the length of the original data as a 4-byte integer, followed by the deflated data.
+ */
+class CompressionContext {
+    /**
+     * The deflater with which messages are compressed.
+     */
+    private final Deflater deflater = new Deflater(Util.compressionLevel);
+
+    /**
+     * The inflater with which messages are decompressed.
+     */
+    private final Inflater inflater = new Inflater();
+
+    /**
+     * Instantiate a compression context.
+     */
+    CompressionContext() {
+    }
+
+    /**
+     * Compress a message. If the message does not shrink when compressed, it is left as it is.
+     *
+     * @param data The buffer holding the message data, which is read from its position up to its limit.
+     * @param pool The pool that the buffer holding the compressed message is acquired from.
+     * @return A buffer holding the compressed message, which must be released back to the pool once it has been
+     * encrypted, or null if the message is not worth compressing, in which case the position of the data buffer is left
+     * unchanged.
+     */
+    ByteBuffer compress(ByteBuffer data, BufferPool pool) {
+        int position = data.position();
+        int length = data.remaining();
+        ByteBuffer compressed = pool.acquire(4 + length);
+        compressed.putInt(length);
+
+        synchronized (deflater) {
+            try {
+                deflater.setInput(data);
+                deflater.finish();
+
+                while (!deflater.finished() && compressed.hasRemaining()) {
+                    deflater.deflate(compressed);
+                }
+
+                if (!deflater.finished()) {
+                    data.position(position);
+                    pool.release(compressed);
+                    return null;
+                }
+            } finally {
+                deflater.reset();
+            }
+        }
+
+        return compressed.flip();
+    }
+
+    /**
+     * Decompress a message.
+     *
+     * @param data      The buffer holding the compressed message.
+     * @param offset    The position in the buffer at which the compressed message starts.
+     * @param length    The length of the compressed message.
+     * @param maxLength The largest length of the decompressed message that will be accepted.
+     * @return The decompressed message data.
+     * @throws DataFormatException If the compressed message is invalid, if its declared length is larger than the
+     *                             largest length accepted, or if it does not inflate to exactly its declared length.
+     */
+    byte[] decompress(byte[] data, int offset, int length, int maxLength) throws DataFormatException {
+        ByteBuffer input = ByteBuffer.wrap(data, offset, length);
+
+        if (input.remaining() < 4) {
+            throw new DataFormatException("message is too short");
+        }
+
+        int originalLength = input.getInt();
+
+        if (originalLength < 0) {
+            throw new DataFormatException("invalid message length");
+        }
+
+        if (originalLength > maxLength) {
+            throw new DataFormatException("message is too large");
+        }
+
+        byte[] original = new byte[originalLength];
+        int inflated = 0;
+
+        synchronized (inflater) {
+            try {
+                inflater.setInput(input);
+
+                while (inflated < originalLength) {
+                    int count = inflater.inflate(original, inflated, originalLength - inflated);
+
+                    if (count == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new DataFormatException("message is shorter than its length");
+                    }
+
+                    inflated += count;
+                }
+
+                if (inflater.inflate(new byte[1]) != 0 || !inflater.finished()) {
+                    throw new DataFormatException("message is longer than its length");
+                }
+            } finally {
+                inflater.reset();
+            }
+        }
+
+        return original;
+    }
+}
@@ -0,0 +1,154 @@
+package jdtp;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.security.PrivateKey;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The state associated with a single client connection.
+ */
+class Connection {
+    /**
+     * The ID of the client.
+     */
+    final long id;
+
+    /**
+     * The client socket.
+     */
+    final SocketChannel sock;
+
+    /**
+     * The I/O loop serving the client.
+     */
+    final Server.IOLoop ioLoop;
+
+    /**
+     * The queue through which the client's events are dispatched.
+     */
+    final Executor eventQueue;
+
+    /**
+     * The selection key the client socket is registered with.
+     */
+    SelectionKey selectionKey = null;
+
+    /**
+     * The ciphers for the client crypto key, or null if the key exchange has not completed.
+     */
+    CipherContext cipherContext = null;
+
+    /**
+     * The compression context, or null if messages to and from the client are not compressed.
+     */
+    CompressionContext compressionContext = null;
+
+    /**
+     * The private half of the key pair generated for the key exchange.
+     */
+    PrivateKey privateKey = null;
+
+    /**
+     * Whether the message carrying the client crypto key has been received.
+     */
+    boolean keyReceived = false;
+
+    /**
+     * The time by which the key exchange must complete, as given by <code>System.nanoTime()</code>.
+     */
+    long handshakeDeadline = 0;
+
+    /**
+     * Messages received from the client before the key exchange completed.
+     */
+    final ArrayList<ByteBuffer> pendingFrames = new ArrayList<>();
+
+    /**
+     * The decoder that builds up messages received from the client.
+     */
+    final FrameDecoder decoder;
+
+    /**
+     * The lock held while a message is encrypted for the client and queued, so that messages are queued in the order of
+     * their nonce counters.
+     */
+    final Object sendLock = new Object();
+
+    /**
+     * The encoded messages waiting to be written to the client, in the order they were sent.
+     */
+    final Queue<OutboundMessage> outbound = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The messages taken from the outbound queue that have not yet been fully written. This is only accessed from the
+     * client's I/O loop.
+     */
+    final ArrayDeque<OutboundMessage> writing = new ArrayDeque<>();
+
+    /**
+     * The number of bytes queued to be written to the client and not yet fully written.
+     */
+    final AtomicLong queuedBytes = new AtomicLong();
+
+    /**
+     * The number of bytes queued since the client's I/O loop was last asked to write them, when write combining holds
+     * them back. This is guarded by the connection's lock.
+     */
+    long unflushedBytes = 0;
+
+    /**
+     * Whether a flush of the bytes held back by write combining has been scheduled. This is guarded by the
+     * connection's lock.
+     */
+    boolean flushScheduled = false;
+
+    /**
+     * The streams being received from the client, by stream ID. This is only accessed from the client's I/O loop.
+     */
+    final HashMap<Long, StreamInput> streams = new HashMap<>();
+
+    /**
+     * The number of streams that have asked for the client to stop being read from until their readers catch up. This
+     * is only accessed from the client's I/O loop.
+     */
+    int pausedStreams = 0;
+
+    /**
+     * The topics the client is subscribed to. Subscriptions are only added while holding the connection's lock, and
+     * before its buffers have been released.
+     */
+    final Set<String> topics = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Whether the connection's pooled buffers have been released, after which no more messages may be queued. This is
+     * guarded by the connection's lock.
+     */
+    boolean buffersReleased = false;
+
+    /**
+     * Instantiate the state of a client connection.
+     *
+     * @param id          The ID of the client.
+     * @param sock        The client socket.
+     * @param ioLoop      The I/O loop serving the client.
+     * @param eventQueue  The queue through which the client's events are dispatched.
+     * @param inboundPool The pool that buffers for messages received from the client are acquired from.
+     */
+    Connection(long id, SocketChannel sock, Server.IOLoop ioLoop, Executor eventQueue, BufferPool inboundPool) {
+        this.id = id;
+        this.sock = sock;
+        this.ioLoop = ioLoop;
+        this.eventQueue = eventQueue;
+        this.decoder = new FrameDecoder(inboundPool, Util.maxHandshakeMessageSize);
+    }
+}
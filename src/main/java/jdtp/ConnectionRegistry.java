@@ -0,0 +1,196 @@
+package jdtp;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A thread-safe registry of client connections, keyed by client ID. Lookups and iteration are lock-free, while
+ * insertions and removals are serialized. Client IDs are stored as primitives, so that no access requires boxing.
+ */
+class ConnectionRegistry {
+    /**
+     * The initial number of slots in the table. Must be a power of two.
+     */
+    private static final int initialCapacity = 16;
+
+    /**
+     * The marker left in a slot whose connection has been removed, so that lookups continue past it.
+     */
+    private static final Object tombstone = new Object();
+
+    /**
+     * The open-addressing table of connections, probed linearly. Its length is always a power of two, and at most half
+     * of its slots are ever in use, so that every probe sequence reaches an empty slot.
+     */
+    private volatile AtomicReferenceArray<Object> table = new AtomicReferenceArray<>(initialCapacity);
+
+    /**
+     * The number of connections in the table.
+     */
+    private int size = 0;
+
+    /**
+     * The number of slots in the table that are not empty, including those holding tombstones.
+     */
+    private int used = 0;
+
+    /**
+     * A visitor called for each connection in the registry.
+     */
+    interface Visitor {
+        /**
+         * Visit a connection.
+         *
+         * @param client The client connection.
+         * @throws JDTPException If an error occurs while visiting the connection.
+         * @throws IOException   If an I/O error occurs while visiting the connection.
+         */
+        void visit(Connection client) throws JDTPException, IOException;
+    }
+
+    /**
+     * Instantiate an empty connection registry.
+     */
+    ConnectionRegistry() {
+    }
+
+    /**
+     * Get the connection to a client.
+     *
+     * @param id The ID of the client.
+     * @return The client connection, or null if there is none.
+     */
+    Connection get(long id) {
+        AtomicReferenceArray<Object> table = this.table;
+        int mask = table.length() - 1;
+
+        for (int i = index(id, mask); ; i = (i + 1) & mask) {
+            Object entry = table.get(i);
+
+            if (entry == null) {
+                return null;
+            }
+
+            if (entry != tombstone && ((Connection) entry).id == id) {
+                return (Connection) entry;
+            }
+        }
+    }
+
+    /**
+     * Add a connection. No connection with the same client ID may already be registered.
+     *
+     * @param client The client connection.
+     */
+    synchronized void put(Connection client) {
+        if ((used + 1) * 2 > table.length()) {
+            rehash();
+        }
+
+        AtomicReferenceArray<Object> table = this.table;
+        int mask = table.length() - 1;
+        int i = index(client.id, mask);
+
+        while (table.get(i) != null && table.get(i) != tombstone) {
+            i = (i + 1) & mask;
+        }
+
+        if (table.get(i) == null) {
+            used++;
+        }
+
+        table.set(i, client);
+        size++;
+    }
+
+    /**
+     * Remove the connection to a client.
+     *
+     * @param id The ID of the client.
+     * @return The connection that was removed, or null if there was none.
+     */
+    synchronized Connection remove(long id) {
+        AtomicReferenceArray<Object> table = this.table;
+        int mask = table.length() - 1;
+
+        for (int i = index(id, mask); ; i = (i + 1) & mask) {
+            Object entry = table.get(i);
+
+            if (entry == null) {
+                return null;
+            }
+
+            if (entry != tombstone && ((Connection) entry).id == id) {
+                table.set(i, tombstone);
+                size--;
+                return (Connection) entry;
+            }
+        }
+    }
+
+    /**
+     * Call a visitor for each connection. The iteration is weakly consistent: it sees every connection that was
+     * registered before it started and not removed before it finished, and may or may not see concurrent changes.
+     * Connections may be removed from within the visitor.
+     *
+     * @param visitor The visitor.
+     * @throws JDTPException If the visitor throws, in which case the iteration stops.
+     * @throws IOException   If the visitor throws, in which case the iteration stops.
+     */
+    void forEach(Visitor visitor) throws JDTPException, IOException {
+        AtomicReferenceArray<Object> table = this.table;
+
+        for (int i = 0; i < table.length(); i++) {
+            Object entry = table.get(i);
+
+            if (entry != null && entry != tombstone) {
+                visitor.visit((Connection) entry);
+            }
+        }
+    }
+
+    /**
+     * Move the connections into a new table sized for the current number of connections, dropping tombstones. The new
+     * table is only published once it is complete, so lookups running against the old table are unaffected.
+     */
+    private void rehash() {
+        AtomicReferenceArray<Object> oldTable = table;
+        int capacity = initialCapacity;
+
+        while (capacity < (size + 1) * 4) {
+            capacity <<= 1;
+        }
+
+        AtomicReferenceArray<Object> newTable = new AtomicReferenceArray<>(capacity);
+        int mask = capacity - 1;
+
+        for (int i = 0; i < oldTable.length(); i++) {
+            Object entry = oldTable.get(i);
+
+            if (entry != null && entry != tombstone) {
+                int j = index(((Connection) entry).id, mask);
+
+                while (newTable.get(j) != null) {
+                    j = (j + 1) & mask;
+                }
+
+                newTable.set(j, entry);
+            }
+        }
+
+        used = size;
+        table = newTable;
+    }
+
+    /**
+     * Get the slot at which the probe sequence for a client ID starts. Client IDs are sequential, so they are spread
+     * across the table with a multiplicative hash.
+     *
+     * @param id   The ID of the client.
+     * @param mask The table length minus one.
+     * @return The index of the first slot to probe.
+     */
+    private static int index(long id, int mask) {
+        return (int) ((id * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+    }
+}
@@ -1,9 +1,9 @@
 package jdtp;
 
 import javax.crypto.*;
-import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.GCMParameterSpec;
+import java.nio.ByteBuffer;
 import java.security.*;
-import java.util.Arrays;
 
 /**
  * Crypto utilities.
@@ -32,7 +32,12 @@ class Crypto {
     /**
      * The AES nonce size.
      */
-    private static final int aesNonceSize = 16;
+    private static final int aesNonceSize = 12;
+
+    /**
+     * The AES authentication tag size.
+     */
+    private static final int aesTagSize = 16;
 
     /**
      * The AES key generation algorithm.
@@ -42,7 +47,12 @@ class Crypto {
     /**
      * The AES cipher algorithm.
      */
-    private static final String aesCipherAlgorithm = "AES/CBC/PKCS5Padding";
+    private static final String aesCipherAlgorithm = "AES/GCM/NoPadding";
+
+    /**
+     * The source of AES nonces, shared because seeding a new source is expensive.
+     */
+    private static final SecureRandom secureRandom = new SecureRandom();
 
     /**
      * Generate a pair of RSA keys.
@@ -109,59 +119,207 @@ class Crypto {
     }
 
     /**
-     * Encrypt data with AES.
+     * Encrypt data with AES, using a random nonce.
      *
      * @param key       The AES key.
      * @param plaintext The data to encrypt.
-     * @return The encrypted data.
+     * @return The encrypted data, prefixed with the nonce.
      * @throws NoSuchAlgorithmException           When the cipher algorithm is invalid.
      * @throws NoSuchPaddingException             When the cipher padding parameter is invalid.
      * @throws InvalidKeyException                When the AES key is invalid.
      * @throws InvalidAlgorithmParameterException When the data cannot be encrypted by the cipher algorithm.
      * @throws IllegalBlockSizeException          When the block size is invalid.
      * @throws BadPaddingException                When the padding is invalid.
+     * @throws ShortBufferException               When the encrypted data does not fit in its buffer.
      */
     public static byte[] aesEncrypt(Key key, byte[] plaintext)
             throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
-            InvalidAlgorithmParameterException, IllegalBlockSizeException, BadPaddingException {
-        byte[] nonceBytes = new byte[aesNonceSize];
-        SecureRandom secureRandom = new SecureRandom();
-        secureRandom.nextBytes(nonceBytes);
-        IvParameterSpec nonce = new IvParameterSpec(nonceBytes);
+            InvalidAlgorithmParameterException, IllegalBlockSizeException, BadPaddingException, ShortBufferException {
+        byte[] nonce = new byte[aesNonceSize];
+        secureRandom.nextBytes(nonce);
+
+        Cipher cipher = newAESCipher();
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(aesTagSize * 8, nonce));
+
+        byte[] ciphertextWithNonce = new byte[aesNonceSize + cipher.getOutputSize(plaintext.length)];
+        System.arraycopy(nonce, 0, ciphertextWithNonce, 0, aesNonceSize);
+        cipher.doFinal(plaintext, 0, plaintext.length, ciphertextWithNonce, aesNonceSize);
+
+        return ciphertextWithNonce;
+    }
+
+    /**
+     * Create an AES cipher, to be initialized for each message it encrypts or decrypts.
+     *
+     * @return The AES cipher.
+     * @throws NoSuchAlgorithmException When the cipher algorithm is invalid.
+     * @throws NoSuchPaddingException   When the cipher padding parameter is invalid.
+     */
+    public static Cipher newAESCipher() throws NoSuchAlgorithmException, NoSuchPaddingException {
+        return Cipher.getInstance(aesCipherAlgorithm);
+    }
 
-        Cipher cipher = Cipher.getInstance(aesCipherAlgorithm);
-        cipher.init(Cipher.ENCRYPT_MODE, key, nonce);
-        byte[] ciphertext = cipher.doFinal(plaintext);
+    /**
+     * Create an AES nonce from a prefix, which distinguishes the parties using the same key, and a counter, which must
+     * never be reused with the same prefix and key.
+     *
+     * @param prefix  The nonce prefix.
+     * @param counter The nonce counter.
+     * @return The nonce.
+     */
+    public static byte[] aesNonce(int prefix, long counter) {
+        return ByteBuffer.allocate(aesNonceSize).putInt(prefix).putLong(counter).array();
+    }
+
+    /**
+     * Get the prefix of the nonce a message was encrypted with.
+     *
+     * @param ciphertextWithNonce The encrypted message.
+     * @return The nonce prefix.
+     */
+    public static int aesNoncePrefix(byte[] ciphertextWithNonce) {
+        return ByteBuffer.wrap(ciphertextWithNonce).getInt(0);
+    }
+
+    /**
+     * Get the counter of the nonce a message was encrypted with.
+     *
+     * @param ciphertextWithNonce The encrypted message.
+     * @return The nonce counter.
+     */
+    public static long aesNonceCounter(byte[] ciphertextWithNonce) {
+        return ByteBuffer.wrap(ciphertextWithNonce).getLong(4);
+    }
+
+    /**
+     * Get the size of a message once encrypted with AES, including its nonce and frame type.
+     *
+     * @param plaintextLength The length of the message data.
+     * @return The size of the encrypted message.
+     */
+    public static int aesEncryptedSize(int plaintextLength) {
+        return aesNonceSize + 1 + plaintextLength + aesTagSize;
+    }
 
-        byte[] ciphertextWithNonce = new byte[nonceBytes.length + ciphertext.length];
-        System.arraycopy(nonceBytes, 0, ciphertextWithNonce, 0, nonceBytes.length);
-        System.arraycopy(ciphertext, 0, ciphertextWithNonce, nonceBytes.length, ciphertext.length);
+    /**
+     * Encrypt a message with AES, prefixing the data with the message's frame type. The data is read directly from the
+     * buffer, from its position up to its limit, leaving the position at the limit, and is encrypted straight into the
+     * returned array.
+     *
+     * @param cipher    The AES cipher to encrypt with, as created by <code>newAESCipher</code>.
+     * @param key       The AES key.
+     * @param nonce     The nonce, as created by <code>aesNonce</code>.
+     * @param frameType The frame type of the message.
+     * @param plaintext The data to encrypt.
+     * @return The encrypted message, prefixed with the nonce.
+     * @throws InvalidKeyException                When the AES key is invalid.
+     * @throws InvalidAlgorithmParameterException When the nonce has just been used with the same key.
+     * @throws IllegalBlockSizeException          When the block size is invalid.
+     * @throws BadPaddingException                When the padding is invalid.
+     * @throws ShortBufferException               When the encrypted message does not fit in its buffer.
+     */
+    public static byte[] aesEncrypt(Cipher cipher, Key key, byte[] nonce, byte frameType, ByteBuffer plaintext)
+            throws InvalidKeyException, InvalidAlgorithmParameterException, IllegalBlockSizeException,
+            BadPaddingException, ShortBufferException {
+        byte[] ciphertextWithNonce = new byte[aesEncryptedSize(plaintext.remaining())];
+        aesEncrypt(cipher, key, nonce, frameType, plaintext, ByteBuffer.wrap(ciphertextWithNonce));
 
         return ciphertextWithNonce;
     }
 
+    /**
+     * Encrypt a message with AES into a buffer, prefixing the data with the message's frame type. The nonce and the
+     * encrypted message are written at the output buffer's position, which must leave room for
+     * <code>aesEncryptedSize</code> bytes.
+     *
+     * @param cipher    The AES cipher to encrypt with, as created by <code>newAESCipher</code>.
+     * @param key       The AES key.
+     * @param nonce     The nonce, as created by <code>aesNonce</code>.
+     * @param frameType The frame type of the message.
+     * @param plaintext The data to encrypt.
+     * @param output    The buffer to write the encrypted message to.
+     * @throws InvalidKeyException                When the AES key is invalid.
+     * @throws InvalidAlgorithmParameterException When the nonce has just been used with the same key.
+     * @throws IllegalBlockSizeException          When the block size is invalid.
+     * @throws BadPaddingException                When the padding is invalid.
+     * @throws ShortBufferException               When the encrypted message does not fit in the output buffer.
+     */
+    public static void aesEncrypt(Cipher cipher, Key key, byte[] nonce, byte frameType, ByteBuffer plaintext,
+                                  ByteBuffer output)
+            throws InvalidKeyException, InvalidAlgorithmParameterException, IllegalBlockSizeException,
+            BadPaddingException, ShortBufferException {
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(aesTagSize * 8, nonce));
+
+        output.put(nonce);
+        cipher.update(ByteBuffer.wrap(new byte[]{frameType}), output);
+        cipher.doFinal(plaintext, output);
+    }
+
     /**
      * Decrypt data with AES.
      *
      * @param key                 The AES key.
-     * @param ciphertextWithNonce The data to decrypt.
+     * @param ciphertextWithNonce The data to decrypt, prefixed with its nonce.
      * @return The decrypted data.
      * @throws NoSuchAlgorithmException           When the cipher algorithm is invalid.
      * @throws NoSuchPaddingException             When the cipher padding parameter is invalid.
      * @throws InvalidKeyException                When the AES key is invalid.
      * @throws InvalidAlgorithmParameterException When the data cannot be decrypted by the cipher algorithm.
      * @throws IllegalBlockSizeException          When the block size is invalid.
-     * @throws BadPaddingException                When the padding is invalid.
+     * @throws BadPaddingException                When the data has been tampered with.
      */
     public static byte[] aesDecrypt(Key key, byte[] ciphertextWithNonce)
             throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
             InvalidAlgorithmParameterException, IllegalBlockSizeException, BadPaddingException {
-        byte[] nonceBytes = Arrays.copyOfRange(ciphertextWithNonce, 0, aesNonceSize);
-        IvParameterSpec nonce = new IvParameterSpec(nonceBytes);
-        byte[] ciphertext = Arrays.copyOfRange(ciphertextWithNonce, aesNonceSize, ciphertextWithNonce.length);
+        Cipher cipher = newAESCipher();
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(aesTagSize * 8, ciphertextWithNonce, 0,
+                aesNonceSize));
+        return cipher.doFinal(ciphertextWithNonce, aesNonceSize, ciphertextWithNonce.length - aesNonceSize);
+    }
 
-        Cipher cipher = Cipher.getInstance(aesCipherAlgorithm);
-        cipher.init(Cipher.DECRYPT_MODE, key, nonce);
-        return cipher.doFinal(ciphertext);
+    /**
+     * Decrypt a message with AES in place, overwriting the start of the message's buffer with the decrypted data.
+     *
+     * @param cipher              The AES cipher to decrypt with, as created by <code>newAESCipher</code>.
+     * @param key                 The AES key.
+     * @param ciphertextWithNonce The message to decrypt, prefixed with its nonce.
+     * @return The length of the decrypted data.
+     * @throws InvalidKeyException                When the AES key is invalid.
+     * @throws InvalidAlgorithmParameterException When the message cannot be decrypted by the cipher algorithm.
+     * @throws IllegalBlockSizeException          When the message is too short.
+     * @throws BadPaddingException                When the message has been tampered with.
+     * @throws ShortBufferException               When the decrypted data does not fit in the message's buffer.
+     */
+    public static int aesDecryptInPlace(Cipher cipher, Key key, byte[] ciphertextWithNonce)
+            throws InvalidKeyException, InvalidAlgorithmParameterException, IllegalBlockSizeException,
+            BadPaddingException, ShortBufferException {
+        return aesDecryptInPlace(cipher, key, ciphertextWithNonce, ciphertextWithNonce.length);
+    }
+
+    /**
+     * Decrypt a message with AES in place, overwriting the start of the message's buffer with the decrypted data. The
+     * message fills only the start of its buffer, which may be larger.
+     *
+     * @param cipher              The AES cipher to decrypt with, as created by <code>newAESCipher</code>.
+     * @param key                 The AES key.
+     * @param ciphertextWithNonce The buffer holding the message to decrypt, prefixed with its nonce.
+     * @param length              The length of the message, including its nonce.
+     * @return The length of the decrypted data.
+     * @throws InvalidKeyException                When the AES key is invalid.
+     * @throws InvalidAlgorithmParameterException When the message cannot be decrypted by the cipher algorithm.
+     * @throws IllegalBlockSizeException          When the message is too short.
+     * @throws BadPaddingException                When the message has been tampered with.
+     * @throws ShortBufferException               When the decrypted data does not fit in the message's buffer.
+     */
+    public static int aesDecryptInPlace(Cipher cipher, Key key, byte[] ciphertextWithNonce, int length)
+            throws InvalidKeyException, InvalidAlgorithmParameterException, IllegalBlockSizeException,
+            BadPaddingException, ShortBufferException {
+        if (length < aesNonceSize + aesTagSize) {
+            throw new IllegalBlockSizeException("message is too short");
+        }
+
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(aesTagSize * 8, ciphertextWithNonce, 0,
+                aesNonceSize));
+        return cipher.doFinal(ciphertextWithNonce, aesNonceSize, length - aesNonceSize, ciphertextWithNonce, 0);
     }
 }
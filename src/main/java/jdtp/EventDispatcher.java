@@ -0,0 +1,301 @@
+package jdtp;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+
+/**
+ * Delivers event method calls to an executor. Exceptions thrown by event methods are reported to the uncaught
+ * exception handler of the thread that ran them, rather than being allowed to stop the thread.
+ */
+class EventDispatcher {
+    /**
+     * The executor on which events are run.
+     */
+    private final Executor executor;
+
+    /**
+     * The executor on which events are run, if it was created by the dispatcher and should be shut down with it.
+     */
+    private final ExecutorService ownedExecutor;
+
+    /**
+     * Whether the events from each source are run one at a time, in order.
+     */
+    private final boolean ordered;
+
+    /**
+     * The method that creates an executor running each task on a new virtual thread, or null if virtual threads are not
+     * supported by this JVM.
+     */
+    private static final Method newVirtualThreadExecutor = findVirtualThreadExecutorFactory();
+
+    /**
+     * The task that the current thread is asking the rejection handler to deal with, or null if it is not calling the
+     * rejection handler.
+     */
+    private static final ThreadLocal<PooledTask> rejectedTask = new ThreadLocal<>();
+
+    /**
+     * Set on a thread while it dispatches a stream event, which must not wait for space in the queue.
+     */
+    private static final ThreadLocal<Boolean> dispatchingStream = new ThreadLocal<>();
+
+    /**
+     * Instantiate an event dispatcher that runs events on an existing executor.
+     *
+     * @param executor The executor on which to run events.
+     * @param ordered  Whether the events from each source are run one at a time, in order.
+     */
+    EventDispatcher(Executor executor, boolean ordered) {
+        this.executor = executor;
+        this.ownedExecutor = null;
+        this.ordered = ordered;
+    }
+
+    /**
+     * Instantiate an event dispatcher that runs each event on a new virtual thread.
+     *
+     * @param ordered Whether the events from each source are run one at a time, in order.
+     * @throws JDTPException If virtual threads are not supported by this JVM.
+     */
+    EventDispatcher(boolean ordered) throws JDTPException {
+        if (newVirtualThreadExecutor == null) {
+            throw new JDTPException("virtual threads are not supported by this JVM");
+        }
+
+        ExecutorService virtualThreadExecutor;
+
+        try {
+            virtualThreadExecutor = (ExecutorService) newVirtualThreadExecutor.invoke(null);
+        } catch (Exception e) {
+            throw new JDTPException("failed to create virtual thread executor", e);
+        }
+
+        this.executor = virtualThreadExecutor;
+        this.ownedExecutor = virtualThreadExecutor;
+        this.ordered = ordered;
+    }
+
+    /**
+     * Instantiate an event dispatcher that runs events on its own bounded thread pool. Events are never run on the
+     * thread that dispatches them: if the rejection handler tries to run an event on that thread, as
+     * <code>ThreadPoolExecutor.CallerRunsPolicy</code> does, the thread waits for space in the queue instead.
+     *
+     * @param threads          The maximum number of threads on which to run events.
+     * @param queueCapacity    The maximum number of events waiting to be run.
+     * @param rejectionHandler The handler called when an event is dispatched while the queue is full.
+     * @param ordered          Whether the events from each source are run one at a time, in order.
+     */
+    EventDispatcher(int threads, int queueCapacity, RejectedExecutionHandler rejectionHandler, boolean ordered) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, Util.eventThreadKeepAlive,
+                TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueCapacity),
+                (task, rejectingPool) -> reject((PooledTask) task, rejectingPool, rejectionHandler));
+        pool.allowCoreThreadTimeOut(true);
+
+        this.executor = task -> pool.execute(new PooledTask(task));
+        this.ownedExecutor = pool;
+        this.ordered = ordered;
+    }
+
+    /**
+     * Create a queue through which the events from a single source are dispatched. If the dispatcher is ordered, the
+     * queue runs its events one at a time, in the order they were dispatched.
+     *
+     * @return The event queue.
+     */
+    Executor newEventQueue() {
+        if (ordered) {
+            return new SerialExecutor(executor);
+        } else {
+            return executor;
+        }
+    }
+
+    /**
+     * Dispatch an event. If the event is rejected, it is dropped.
+     *
+     * @param eventQueue The queue through which to dispatch the event, as created by <code>newEventQueue</code>.
+     * @param event      The event method call.
+     * @return Whether the event was accepted, rather than rejected by the executor.
+     */
+    boolean dispatch(Executor eventQueue, Runnable event) {
+        try {
+            eventQueue.execute(() -> runEvent(event));
+        } catch (RejectedExecutionException e) {
+            // Event rejected, drop it
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Dispatch a stream event, which reads a stream as it arrives. A stream event is never run on the thread that
+     * dispatches it, since that thread delivers the stream's chunks, nor does that thread wait for space in the queue
+     * for it. Where either would happen, the event is run on a new thread instead, which for an executor that runs
+     * events on the calling thread means that it is not ordered with the events dispatched after it. If the event is
+     * rejected, it is dropped.
+     *
+     * @param eventQueue The queue through which to dispatch the event, as created by <code>newEventQueue</code>.
+     * @param event      The event method call.
+     * @return Whether the event was accepted, rather than rejected by the executor.
+     */
+    boolean dispatchStream(Executor eventQueue, Runnable event) {
+        Thread dispatchingThread = Thread.currentThread();
+        dispatchingStream.set(true);
+
+        try {
+            return dispatch(eventQueue, () -> {
+                if (Thread.currentThread() == dispatchingThread) {
+                    new Thread(() -> runEvent(event)).start();
+                } else {
+                    event.run();
+                }
+            });
+        } finally {
+            dispatchingStream.remove();
+        }
+    }
+
+    /**
+     * Run an event, reporting any exception it throws to the uncaught exception handler of the current thread.
+     *
+     * @param event The event method call.
+     */
+    private static void runEvent(Runnable event) {
+        try {
+            event.run();
+        } catch (Throwable e) {
+            Thread thread = Thread.currentThread();
+            thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+        }
+    }
+
+    /**
+     * Hand a task that the thread pool could not accept to the rejection handler. If the handler tries to run the task
+     * on the current thread, the current thread waits for space in the pool's queue instead, unless it is dispatching a
+     * stream event, in which case the task is run on a new thread.
+     *
+     * @param task             The rejected task.
+     * @param pool             The thread pool.
+     * @param rejectionHandler The rejection handler.
+     * @throws RejectedExecutionException If the task is rejected.
+     */
+    private static void reject(PooledTask task, ThreadPoolExecutor pool, RejectedExecutionHandler rejectionHandler) {
+        rejectedTask.set(task);
+
+        try {
+            rejectionHandler.rejectedExecution(task, pool);
+        } finally {
+            rejectedTask.remove();
+        }
+
+        if (task.runByRejectionHandler) {
+            task.runByRejectionHandler = false;
+
+            if (dispatchingStream.get() != null) {
+                new Thread(task).start();
+            } else {
+                awaitQueueSpace(task, pool);
+            }
+        }
+    }
+
+    /**
+     * Wait for space in a thread pool's queue, then add a task to it.
+     *
+     * @param task The task.
+     * @param pool The thread pool.
+     * @throws RejectedExecutionException If the pool has been shut down, or if the thread is interrupted while
+     *                                    waiting.
+     */
+    private static void awaitQueueSpace(PooledTask task, ThreadPoolExecutor pool) {
+        if (pool.isShutdown()) {
+            throw new RejectedExecutionException("event thread pool has been shut down");
+        }
+
+        try {
+            pool.getQueue().put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("interrupted while waiting for space in the event queue", e);
+        }
+
+        if (pool.isShutdown() && pool.remove(task)) {
+            throw new RejectedExecutionException("event thread pool has been shut down");
+        }
+
+        pool.prestartCoreThread();
+    }
+
+    /**
+     * Check if virtual threads are supported by this JVM.
+     *
+     * @return Whether virtual threads are supported.
+     */
+    static boolean virtualThreadsSupported() {
+        return newVirtualThreadExecutor != null;
+    }
+
+    /**
+     * Look up <code>Executors.newVirtualThreadPerTaskExecutor</code>, which is only available from Java 21 onwards.
+     *
+     * @return The executor factory method, or null if it does not exist.
+     */
+    private static Method findVirtualThreadExecutorFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * A task handed to the dispatcher's own thread pool, which declines to run on a thread that is calling the
+     * rejection handler for it.
+     */
+    private static class PooledTask implements Runnable {
+        /**
+         * The task to run.
+         */
+        private final Runnable task;
+
+        /**
+         * Whether the rejection handler tried to run the task on the thread that dispatched it. This is only accessed
+         * from that thread.
+         */
+        private boolean runByRejectionHandler = false;
+
+        /**
+         * Wrap a task for the dispatcher's thread pool.
+         *
+         * @param task The task to run.
+         */
+        PooledTask(Runnable task) {
+            this.task = task;
+        }
+
+        /**
+         * Run the task, unless this is called by the rejection handler on the thread that dispatched it.
+         */
+        @Override
+        public void run() {
+            if (rejectedTask.get() == this) {
+                runByRejectionHandler = true;
+                return;
+            }
+
+            task.run();
+        }
+    }
+
+    /**
+     * Shut down the dispatcher, allowing events that have already been dispatched to finish. An executor that was not
+     * created by the dispatcher is left running.
+     */
+    void shutdown() {
+        if (ownedExecutor != null) {
+            ownedExecutor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package jdtp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A resumable decoder that builds messages up from any number of partial reads. Messages are decoded into buffers
+ * acquired from a pool.
+ */
+class FrameDecoder {
+    /**
+     * The pool that message buffers are acquired from.
+     */
+    private final BufferPool pool;
+
+    /**
+     * The buffer into which the size portion of the current message is decoded.
+     */
+    private final ByteBuffer sizeBuffer = ByteBuffer.allocate(Util.lenSize);
+
+    /**
+     * The buffer into which the data portion of the current message is decoded, or null if the size portion has not
+     * yet been fully decoded.
+     */
+    private ByteBuffer messageBuffer = null;
+
+    /**
+     * The size of the largest message that will be decoded.
+     */
+    private int maxMessageSize;
+
+    /**
+     * Instantiate a message decoder.
+     *
+     * @param pool           The pool that message buffers are acquired from. The buffers must be heap buffers.
+     * @param maxMessageSize The size of the largest message that will be decoded.
+     */
+    FrameDecoder(BufferPool pool, int maxMessageSize) {
+        this.pool = pool;
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    /**
+     * Set the size of the largest message that will be decoded. This applies from the next message whose size portion
+     * has not yet been decoded.
+     *
+     * @param maxMessageSize The size of the largest message that will be decoded.
+     */
+    void setMaxMessageSize(int maxMessageSize) {
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    /**
+     * Decode bytes from an input buffer, stopping once a full message has been decoded. Any bytes after the end of the
+     * message are left in the input buffer, so that this can be called repeatedly to pull several messages out of a
+     * single read.
+     *
+     * @param input The buffer to decode bytes from.
+     * @return Whether a full message has been decoded and is available through <code>frame()</code>.
+     * @throws JDTPException If the size of the message is larger than the largest message that will be decoded.
+     */
+    boolean decode(ByteBuffer input) throws JDTPException {
+        if (messageBuffer == null) {
+            while (sizeBuffer.hasRemaining() && input.hasRemaining()) {
+                sizeBuffer.put(input.get());
+            }
+
+            if (sizeBuffer.hasRemaining()) {
+                return false;
+            }
+
+            long messageSize = Util.decodeMessageSize(sizeBuffer.array());
+
+            if (messageSize > maxMessageSize) {
+                throw new JDTPException("message is too large");
+            }
+
+            messageBuffer = pool.acquire((int) messageSize);
+        }
+
+        int length = Math.min(messageBuffer.remaining(), input.remaining());
+        ByteBuffer chunk = input.duplicate();
+        chunk.limit(chunk.position() + length);
+        messageBuffer.put(chunk);
+        input.position(input.position() + length);
+
+        return !messageBuffer.hasRemaining();
+    }
+
+    /**
+     * Take the message that has just been decoded, resetting the decoder for the next message.
+     *
+     * @return The buffer holding the decoded message data, from its start up to its limit. It must be released back to
+     *         the pool once the message has been handled.
+     */
+    ByteBuffer frame() {
+        ByteBuffer frame = messageBuffer;
+        frame.flip();
+        messageBuffer = null;
+        sizeBuffer.clear();
+
+        return frame;
+    }
+
+    /**
+     * Release the buffer of any partially decoded message back to the pool, resetting the decoder.
+     */
+    void release() {
+        if (messageBuffer != null) {
+            pool.release(messageBuffer);
+            messageBuffer = null;
+        }
+
+        sizeBuffer.clear();
+    }
+}
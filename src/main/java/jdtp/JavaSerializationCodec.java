@@ -0,0 +1,262 @@
+package jdtp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A codec that uses Java serialization, allowing any serializable object to be sent. This is the default codec.
+ * <p>
+ * Classes that are sent often can be registered with the codec. A registered class is written as a small ID rather
+ * than a full class descriptor, which shrinks small messages and saves looking the class up by name when decoding. Both
+ * sides of a connection must register the same classes in the same order, which is checked during the key exchange.
+ * The serialization stream header is omitted from every message.
+ */
+public class JavaSerializationCodec implements Codec {
+    /**
+     * The registered classes, in the order of their IDs.
+     */
+    private final Class<?>[] registeredClasses;
+
+    /**
+     * The IDs of the registered classes. Registered class IDs start at 1, since 0 marks a class that is not
+     * registered.
+     */
+    private final Map<Class<?>, Integer> classIDs = new HashMap<>();
+
+    /**
+     * The fingerprint of the registered classes.
+     */
+    private final long fingerprint;
+
+    /**
+     * Instantiate a Java serialization codec.
+     */
+    public JavaSerializationCodec() {
+        this(new Class<?>[0]);
+    }
+
+    /**
+     * Instantiate a Java serialization codec with a table of registered classes. Registered classes are identified by
+     * their position in the table, so the other side of a connection must register the same classes in the same order.
+     *
+     * @param registeredClasses The classes to register.
+     * @throws IllegalArgumentException If a class is not serializable, or if it is registered more than once.
+     */
+    public JavaSerializationCodec(Class<?>... registeredClasses) {
+        this.registeredClasses = registeredClasses.clone();
+
+        MessageDigest digest;
+
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        for (int i = 0; i < this.registeredClasses.length; i++) {
+            Class<?> registeredClass = this.registeredClasses[i];
+            ObjectStreamClass desc = ObjectStreamClass.lookup(registeredClass);
+
+            if (desc == null) {
+                throw new IllegalArgumentException("class is not serializable: " + registeredClass.getName());
+            }
+
+            if (classIDs.put(registeredClass, i + 1) != null) {
+                throw new IllegalArgumentException("class is registered more than once: " + registeredClass.getName());
+            }
+
+            String entry = registeredClass.getName() + ":" + desc.getSerialVersionUID() + "\n";
+            digest.update(entry.getBytes(StandardCharsets.UTF_8));
+        }
+
+        fingerprint = this.registeredClasses.length > 0 ? ByteBuffer.wrap(digest.digest()).getLong() : 0;
+    }
+
+    /**
+     * Encode an object using Java serialization.
+     *
+     * @param data The object to encode.
+     * @return The serialized object.
+     * @throws IOException If the object is not serializable.
+     */
+    @Override
+    public byte[] encode(Object data) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+
+        try (ObjectOutputStream oos = new RegisteredObjectOutputStream(bos)) {
+            oos.writeObject(data);
+        }
+
+        return bos.toByteArray();
+    }
+
+    /**
+     * Decode an object using Java serialization.
+     *
+     * @param data   The buffer holding the serialized object.
+     * @param offset The position in the buffer at which the serialized object starts.
+     * @param length The length of the serialized object.
+     * @return The deserialized object.
+     * @throws IOException If the object cannot be deserialized, or if its class cannot be found.
+     */
+    @Override
+    public Object decode(byte[] data, int offset, int length) throws IOException {
+        try (ObjectInputStream ois = new RegisteredObjectInputStream(new ByteArrayInputStream(data, offset, length))) {
+            return ois.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("class not found", e);
+        }
+    }
+
+    /**
+     * Get the fingerprint of the codec's table of registered classes, made up of the names and serial version UIDs of
+     * the classes, in order. The fingerprint of a codec with no registered classes is 0.
+     *
+     * @return The fingerprint.
+     */
+    @Override
+    public long fingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * An object output stream that writes registered classes as IDs, and omits the stream header.
+     */
+    private class RegisteredObjectOutputStream extends ObjectOutputStream {
+        /**
+         * Instantiate an object output stream.
+         *
+         * @param out The stream to write to.
+         * @throws IOException If an error occurs while writing to the stream.
+         */
+        RegisteredObjectOutputStream(OutputStream out) throws IOException {
+            super(out);
+        }
+
+        /**
+         * Omit the stream header.
+         */
+        @Override
+        protected void writeStreamHeader() {
+        }
+
+        /**
+         * Write a class descriptor, as the ID of a registered class, or as 0 followed by the full descriptor.
+         *
+         * @param desc The class descriptor.
+         * @throws IOException If an error occurs while writing to the stream.
+         */
+        @Override
+        protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException {
+            Integer classID = classIDs.get(desc.forClass());
+            int value = classID != null ? classID : 0;
+
+            while ((value & ~0x7f) != 0) {
+                write((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+
+            write(value);
+
+            if (classID == null) {
+                super.writeClassDescriptor(desc);
+            }
+        }
+    }
+
+    /**
+     * An object input stream that reads registered classes from their IDs, and expects no stream header.
+     */
+    private class RegisteredObjectInputStream extends ObjectInputStream {
+        /**
+         * Instantiate an object input stream.
+         *
+         * @param in The stream to read from.
+         * @throws IOException If an error occurs while reading from the stream.
+         */
+        RegisteredObjectInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        /**
+         * Expect no stream header.
+         */
+        @Override
+        protected void readStreamHeader() {
+        }
+
+        /**
+         * Read a class descriptor, written as the ID of a registered class, or as 0 followed by the full descriptor.
+         *
+         * @return The class descriptor.
+         * @throws IOException            If an error occurs while reading from the stream, or if the class ID is not
+         *                                registered.
+         * @throws ClassNotFoundException If the class of a full descriptor cannot be found.
+         */
+        @Override
+        protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+            int classID = 0;
+
+            for (int shift = 0; ; shift += 7) {
+                int b = read();
+
+                if (b < 0) {
+                    throw new EOFException();
+                }
+
+                if (shift > 28) {
+                    throw new InvalidClassException("invalid class ID");
+                }
+
+                classID |= (b & 0x7f) << shift;
+
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+            }
+
+            if (classID == 0) {
+                return super.readClassDescriptor();
+            }
+
+            if (classID < 0 || classID > registeredClasses.length) {
+                throw new InvalidClassException("unknown class ID " + classID);
+            }
+
+            return ObjectStreamClass.lookup(registeredClasses[classID - 1]);
+        }
+
+        /**
+         * Resolve the class of a descriptor, without looking registered classes up by name.
+         *
+         * @param desc The class descriptor.
+         * @return The class.
+         * @throws IOException            If an error occurs while resolving the class.
+         * @throws ClassNotFoundException If the class cannot be found.
+         */
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            Class<?> registeredClass = desc.forClass();
+
+            if (registeredClass != null && classIDs.containsKey(registeredClass)) {
+                return registeredClass;
+            }
+
+            return super.resolveClass(desc);
+        }
+    }
+}
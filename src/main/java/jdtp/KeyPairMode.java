@@ -0,0 +1,24 @@
+package jdtp;
+
+/**
+ * The ways in which a server can obtain the RSA key pairs used to exchange keys with its clients.
+ */
+public enum KeyPairMode {
+    /**
+     * Generate a new key pair for every client. This is the slowest mode, as generating a key pair is far more
+     * expensive than the rest of the key exchange.
+     */
+    PER_CONNECTION,
+
+    /**
+     * Generate a single key pair when the server first starts, and use it for every client. Key exchanges are then
+     * limited only by network latency, at the cost of every client's crypto key being protected by the same key pair.
+     */
+    LONG_LIVED,
+
+    /**
+     * Draw a new key pair for every client from a pool that is refilled in the background. If the pool is empty, a key
+     * pair is generated on demand.
+     */
+    POOLED
+}
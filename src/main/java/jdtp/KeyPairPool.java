@@ -0,0 +1,71 @@
+package jdtp;
+
+import java.security.KeyPair;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A pool of pre-generated RSA key pairs, refilled in the background.
+ */
+class KeyPairPool {
+    /**
+     * The pre-generated key pairs.
+     */
+    private final BlockingQueue<KeyPair> keyPairs;
+
+    /**
+     * The thread from which the pool is refilled.
+     */
+    private final Thread refillThread;
+
+    /**
+     * Instantiate a key pair pool and begin filling it.
+     *
+     * @param size The number of key pairs to keep in the pool.
+     */
+    KeyPairPool(int size) {
+        keyPairs = new ArrayBlockingQueue<>(size);
+
+        refillThread = new Thread(this::refill);
+        refillThread.setDaemon(true);
+        refillThread.setPriority(Thread.MIN_PRIORITY);
+        refillThread.start();
+    }
+
+    /**
+     * Take a key pair from the pool, generating one on demand if the pool is empty.
+     *
+     * @return The key pair.
+     * @throws NoSuchAlgorithmException When the key generation algorithm is invalid.
+     */
+    KeyPair take() throws NoSuchAlgorithmException {
+        KeyPair keyPair = keyPairs.poll();
+
+        if (keyPair == null) {
+            keyPair = Crypto.newRSAKeys();
+        }
+
+        return keyPair;
+    }
+
+    /**
+     * Stop refilling the pool.
+     */
+    void close() {
+        refillThread.interrupt();
+    }
+
+    /**
+     * Keep the pool full until it is closed.
+     */
+    private void refill() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                keyPairs.put(Crypto.newRSAKeys());
+            }
+        } catch (InterruptedException | NoSuchAlgorithmException e) {
+            // Pool closed or key generation unavailable, stop refilling
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package jdtp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An encoded message queued to be written to a client. The message is held in a pooled buffer, which may be shared by
+ * the messages queued for several clients, in which case each of them reads it through a buffer of its own, and it is
+ * released back to the pool once the last of them has been written or dropped.
+ */
+class OutboundMessage {
+    /**
+     * The buffer through which the message is written, from its position up to its limit.
+     */
+    final ByteBuffer buffer;
+
+    /**
+     * The pooled buffer holding the message.
+     */
+    private final ByteBuffer pooledBuffer;
+
+    /**
+     * The number of messages still holding the shared pooled buffer, or null if the buffer is not shared.
+     */
+    private final AtomicInteger references;
+
+    /**
+     * The future completed once the message has been written, or null if nothing waits for it.
+     */
+    private final CompletableFuture<Void> completion;
+
+    /**
+     * Instantiate a message that is the only holder of its pooled buffer.
+     *
+     * @param buffer The pooled buffer holding the encoded message.
+     */
+    OutboundMessage(ByteBuffer buffer) {
+        this(buffer, null);
+    }
+
+    /**
+     * Instantiate a message that is the only holder of its pooled buffer, with a future to complete once it has been
+     * written.
+     *
+     * @param buffer     The pooled buffer holding the encoded message.
+     * @param completion The future completed once the message has been written, or null if nothing waits for it.
+     */
+    OutboundMessage(ByteBuffer buffer, CompletableFuture<Void> completion) {
+        this(buffer, buffer, null, completion);
+    }
+
+    /**
+     * Instantiate a message.
+     *
+     * @param buffer       The buffer through which the message is written.
+     * @param pooledBuffer The pooled buffer holding the message.
+     * @param references   The number of messages still holding the shared pooled buffer, or null if the buffer is not
+     *                     shared.
+     * @param completion   The future completed once the message has been written, or null if nothing waits for it.
+     */
+    private OutboundMessage(ByteBuffer buffer, ByteBuffer pooledBuffer, AtomicInteger references,
+                            CompletableFuture<Void> completion) {
+        this.buffer = buffer;
+        this.pooledBuffer = pooledBuffer;
+        this.references = references;
+        this.completion = completion;
+    }
+
+    /**
+     * Instantiate a message whose pooled buffer can be shared with other messages through <code>share()</code>. The
+     * message itself is not written, but holds the buffer until it is released, so that the buffer stays alive while
+     * it is being shared.
+     *
+     * @param buffer The pooled buffer holding the encoded message.
+     * @return The message.
+     */
+    static OutboundMessage shared(ByteBuffer buffer) {
+        return new OutboundMessage(buffer, buffer, new AtomicInteger(1), null);
+    }
+
+    /**
+     * Get another message holding the same pooled buffer, to be queued for another client.
+     *
+     * @return The message.
+     */
+    OutboundMessage share() {
+        references.incrementAndGet();
+        return new OutboundMessage(pooledBuffer.duplicate(), pooledBuffer, references, null);
+    }
+
+    /**
+     * Get the size of the encoded message.
+     *
+     * @return The number of bytes in the message.
+     */
+    int size() {
+        return buffer.limit();
+    }
+
+    /**
+     * Give up this message's hold on its pooled buffer once it has been fully written, completing its future.
+     *
+     * @param pool The pool the buffer was acquired from.
+     */
+    void written(BufferPool pool) {
+        release(pool);
+
+        if (completion != null) {
+            completion.complete(null);
+        }
+    }
+
+    /**
+     * Give up this message's hold on its pooled buffer without it having been fully written, failing its future.
+     *
+     * @param pool  The pool the buffer was acquired from.
+     * @param cause The reason the message was not written.
+     */
+    void dropped(BufferPool pool, Throwable cause) {
+        release(pool);
+
+        if (completion != null) {
+            completion.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * Give up this message's hold on its pooled buffer, releasing the buffer back to the pool once no message holds it.
+     *
+     * @param pool The pool the buffer was acquired from.
+     */
+    void release(BufferPool pool) {
+        if (references == null || references.decrementAndGet() == 0) {
+            pool.release(pooledBuffer);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package jdtp;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * An executor that runs its tasks one at a time, in the order they were submitted, on a shared underlying executor.
+ * Separate serial executors sharing the same underlying executor run their tasks in parallel with each other.
+ * <p>
+ * A single task is handed to the underlying executor whenever the serial executor goes from idle to busy, and it runs
+ * every task submitted in the meantime before returning, so the underlying executor is never asked to accept a task
+ * from one of its own threads.
+ */
+class SerialExecutor implements Executor {
+    /**
+     * The executor on which tasks are run.
+     */
+    private final Executor executor;
+
+    /**
+     * The tasks waiting to be run. This is guarded by the serial executor's lock.
+     */
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+
+    /**
+     * Whether a task running the queued tasks has been handed to the underlying executor and has not yet finished. This
+     * is guarded by the serial executor's lock.
+     */
+    private boolean running = false;
+
+    /**
+     * Instantiate a serial executor.
+     *
+     * @param executor The executor on which to run tasks.
+     */
+    SerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Submit a task, to be run once every previously submitted task has finished. If the underlying executor rejects
+     * the task, any tasks submitted after it stay queued, and are handed over again with the next task submitted.
+     *
+     * @param task The task to run.
+     * @throws RejectedExecutionException If the underlying executor rejects the task.
+     */
+    @Override
+    public void execute(Runnable task) {
+        synchronized (this) {
+            tasks.add(task);
+
+            if (running) {
+                return;
+            }
+
+            running = true;
+        }
+
+        try {
+            executor.execute(this::runTasks);
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                tasks.removeFirstOccurrence(task);
+                running = false;
+            }
+
+            throw e;
+        }
+    }
+
+    /**
+     * Run the queued tasks on the current thread until there are none left. An exception thrown by a task is reported
+     * to the uncaught exception handler of the current thread, and the remaining tasks still run.
+     */
+    private void runTasks() {
+        while (true) {
+            Runnable task;
+
+            synchronized (this) {
+                task = tasks.poll();
+
+                if (task == null) {
+                    running = false;
+                    return;
+                }
+            }
+
+            try {
+                task.run();
+            } catch (Throwable e) {
+                Thread thread = Thread.currentThread();
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+            }
+        }
+    }
+}
@@ -1,24 +1,49 @@
 package jdtp;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.security.Key;
 import java.security.KeyPair;
-import java.security.PrivateKey;
-import java.security.PublicKey;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A socket server.
  */
 public abstract class Server {
+    /**
+     * The codec with which data is encoded and decoded.
+     */
+    private final Codec codec;
+
+    /**
+     * The pool of heap buffers that messages received from clients are decoded and decrypted into.
+     */
+    private final BufferPool inboundPool = new BufferPool(false);
+
+    /**
+     * The pool of direct buffers that messages sent to clients are encrypted into.
+     */
+    private final BufferPool outboundPool = new BufferPool(true);
+
+    /**
+     * The ID of the next stream sent to a client.
+     */
+    private final AtomicLong nextStreamID = new AtomicLong();
+
     /**
      * Whether the server is currently serving.
      */
-    private boolean serving = false;
+    private volatile boolean serving = false;
 
     /**
      * The server socket selector.
@@ -31,19 +56,156 @@ public abstract class Server {
     private ServerSocketChannel sock = null;
 
     /**
-     * The thread from which the server will serve clients.
+     * The thread from which the server will accept clients.
      */
     private Thread serveThread = null;
 
     /**
-     * A collection of the client sockets.
+     * The number of I/O loops serving clients.
+     */
+    private int ioThreads = Util.defaultIOThreads;
+
+    /**
+     * The I/O loops serving clients.
+     */
+    private IOLoop[] ioLoops = null;
+
+    /**
+     * The index of the I/O loop the next accepted client will be handed to.
+     */
+    private int nextIOLoop = 0;
+
+    /**
+     * A collection of the client connections that have completed the key exchange.
+     */
+    private final ConnectionRegistry clients = new ConnectionRegistry();
+
+    /**
+     * The clients subscribed to each topic, by topic. Topics without subscribers are removed.
+     */
+    private final ConcurrentHashMap<String, Set<Connection>> topics = new ConcurrentHashMap<>();
+
+    /**
+     * The executor on which key exchange work is done, so that the I/O loops are never blocked by it.
+     */
+    private ExecutorService handshakeExecutor = null;
+
+    /**
+     * The time allowed for a client to complete the key exchange, in milliseconds.
+     */
+    private long handshakeTimeout = Util.defaultHandshakeTimeout;
+
+    /**
+     * The way in which key pairs are obtained for key exchanges.
+     */
+    private KeyPairMode keyPairMode = KeyPairMode.PER_CONNECTION;
+
+    /**
+     * The number of key pairs to keep in the pool when key pairs are pooled.
+     */
+    private int keyPairPoolSize = Util.defaultKeyPairPoolSize;
+
+    /**
+     * The key pair used for every key exchange when a long-lived key pair is used.
+     */
+    private KeyPair longLivedKeyPair = null;
+
+    /**
+     * The pool from which key pairs are drawn when key pairs are pooled.
+     */
+    private KeyPairPool keyPairPool = null;
+
+    /**
+     * The executor on which event methods are called, or null to use the default thread pool.
+     */
+    private Executor eventExecutor = null;
+
+    /**
+     * The maximum number of threads in the default event thread pool.
+     */
+    private int eventThreads = Util.defaultEventThreads;
+
+    /**
+     * The maximum number of events waiting to be run on the default event thread pool.
+     */
+    private int eventQueueCapacity = Util.defaultEventQueueCapacity;
+
+    /**
+     * The handler called when the default event thread pool's queue is full.
+     */
+    private RejectedExecutionHandler eventRejectionHandler = new ThreadPoolExecutor.CallerRunsPolicy();
+
+    /**
+     * Whether event methods are called on virtual threads.
+     */
+    private boolean virtualThreads = false;
+
+    /**
+     * Whether events are delivered in order.
+     */
+    private boolean orderedDelivery = false;
+
+    /**
+     * Whether messages are compressed, provided that the other side of the connection agrees.
+     */
+    private boolean compression = false;
+
+    /**
+     * Whether messages sent to all clients are encrypted once under a broadcast key shared with every client.
+     */
+    private boolean broadcastEncryption = false;
+
+    /**
+     * The ciphers for the broadcast key, or null if broadcast encryption is disabled.
+     */
+    private CipherContext broadcastCipherContext = null;
+
+    /**
+     * The lock held while a broadcast message is encrypted and queued for its recipients, so that every client receives
+     * broadcast messages in the order of their nonce counters.
+     */
+    private final Object broadcastLock = new Object();
+
+    /**
+     * The broadcast key, serialized to be sent to each client, or null if broadcast encryption is disabled.
+     */
+    private byte[] broadcastKeySerialized = null;
+
+    /**
+     * The size, in bytes, from which messages are compressed.
+     */
+    private int compressionThreshold = Util.defaultCompressionThreshold;
+
+    /**
+     * The size, in bytes, of the largest message accepted once the key exchange has completed.
+     */
+    private int maxMessageSize = Util.defaultMaxMessageSize;
+
+    /**
+     * Whether small messages are held back briefly so that they can be written to a client together.
+     */
+    private boolean writeCombining = false;
+
+    /**
+     * The number of bytes held back for a client by write combining, from which they are written at once.
+     */
+    private int writeCombiningThreshold = Util.defaultWriteCombiningThreshold;
+
+    /**
+     * The time, in microseconds, for which write combining holds back a message.
+     */
+    private long writeCombiningDelay = Util.defaultWriteCombiningDelay;
+
+    /**
+     * The executor on which messages held back by write combining are flushed once their time is up, or null if write
+     * combining is disabled.
      */
-    private final HashMap<Long, SocketChannel> clients = new HashMap<>();
+    private volatile ScheduledExecutorService flushScheduler = null;
 
     /**
-     * A collection of the client crypto keys.
+     * The dispatcher through which event methods are called.
      */
-    private final HashMap<Long, Key> keys = new HashMap<>();
+    private EventDispatcher eventDispatcher = null;
 
     /**
      * The next available client ID.
@@ -51,491 +213,1876 @@ public abstract class Server {
     private long nextClientID = 0;
 
     /**
-     * Instantiate a socket server.
+     * Instantiate a socket server that sends data using Java serialization.
      */
     public Server() {
+        this(new JavaSerializationCodec());
     }
 
     /**
-     * Start the socket server.
+     * Instantiate a socket server that sends data using a custom codec.
      *
-     * @param host The address to host the server on.
-     * @param port The port to host the server on.
-     * @throws JDTPException If the server is already serving.
-     * @throws IOException   If an error occurs while starting the server.
+     * @param codec The codec with which data is encoded and decoded.
      */
-    public void start(String host, int port) throws JDTPException, IOException {
+    public Server(Codec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * Set the number of I/O loops serving clients. Each loop has its own selector and thread, and accepted clients are
+     * handed to the loops in turn. By default, there is one loop per available processor.
+     *
+     * @param ioThreads The number of I/O loops.
+     * @throws JDTPException If the server is already serving, or if the number of loops is not positive.
+     */
+    public void setIOThreads(int ioThreads) throws JDTPException {
         if (serving) {
             throw new JDTPException("server is already serving");
         }
 
-        InetSocketAddress address = new InetSocketAddress(host, port);
+        if (ioThreads < 1) {
+            throw new JDTPException("at least one I/O thread is required");
+        }
 
-        selector = Selector.open();
+        this.ioThreads = ioThreads;
+    }
 
-        sock = ServerSocketChannel.open();
-        sock.bind(address, Util.listenBacklog);
-        sock.configureBlocking(false);
-        sock.register(selector, SelectionKey.OP_ACCEPT);
+    /**
+     * Set the time allowed for a client to complete the key exchange before it is disconnected.
+     *
+     * @param handshakeTimeout The handshake timeout, in milliseconds.
+     * @throws JDTPException If the server is already serving.
+     */
+    public void setHandshakeTimeout(long handshakeTimeout) throws JDTPException {
+        if (serving) {
+            throw new JDTPException("server is already serving");
+        }
 
-        serving = true;
-        callServe();
+        this.handshakeTimeout = handshakeTimeout;
     }
 
     /**
-     * Start the socket server, using the default port.
+     * Set the way in which the server obtains the RSA key pairs used to exchange keys with clients.
      *
-     * @param host The address to host the server on.
+     * @param keyPairMode The key pair mode.
      * @throws JDTPException If the server is already serving.
-     * @throws IOException   If an error occurs while starting the server.
      */
-    public void start(String host) throws JDTPException, IOException {
-        start(host, Util.defaultPort);
+    public void setKeyPairMode(KeyPairMode keyPairMode) throws JDTPException {
+        if (serving) {
+            throw new JDTPException("server is already serving");
+        }
+
+        this.keyPairMode = keyPairMode;
     }
 
     /**
-     * Start the socket server, using the default host.
+     * Set the number of pre-generated key pairs to keep available when key pairs are pooled.
      *
-     * @param port The port to host the server on.
-     * @throws JDTPException If the server is already serving.
-     * @throws IOException   If an error occurs while starting the server.
+     * @param keyPairPoolSize The key pair pool size.
+     * @throws JDTPException If the server is already serving, or if the pool size is not positive.
      */
-    public void start(int port) throws JDTPException, IOException {
-        start(Util.defaultHost(), port);
+    public void setKeyPairPoolSize(int keyPairPoolSize) throws JDTPException {
+        if (serving) {
+            throw new JDTPException("server is already serving");
+        }
+
+        if (keyPairPoolSize < 1) {
+            throw new JDTPException("at least one pooled key pair is required");
+        }
+
+        this.keyPairPoolSize = keyPairPoolSize;
     }
 
     /**
-     * Start the socket server, using the default host and port.
+     * Set the executor on which event methods are called. By default, events are run on a bounded thread pool owned by
+     * the server, configured through <code>setEventThreads</code>, <code>setEventQueueCapacity</code> and
+     * <code>setEventRejectionHandler</code>.
      *
+     * @param eventExecutor The event executor, or null to use the default thread pool.
      * @throws JDTPException If the server is already serving.
-     * @throws IOException   If an error occurs while starting the server.
      */
-    public void start() throws JDTPException, IOException {
-        start(Util.defaultHost(), Util.defaultPort);
+    public void setEventExecutor(Executor eventExecutor) throws JDTPException {
+        if (serving) {
+            throw new JDTPException("server is already serving");
+        }
+
+        this.eventExecutor = eventExecutor;
     }
 
     /**
-     * Stop the server.
+     * Set the maximum number of threads in the default event thread pool.
      *
-     * @throws JDTPException        If the server is not serving.
-     * @throws IOException          If an error occurs while stopping the server.
-     * @throws InterruptedException If an error occurs while waiting for the serve thread to join.
+     * @param eventThreads The maximum number of event threads.
+     * @throws JDTPException If the server is already serving, or if the number of threads is not positive.
      */
-    public void stop() throws JDTPException, IOException, InterruptedException {
-        if (!serving) {
-            throw new JDTPException("server is not serving");
+    public void setEventThreads(int eventThreads) throws JDTPException {
+        if (serving) {
+            throw new JDTPException("server is already serving");
         }
 
-        serving = false;
-
-        for (Map.Entry<Long, SocketChannel> client : clients.entrySet()) {
-            clients.remove(client.getKey());
-            keys.remove(client.getKey());
-            client.getValue().close();
+        if (eventThreads < 1) {
+            throw new JDTPException("at least one event thread is required");
         }
 
-        sock.close();
-        selector.close();
+        this.eventThreads = eventThreads;
+    }
 
-        if (serveThread != null && serveThread != Thread.currentThread()) {
-            serveThread.join();
+    /**
+     * Set the maximum number of events that the default event thread pool will hold while all of its threads are busy.
+     *
+     * @param eventQueueCapacity The event queue capacity.
+     * @throws JDTPException If the server is already serving, or if the capacity is not positive.
+     */
+    public void setEventQueueCapacity(int eventQueueCapacity) throws JDTPException {
+        if (serving) {
+            throw new JDTPException("server is already serving");
+        }
+
+        if (eventQueueCapacity < 1) {
+            throw new JDTPException("event queue capacity must be positive");
         }
 
+        this.eventQueueCapacity = eventQueueCapacity;
     }
 
     /**
-     * Send data to a client.
+     * Set the handler called when an event is dispatched while the default event thread pool's queue is full. Event
+     * methods are never run on I/O threads, so a handler that would run the event on the I/O thread that received it,
+     * like the default, <code>ThreadPoolExecutor.CallerRunsPolicy</code>, instead makes that thread wait for space in
+     * the queue. This stops the thread from reading from its clients until the backlog clears. Events rejected by the
+     * handler are dropped.
      *
-     * @param clientID The ID of the client to send the data to.
-     * @param data     The data to send.
-     * @throws JDTPException If the server is not serving, or if the specified client does not exist.
-     * @throws IOException   If an error occurs while sending the data.
+     * @param eventRejectionHandler The event rejection handler.
+     * @throws JDTPException If the server is already serving.
      */
-    public void send(long clientID, Object data) throws JDTPException, IOException {
-        if (!serving) {
-            throw new JDTPException("server is not serving");
+    public void setEventRejectionHandler(RejectedExecutionHandler eventRejectionHandler) throws JDTPException {
+        if (serving) {
+            throw new JDTPException("server is already serving");
         }
 
-        SocketChannel clientSock = clients.get(clientID);
-        Key key = keys.get(clientID);
-
-        if (clientSock != null) {
-            byte[] serializedData = Util.serialize(data);
-            byte[] encryptedData;
+        this.eventRejectionHandler = eventRejectionHandler;
+    }
 
-            try {
-                encryptedData = Crypto.aesEncrypt(key, serializedData);
-            } catch (Exception e) {
-                throw new JDTPException("encryption error", e);
-            }
+    /**
+     * Set whether event methods are called on virtual threads. Each event is then run on its own virtual thread, which
+     * suits event methods that block, at the cost of there being no limit on the number of events in flight. This
+     * requires Java 21 or later, and is ignored if an event executor has been set.
+     *
+     * @param virtualThreads Whether to call event methods on virtual threads.
+     * @throws JDTPException If the server is already serving, or if virtual threads are not supported by this JVM.
+     */
+    public void setVirtualThreads(boolean virtualThreads) throws JDTPException {
+        if (serving) {
+            throw new JDTPException("server is already serving");
+        }
 
-            byte[] encodedData = Util.encodeMessage(encryptedData);
-            ByteBuffer encodedDataBuffer = ByteBuffer.wrap(encodedData);
-            clientSock.write(encodedDataBuffer);
-        } else {
-            throw new JDTPException("client does not exist");
+        if (virtualThreads && !EventDispatcher.virtualThreadsSupported()) {
+            throw new JDTPException("virtual threads are not supported by this JVM");
         }
+
+        this.virtualThreads = virtualThreads;
     }
 
     /**
-     * Send data to all clients.
+     * Set whether the events for each client are delivered in order. When enabled, event methods for the same client
+     * are called one at a time, in the order the events occurred, while events for different clients still run in
+     * parallel. The event rejection handler must then run or reject events, rather than silently discard them.
      *
-     * @param data The data to send.
-     * @throws JDTPException If the server is not serving.
-     * @throws IOException   If an error occurs while sending the data.
+     * @param orderedDelivery Whether to deliver events in order.
+     * @throws JDTPException If the server is already serving.
      */
-    public void sendAll(Object data) throws JDTPException, IOException {
-        if (!serving) {
-            throw new JDTPException("server is not serving");
+    public void setOrderedDelivery(boolean orderedDelivery) throws JDTPException {
+        if (serving) {
+            throw new JDTPException("server is already serving");
         }
 
-        for (Map.Entry<Long, SocketChannel> client : clients.entrySet()) {
-            send(client.getKey(), data);
-        }
+        this.orderedDelivery = orderedDelivery;
     }
 
     /**
-     * Disconnect a client from the server.
+     * Set whether messages are compressed. Compression is negotiated during the key exchange, and is only used with
+     * clients that enable it as well. Disabled by default.
      *
-     * @param clientID The ID of the client to disconnect.
-     * @throws JDTPException If the server is not serving, or if the specified client does not exist.
-     * @throws IOException   If an error occurs while disconnecting the client.
+     * @param compression Whether to compress messages.
+     * @throws JDTPException If the server is already serving.
      */
-    public void removeClient(long clientID) throws JDTPException, IOException {
-        if (!serving) {
-            throw new JDTPException("server is not serving");
+    public void setCompression(boolean compression) throws JDTPException {
+        if (serving) {
+            throw new JDTPException("server is already serving");
         }
 
-        SocketChannel client = clients.get(clientID);
+        this.compression = compression;
+    }
 
-        if (client != null) {
-            clients.remove(clientID);
-            keys.remove(clientID);
-            client.close();
-        } else {
-            throw new JDTPException("client does not exist");
+    /**
+     * Set whether messages sent to all clients are encrypted once under a broadcast key, rather than once for each
+     * client under its own key. The broadcast key is generated when the server starts and sent to each client once its
+     * key exchange completes. Broadcast messages are never compressed. Since every client holds the broadcast key, a
+     * client able to tamper with the traffic of another could forge broadcast messages to it. Disabled by default.
+     *
+     * @param broadcastEncryption Whether to encrypt broadcast messages once under a broadcast key.
+     * @throws JDTPException If the server is already serving.
+     */
+    public void setBroadcastEncryption(boolean broadcastEncryption) throws JDTPException {
+        if (serving) {
+            throw new JDTPException("server is already serving");
         }
+
+        this.broadcastEncryption = broadcastEncryption;
     }
 
     /**
-     * Check if the server is serving.
+     * Set the size, in bytes, from which messages are compressed when compression is enabled. Smaller messages are sent
+     * as they are, as are messages that do not shrink when compressed.
      *
-     * @return Whether the server is serving.
+     * @param compressionThreshold The compression threshold.
+     * @throws JDTPException If the server is already serving, or if the threshold is negative.
      */
-    public boolean isServing() {
-        return serving;
+    public void setCompressionThreshold(int compressionThreshold) throws JDTPException {
+        if (serving) {
+            throw new JDTPException("server is already serving");
+        }
+
+        if (compressionThreshold < 0) {
+            throw new JDTPException("compression threshold must not be negative");
+        }
+
+        this.compressionThreshold = compressionThreshold;
     }
 
     /**
-     * Get the host address of the server.
+     * Set the size, in bytes, of the largest message accepted from a client, as sent over the network after compression
+     * and encryption, which is 16 MiB by default. Compressed messages are held to the same size once decompressed.
+     * Receiving a larger message disconnects a client, before any memory is set aside for it. Larger payloads can be
+     * sent with <code>sendStream</code>, which splits them into small messages. The first message of the key exchange,
+     * received before a client is authenticated, is limited to a small fixed size regardless of this setting.
      *
-     * @return The host address of the server.
-     * @throws JDTPException If the server is not serving.
-     * @throws IOException   If an error occurs while checking the host address of the server.
+     * @param maxMessageSize The maximum message size.
+     * @throws JDTPException If the server is already serving, or if the size is not positive.
      */
-    public String getHost() throws JDTPException, IOException {
-        if (!serving) {
-            throw new JDTPException("server is not serving");
+    public void setMaxMessageSize(int maxMessageSize) throws JDTPException {
+        if (serving) {
+            throw new JDTPException("server is already serving");
         }
 
-        InetSocketAddress address = (InetSocketAddress) sock.getLocalAddress();
-        return address.getAddress().getHostAddress();
+        if (maxMessageSize < 1) {
+            throw new JDTPException("maximum message size must be positive");
+        }
+
+        this.maxMessageSize = maxMessageSize;
     }
 
     /**
-     * Get the port of the server.
+     * Set whether small messages are held back briefly, so that messages sent in quick succession are written to a
+     * client together, with fewer writes. A client's held back messages are written once they add up to the write
+     * combining threshold, once the oldest of them has been held back for the write combining delay, or once
+     * <code>flush</code> is called, whichever comes first. Disabled by default.
      *
-     * @return The port of the server.
-     * @throws JDTPException If the server is not serving.
-     * @throws IOException   If an error occurs while checking the port of the server.
+     * @param writeCombining Whether to combine writes.
+     * @throws JDTPException If the server is already serving.
+     */
+    public void setWriteCombining(boolean writeCombining) throws JDTPException {
+        if (serving) {
+            throw new JDTPException("server is already serving");
+        }
+
+        this.writeCombining = writeCombining;
+    }
+
+    /**
+     * Set the number of bytes, held back for a client by write combining, from which they are written at once.
+     *
+     * @param writeCombiningThreshold The write combining threshold.
+     * @throws JDTPException If the server is already serving, or if the threshold is negative.
+     */
+    public void setWriteCombiningThreshold(int writeCombiningThreshold) throws JDTPException {
+        if (serving) {
+            throw new JDTPException("server is already serving");
+        }
+
+        if (writeCombiningThreshold < 0) {
+            throw new JDTPException("write combining threshold must not be negative");
+        }
+
+        this.writeCombiningThreshold = writeCombiningThreshold;
+    }
+
+    /**
+     * Set the longest time, in microseconds, for which write combining holds back a message.
+     *
+     * @param writeCombiningDelay The write combining delay.
+     * @throws JDTPException If the server is already serving, or if the delay is negative.
+     */
+    public void setWriteCombiningDelay(long writeCombiningDelay) throws JDTPException {
+        if (serving) {
+            throw new JDTPException("server is already serving");
+        }
+
+        if (writeCombiningDelay < 0) {
+            throw new JDTPException("write combining delay must not be negative");
+        }
+
+        this.writeCombiningDelay = writeCombiningDelay;
+    }
+
+    /**
+     * Start the socket server.
+     *
+     * @param host The address to host the server on.
+     * @param port The port to host the server on.
+     * @throws JDTPException If the server is already serving, or if the server cannot be configured as requested.
+     * @throws IOException   If an error occurs while starting the server.
+     */
+    public void start(String host, int port) throws JDTPException, IOException {
+        if (serving) {
+            throw new JDTPException("server is already serving");
+        }
+
+        eventDispatcher = newEventDispatcher();
+
+        if (keyPairMode == KeyPairMode.LONG_LIVED && longLivedKeyPair == null) {
+            try {
+                longLivedKeyPair = Crypto.newRSAKeys();
+            } catch (Exception e) {
+                throw new JDTPException("key generation error", e);
+            }
+        }
+
+        if (broadcastEncryption) {
+            try {
+                Key broadcastKey = Crypto.newAESKey();
+                broadcastCipherContext = new CipherContext(broadcastKey, Util.broadcastNoncePrefix,
+                        Util.broadcastNoncePrefix);
+                broadcastKeySerialized = Util.serialize(broadcastKey);
+            } catch (Exception e) {
+                throw new JDTPException("key generation error", e);
+            }
+        } else {
+            broadcastCipherContext = null;
+            broadcastKeySerialized = null;
+        }
+
+        InetSocketAddress address = new InetSocketAddress(host, port);
+
+        selector = Selector.open();
+
+        sock = ServerSocketChannel.open();
+        sock.bind(address, Util.listenBacklog);
+        sock.configureBlocking(false);
+        sock.register(selector, SelectionKey.OP_ACCEPT);
+
+        if (keyPairMode == KeyPairMode.POOLED) {
+            keyPairPool = new KeyPairPool(keyPairPoolSize);
+        }
+
+        handshakeExecutor = Executors.newFixedThreadPool(Util.handshakeThreads);
+
+        if (writeCombining) {
+            flushScheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        ioLoops = new IOLoop[ioThreads];
+
+        for (int i = 0; i < ioThreads; i++) {
+            ioLoops[i] = new IOLoop();
+        }
+
+        serving = true;
+
+        for (IOLoop ioLoop : ioLoops) {
+            ioLoop.start();
+        }
+
+        callServe();
+    }
+
+    /**
+     * Start the socket server, using the default port.
+     *
+     * @param host The address to host the server on.
+     * @throws JDTPException If the server is already serving.
+     * @throws IOException   If an error occurs while starting the server.
+     */
+    public void start(String host) throws JDTPException, IOException {
+        start(host, Util.defaultPort);
+    }
+
+    /**
+     * Start the socket server, using the default host.
+     *
+     * @param port The port to host the server on.
+     * @throws JDTPException If the server is already serving.
+     * @throws IOException   If an error occurs while starting the server.
+     */
+    public void start(int port) throws JDTPException, IOException {
+        start(Util.defaultHost(), port);
+    }
+
+    /**
+     * Start the socket server, using the default host and port.
+     *
+     * @throws JDTPException If the server is already serving.
+     * @throws IOException   If an error occurs while starting the server.
+     */
+    public void start() throws JDTPException, IOException {
+        start(Util.defaultHost(), Util.defaultPort);
+    }
+
+    /**
+     * Stop the server.
+     *
+     * @throws JDTPException        If the server is not serving.
+     * @throws IOException          If an error occurs while stopping the server.
+     * @throws InterruptedException If an error occurs while waiting for the server threads to join.
+     */
+    public void stop() throws JDTPException, IOException, InterruptedException {
+        if (!serving) {
+            throw new JDTPException("server is not serving");
+        }
+
+        serving = false;
+
+        clients.forEach(client -> {
+            clients.remove(client.id);
+            client.sock.close();
+            client.ioLoop.execute(() -> releaseBuffers(client));
+        });
+
+        sock.close();
+        selector.close();
+
+        if (serveThread != null && serveThread != Thread.currentThread()) {
+            serveThread.join();
+        }
+
+        for (IOLoop ioLoop : ioLoops) {
+            ioLoop.stop();
+        }
+
+        for (IOLoop ioLoop : ioLoops) {
+            ioLoop.join();
+            ioLoop.runTasks();
+        }
+
+        handshakeExecutor.shutdownNow();
+        eventDispatcher.shutdown();
+
+        if (flushScheduler != null) {
+            flushScheduler.shutdownNow();
+            flushScheduler = null;
+        }
+
+        if (keyPairPool != null) {
+            keyPairPool.close();
+            keyPairPool = null;
+        }
+    }
+
+    /**
+     * Send data to a client. The data is queued and written to the client from its I/O thread, so this returns without
+     * waiting for the client to read it.
+     *
+     * @param clientID The ID of the client to send the data to.
+     * @param data     The data to send.
+     * @throws JDTPException If the server is not serving, or if the specified client does not exist.
+     * @throws IOException   If an error occurs while sending the data.
+     */
+    public void send(long clientID, Object data) throws JDTPException, IOException {
+        if (!serving) {
+            throw new JDTPException("server is not serving");
+        }
+
+        Connection client = clients.get(clientID);
+
+        if (client != null) {
+            byte[] serializedData = codec.encode(data);
+            sendFrame(client, Util.objectFrame, ByteBuffer.wrap(serializedData));
+        } else {
+            throw new JDTPException("client does not exist");
+        }
+    }
+
+    /**
+     * Send data to a client without waiting for anything. The data is encoded and queued, and the returned future is
+     * completed once the data has been fully written to the client's socket, or failed if the client disconnects
+     * first. Errors in sending the data, such as the client not existing, fail the future rather than being thrown.
+     * Dependent actions that do not specify an executor may run on the client's I/O thread, so they must not block.
+     *
+     * @param clientID The ID of the client to send the data to.
+     * @param data     The data to send.
+     * @return The future completed once the data has been written.
+     */
+    public CompletableFuture<Void> sendAsync(long clientID, Object data) {
+        if (!serving) {
+            return CompletableFuture.failedFuture(new JDTPException("server is not serving"));
+        }
+
+        Connection client = clients.get(clientID);
+
+        if (client == null) {
+            return CompletableFuture.failedFuture(new JDTPException("client does not exist"));
+        }
+
+        CompletableFuture<Void> completion = new CompletableFuture<>();
+
+        try {
+            byte[] serializedData = codec.encode(data);
+            sendFrame(client, Util.objectFrame, ByteBuffer.wrap(serializedData), completion);
+        } catch (JDTPException | IOException e) {
+            completion.completeExceptionally(e);
+        }
+
+        return completion;
+    }
+
+    /**
+     * Send several pieces of data to a client at once. Each piece is encoded and encrypted as a message of its own, and
+     * is passed to <code>receive</code> on the client separately, but the messages are packed together into as few
+     * buffers as possible and queued together, so that they are written to the client in as few writes as possible.
+     *
+     * @param clientID The ID of the client to send the data to.
+     * @param data     The pieces of data to send, in order.
+     * @throws JDTPException If the server is not serving, or if the specified client does not exist.
+     * @throws IOException   If an error occurs while sending the data.
+     */
+    public void sendBatch(long clientID, Collection<?> data) throws JDTPException, IOException {
+        if (!serving) {
+            throw new JDTPException("server is not serving");
+        }
+
+        Connection client = clients.get(clientID);
+
+        if (client != null) {
+            byte[] frameTypes = new byte[data.size()];
+            ByteBuffer[] frames = new ByteBuffer[frameTypes.length];
+            int count = 0;
+
+            for (Object item : data) {
+                frameTypes[count] = Util.objectFrame;
+                frames[count] = ByteBuffer.wrap(codec.encode(item));
+                count++;
+            }
+
+            sendFrames(client, frameTypes, frames);
+        } else {
+            throw new JDTPException("client does not exist");
+        }
+    }
+
+    /**
+     * Send raw bytes to a client. The bytes are encrypted and framed as they are, bypassing the codec, and are passed to
+     * <code>receiveBytes</code> on the client.
+     *
+     * @param clientID The ID of the client to send the bytes to.
+     * @param data     The bytes to send.
+     * @throws JDTPException If the server is not serving, or if the specified client does not exist.
+     */
+    public void sendBytes(long clientID, byte[] data) throws JDTPException {
+        sendBuffer(clientID, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Send the bytes remaining in a buffer to a client. The bytes are encrypted and framed as they are, bypassing the
+     * codec, and are passed to <code>receiveBytes</code> on the client. The buffer's position is advanced to its limit.
+     *
+     * @param clientID The ID of the client to send the bytes to.
+     * @param data     The buffer holding the bytes to send.
+     * @throws JDTPException If the server is not serving, or if the specified client does not exist.
+     */
+    public void sendBuffer(long clientID, ByteBuffer data) throws JDTPException {
+        if (!serving) {
+            throw new JDTPException("server is not serving");
+        }
+
+        Connection client = clients.get(clientID);
+
+        if (client != null) {
+            sendFrame(client, Util.bytesFrame, data);
+        } else {
+            throw new JDTPException("client does not exist");
+        }
+    }
+
+    /**
+     * Open a stream to a client. Bytes written to the stream are sent in chunks, which are passed to
+     * <code>receiveStream</code> on the client as they arrive, so that data of any size can be sent without holding it
+     * all in memory. Writing to the stream waits while too much data is queued for the client. The stream must be
+     * closed once all of its bytes have been written.
+     *
+     * @param clientID The ID of the client to send the stream to.
+     * @return The stream.
+     * @throws JDTPException If the server is not serving, or if the specified client does not exist.
+     * @throws IOException   If an error occurs while opening the stream.
+     */
+    public OutputStream sendStream(long clientID) throws JDTPException, IOException {
+        if (!serving) {
+            throw new JDTPException("server is not serving");
+        }
+
+        Connection client = clients.get(clientID);
+
+        if (client != null) {
+            return new StreamOutput(streamFrameSender(client), nextStreamID.getAndIncrement());
+        } else {
+            throw new JDTPException("client does not exist");
+        }
+    }
+
+    /**
+     * Send a file to a client. The file is memory-mapped and sent as a stream, a chunk at a time, so that files of any
+     * size can be sent without reading them into memory. The file is passed to <code>receiveFile</code> on the client
+     * as it arrives. This returns once the whole file has been queued, waiting while too much data is queued for the
+     * client.
+     *
+     * @param clientID The ID of the client to send the file to.
+     * @param path     The path of the file to send.
+     * @throws JDTPException If the server is not serving, or if the specified client does not exist.
+     * @throws IOException   If an error occurs while reading or sending the file.
+     */
+    public void sendFile(long clientID, Path path) throws JDTPException, IOException {
+        if (!serving) {
+            throw new JDTPException("server is not serving");
+        }
+
+        Connection client = clients.get(clientID);
+
+        if (client != null) {
+            StreamOutput.sendFile(streamFrameSender(client), nextStreamID.getAndIncrement(), path);
+        } else {
+            throw new JDTPException("client does not exist");
+        }
+    }
+
+    /**
+     * Get the sender through which a stream sends its messages to a client, waiting while too much data is queued for
+     * the client.
+     *
+     * @param client The client connection.
+     * @return The stream message sender.
+     */
+    private StreamOutput.FrameSender streamFrameSender(Connection client) {
+        return (frameType, data) -> {
+            awaitQueueSpace(client);
+            sendFrame(client, frameType, data);
+        };
+    }
+
+    /**
+     * Wait until few enough bytes are queued for a client that a stream may queue more.
+     *
+     * @param client The client connection.
+     * @throws JDTPException If the client has disconnected.
+     * @throws IOException   If the thread is interrupted while waiting.
+     */
+    private void awaitQueueSpace(Connection client) throws JDTPException, IOException {
+        synchronized (client) {
+            while (client.queuedBytes.get() > Util.maxStreamQueuedBytes && !client.buffersReleased) {
+                try {
+                    client.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+
+            if (client.buffersReleased) {
+                throw new JDTPException("client does not exist");
+            }
+        }
+    }
+
+    /**
+     * Encrypt a message and queue it to be written to a client.
+     *
+     * @param client    The client connection.
+     * @param frameType The frame type of the message.
+     * @param data      The buffer holding the message data.
+     * @throws JDTPException If the message cannot be encrypted.
+     */
+    private void sendFrame(Connection client, byte frameType, ByteBuffer data) throws JDTPException {
+        sendFrame(client, frameType, data, null);
+    }
+
+    /**
+     * Encrypt a message and queue it to be written to a client, completing a future once it has been written.
+     *
+     * @param client     The client connection.
+     * @param frameType  The frame type of the message.
+     * @param data       The buffer holding the message data.
+     * @param completion The future completed once the message has been written, or null if nothing waits for it.
+     * @throws JDTPException If the message cannot be encrypted.
+     */
+    private void sendFrame(Connection client, byte frameType, ByteBuffer data, CompletableFuture<Void> completion)
+            throws JDTPException {
+        if (client.compressionContext != null && data.remaining() >= compressionThreshold) {
+            ByteBuffer compressedData = client.compressionContext.compress(data, outboundPool);
+
+            if (compressedData != null) {
+                frameType |= Util.compressedFrameFlag;
+                data = compressedData;
+            }
+        }
+
+        OutboundMessage message;
+        boolean queued;
+
+        synchronized (client.sendLock) {
+            try {
+                message = new OutboundMessage(client.cipherContext.encryptMessage(frameType, data, outboundPool),
+                        completion);
+            } catch (Exception e) {
+                throw new JDTPException("encryption error", e);
+            } finally {
+                if ((frameType & Util.compressedFrameFlag) != 0) {
+                    outboundPool.release(data);
+                }
+            }
+
+            queued = queueMessage(client, message);
+        }
+
+        if (!queued) {
+            message.dropped(outboundPool, new JDTPException("client does not exist"));
+        }
+    }
+
+    /**
+     * Encrypt several messages into as few buffers as possible, and queue them together to be written to a client.
+     *
+     * @param client     The client connection.
+     * @param frameTypes The frame types of the messages.
+     * @param frames     The buffers holding the message data.
+     * @throws JDTPException If the messages cannot be encrypted.
+     */
+    private void sendFrames(Connection client, byte[] frameTypes, ByteBuffer[] frames) throws JDTPException {
+        if (client.compressionContext != null) {
+            for (int i = 0; i < frames.length; i++) {
+                if (frames[i].remaining() >= compressionThreshold) {
+                    ByteBuffer compressedData = client.compressionContext.compress(frames[i], outboundPool);
+
+                    if (compressedData != null) {
+                        frameTypes[i] |= Util.compressedFrameFlag;
+                        frames[i] = compressedData;
+                    }
+                }
+            }
+        }
+
+        synchronized (client.sendLock) {
+            List<ByteBuffer> messages;
+
+            try {
+                messages = client.cipherContext.encryptMessages(frameTypes, frames, outboundPool);
+            } catch (Exception e) {
+                throw new JDTPException("encryption error", e);
+            } finally {
+                releaseCompressedFrames(frameTypes, frames);
+            }
+
+            queueMessages(client, messages);
+        }
+    }
+
+    /**
+     * Release the buffers of the messages that were compressed before being encrypted.
+     *
+     * @param frameTypes The frame types of the messages.
+     * @param frames     The buffers holding the message data.
+     */
+    private void releaseCompressedFrames(byte[] frameTypes, ByteBuffer[] frames) {
+        for (int i = 0; i < frames.length; i++) {
+            if ((frameTypes[i] & Util.compressedFrameFlag) != 0) {
+                outboundPool.release(frames[i]);
+            }
+        }
+    }
+
+    /**
+     * Send data to all clients. The data is encoded once for all clients, and when broadcast encryption is enabled, it
+     * is encrypted once as well, with the same encrypted message queued for every client.
+     *
+     * @param data The data to send.
+     * @throws JDTPException If the server is not serving.
+     * @throws IOException   If an error occurs while sending the data.
+     */
+    public void sendAll(Object data) throws JDTPException, IOException {
+        if (!serving) {
+            throw new JDTPException("server is not serving");
+        }
+
+        byte[] serializedData = codec.encode(data);
+        broadcastFrame(Util.objectFrame, ByteBuffer.wrap(serializedData), clients::forEach);
+    }
+
+    /**
+     * Subscribe a client to a topic, so that data published to the topic is sent to the client. Subscribing a client
+     * to a topic it is already subscribed to does nothing. A client's subscriptions end when it disconnects.
+     *
+     * @param clientID The ID of the client to subscribe.
+     * @param topic    The topic.
+     * @throws JDTPException If the server is not serving, or if the specified client does not exist.
+     */
+    public void subscribe(long clientID, String topic) throws JDTPException {
+        if (!serving) {
+            throw new JDTPException("server is not serving");
+        }
+
+        Connection client = clients.get(clientID);
+
+        if (client == null) {
+            throw new JDTPException("client does not exist");
+        }
+
+        synchronized (client) {
+            if (client.buffersReleased) {
+                throw new JDTPException("client does not exist");
+            }
+
+            if (client.topics.add(topic)) {
+                topics.compute(topic, (key, subscribers) -> {
+                    if (subscribers == null) {
+                        subscribers = ConcurrentHashMap.newKeySet();
+                    }
+
+                    subscribers.add(client);
+                    return subscribers;
+                });
+            }
+        }
+    }
+
+    /**
+     * Unsubscribe a client from a topic. Unsubscribing a client from a topic it is not subscribed to does nothing.
+     *
+     * @param clientID The ID of the client to unsubscribe.
+     * @param topic    The topic.
+     * @throws JDTPException If the server is not serving, or if the specified client does not exist.
+     */
+    public void unsubscribe(long clientID, String topic) throws JDTPException {
+        if (!serving) {
+            throw new JDTPException("server is not serving");
+        }
+
+        Connection client = clients.get(clientID);
+
+        if (client == null) {
+            throw new JDTPException("client does not exist");
+        }
+
+        synchronized (client) {
+            if (client.topics.remove(topic)) {
+                removeSubscriber(topic, client);
+            }
+        }
+    }
+
+    /**
+     * Send data to every client subscribed to a topic. The data is encoded once for all subscribers, and when broadcast
+     * encryption is enabled, it is encrypted once as well. Publishing to a topic without subscribers does nothing.
+     *
+     * @param topic The topic.
+     * @param data  The data to send.
+     * @throws JDTPException If the server is not serving.
+     * @throws IOException   If an error occurs while sending the data.
+     */
+    public void publish(String topic, Object data) throws JDTPException, IOException {
+        if (!serving) {
+            throw new JDTPException("server is not serving");
+        }
+
+        Set<Connection> subscribers = topics.get(topic);
+
+        if (subscribers == null) {
+            return;
+        }
+
+        byte[] serializedData = codec.encode(data);
+        broadcastFrame(Util.objectFrame, ByteBuffer.wrap(serializedData), visitor -> {
+            for (Connection client : subscribers) {
+                visitor.visit(client);
+            }
+        });
+    }
+
+    /**
+     * Remove a client from the subscribers to a topic, removing the topic once it has no subscribers.
+     *
+     * @param topic  The topic.
+     * @param client The client connection.
+     */
+    private void removeSubscriber(String topic, Connection client) {
+        topics.computeIfPresent(topic, (key, subscribers) -> {
+            subscribers.remove(client);
+            return subscribers.isEmpty() ? null : subscribers;
+        });
+    }
+
+    /**
+     * The clients a message is broadcast to.
+     */
+    private interface Recipients {
+        /**
+         * Visit each of the clients.
+         *
+         * @param visitor The visitor called for each client.
+         * @throws JDTPException If the visitor throws, in which case the iteration stops.
+         * @throws IOException   If the visitor throws, in which case the iteration stops.
+         */
+        void forEach(ConnectionRegistry.Visitor visitor) throws JDTPException, IOException;
+    }
+
+    /**
+     * Queue a message to be written to several clients. When broadcast encryption is enabled, the message is encrypted
+     * once under the broadcast key, and its buffer is shared by every client. Broadcast messages are encrypted and
+     * queued one at a time, so that every client receives them in the order of their nonce counters. Otherwise, the
+     * message is encrypted for each client under the client's own key.
+     *
+     * @param frameType  The frame type of the message.
+     * @param data       The buffer holding the message data.
+     * @param recipients The clients to send the message to.
+     * @throws JDTPException If the message cannot be encrypted.
+     * @throws IOException   If an error occurs while visiting the clients.
+     */
+    private void broadcastFrame(byte frameType, ByteBuffer data, Recipients recipients)
+            throws JDTPException, IOException {
+        if (broadcastCipherContext == null) {
+            recipients.forEach(client -> sendFrame(client, frameType, data.duplicate()));
+            data.position(data.limit());
+            return;
+        }
+
+        synchronized (broadcastLock) {
+            OutboundMessage shared;
+
+            try {
+                shared = OutboundMessage.shared(broadcastCipherContext.encryptMessage(frameType, data, outboundPool));
+            } catch (Exception e) {
+                throw new JDTPException("encryption error", e);
+            }
+
+            try {
+                recipients.forEach(client -> {
+                    OutboundMessage message = shared.share();
+
+                    if (!queueMessage(client, message)) {
+                        message.release(outboundPool);
+                    }
+                });
+            } finally {
+                shared.release(outboundPool);
+            }
+        }
+    }
+
+    /**
+     * Write the messages held back for a client by write combining without waiting for the write combining delay. This
+     * returns once the client's I/O loop has been asked to write them, without waiting for them to be written.
+     *
+     * @param clientID The ID of the client whose messages to flush.
+     * @throws JDTPException If the server is not serving, or if the specified client does not exist.
+     */
+    public void flush(long clientID) throws JDTPException {
+        if (!serving) {
+            throw new JDTPException("server is not serving");
+        }
+
+        Connection client = clients.get(clientID);
+
+        if (client != null) {
+            flush(client);
+        } else {
+            throw new JDTPException("client does not exist");
+        }
+    }
+
+    /**
+     * Write the messages held back for every client by write combining without waiting for the write combining delay.
+     *
+     * @throws JDTPException If the server is not serving.
+     * @throws IOException   If an error occurs while flushing the messages.
+     */
+    public void flushAll() throws JDTPException, IOException {
+        if (!serving) {
+            throw new JDTPException("server is not serving");
+        }
+
+        clients.forEach(this::flush);
+    }
+
+    /**
+     * Disconnect a client from the server.
+     *
+     * @param clientID The ID of the client to disconnect.
+     * @throws JDTPException If the server is not serving, or if the specified client does not exist.
+     * @throws IOException   If an error occurs while disconnecting the client.
+     */
+    public void removeClient(long clientID) throws JDTPException, IOException {
+        if (!serving) {
+            throw new JDTPException("server is not serving");
+        }
+
+        Connection client = clients.remove(clientID);
+
+        if (client != null) {
+            client.sock.close();
+            client.ioLoop.execute(() -> releaseBuffers(client));
+        } else {
+            throw new JDTPException("client does not exist");
+        }
+    }
+
+    /**
+     * Check if the server is serving.
+     *
+     * @return Whether the server is serving.
+     */
+    public boolean isServing() {
+        return serving;
+    }
+
+    /**
+     * Get the host address of the server.
+     *
+     * @return The host address of the server.
+     * @throws JDTPException If the server is not serving.
+     * @throws IOException   If an error occurs while checking the host address of the server.
+     */
+    public String getHost() throws JDTPException, IOException {
+        if (!serving) {
+            throw new JDTPException("server is not serving");
+        }
+
+        InetSocketAddress address = (InetSocketAddress) sock.getLocalAddress();
+        return address.getAddress().getHostAddress();
+    }
+
+    /**
+     * Get the port of the server.
+     *
+     * @return The port of the server.
+     * @throws JDTPException If the server is not serving.
+     * @throws IOException   If an error occurs while checking the port of the server.
+     */
+    public int getPort() throws JDTPException, IOException {
+        if (!serving) {
+            throw new JDTPException("server is not serving");
+        }
+
+        InetSocketAddress address = (InetSocketAddress) sock.getLocalAddress();
+        return address.getPort();
+    }
+
+    /**
+     * Get the host address of a client.
+     *
+     * @param clientID The ID of the client.
+     * @return The host address of the client.
+     * @throws JDTPException If the server is not serving, or if the specified client does not exist.
+     * @throws IOException   If an error occurs while checking the host address of the client.
+     */
+    public String getClientHost(long clientID) throws JDTPException, IOException {
+        if (!serving) {
+            throw new JDTPException("server is not serving");
+        }
+
+        Connection client = clients.get(clientID);
+
+        if (client != null) {
+            InetSocketAddress address = (InetSocketAddress) client.sock.getRemoteAddress();
+            return address.getAddress().getHostAddress();
+        } else {
+            throw new JDTPException("client does not exist");
+        }
+    }
+
+    /**
+     * Get the port of a client.
+     *
+     * @param clientID The ID of the client.
+     * @return The port of the client.
+     * @throws JDTPException If the server is not serving, or if the specified client does not exist.
+     * @throws IOException   If an error occurs while checking the port of the client.
+     */
+    public int getClientPort(long clientID) throws JDTPException, IOException {
+        if (!serving) {
+            throw new JDTPException("server is not serving");
+        }
+
+        Connection client = clients.get(clientID);
+
+        if (client != null) {
+            InetSocketAddress address = (InetSocketAddress) client.sock.getRemoteAddress();
+            return address.getPort();
+        } else {
+            throw new JDTPException("client does not exist");
+        }
+    }
+
+    /**
+     * Get the number of pooled buffers that are in use, for detecting buffers that have leaked once all clients have
+     * disconnected.
+     *
+     * @return The number of buffers acquired from the server's pools and not yet released.
+     */
+    long outstandingBuffers() {
+        return inboundPool.outstanding() + outboundPool.outstanding();
+    }
+
+    /**
+     * Get the next available client ID.
+     *
+     * @return The next available client ID.
+     */
+    private long newClientID() {
+        return nextClientID++;
+    }
+
+    /**
+     * Create the dispatcher through which event methods will be called.
+     *
+     * @return The event dispatcher.
+     * @throws JDTPException If virtual threads are used but are not supported by this JVM.
+     */
+    private EventDispatcher newEventDispatcher() throws JDTPException {
+        if (eventExecutor != null) {
+            return new EventDispatcher(eventExecutor, orderedDelivery);
+        } else if (virtualThreads) {
+            return new EventDispatcher(orderedDelivery);
+        } else {
+            return new EventDispatcher(eventThreads, eventQueueCapacity, eventRejectionHandler, orderedDelivery);
+        }
+    }
+
+    /**
+     * Call the serve method.
+     */
+    private void callServe() {
+        serveThread = new Thread(() -> {
+            try {
+                serve();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        serveThread.start();
+    }
+
+    /**
+     * Accept clients, handing each one to an I/O loop.
+     *
+     * @throws IOException If an error occurs while accepting clients.
+     */
+    private void serve() throws IOException {
+        try {
+            while (serving) {
+                selector.select();
+                Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+
+                while (iter.hasNext()) {
+                    SelectionKey key = iter.next();
+                    iter.remove();
+
+                    if (key.isValid() && key.isAcceptable()) {
+                        accept();
+                    }
+                }
+            }
+        } catch (ClosedSelectorException | ClosedChannelException e) {
+            // Server stopped, do nothing
+        }
+    }
+
+    /**
+     * Accept a new client and hand it to the next I/O loop, which will begin exchanging keys with it.
+     *
+     * @throws IOException If an error occurs while accepting the client.
+     */
+    private void accept() throws IOException {
+        SocketChannel clientSock = sock.accept();
+
+        if (clientSock == null) {
+            return;
+        }
+
+        clientSock.configureBlocking(false);
+
+        IOLoop ioLoop = ioLoops[nextIOLoop];
+        nextIOLoop = (nextIOLoop + 1) % ioLoops.length;
+
+        Connection client = new Connection(newClientID(), clientSock, ioLoop, eventDispatcher.newEventQueue(),
+                inboundPool);
+        ioLoop.execute(() -> ioLoop.register(client));
+    }
+
+    /**
+     * Receive every complete message that can be decoded from the bytes read from a client, leaving any partial message
+     * buffered in the client's decoder until more data arrives. The first message from a client carries its crypto key,
+     * and any messages that arrive before the key has been decrypted are held until the key exchange completes.
+     *
+     * @param client     The client connection.
+     * @param readBuffer The bytes read from the client.
+     * @return Whether the bytes were decoded successfully.
+     */
+    private boolean receiveFrames(Connection client, ByteBuffer readBuffer) {
+        try {
+            while (client.decoder.decode(readBuffer)) {
+                ByteBuffer frame = client.decoder.frame();
+
+                if (client.cipherContext != null) {
+                    callReceive(client, frame);
+                } else if (!client.keyReceived) {
+                    client.keyReceived = true;
+                    client.decoder.setMaxMessageSize(maxMessageSize);
+                    byte[] hello = new byte[frame.remaining()];
+                    frame.get(hello);
+                    inboundPool.release(frame);
+                    handshakeExecutor.execute(() -> receiveKey(client, hello));
+                } else {
+                    client.pendingFrames.add(frame);
+                }
+            }
+        } catch (JDTPException e) {
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Queue an encoded message to be written to a client, and register interest in writing to the client, so that its
+     * I/O loop will write its queued messages as soon as the socket can accept them, unless write combining holds the
+     * message back. If the connection's buffers have already been released, the message is not queued, and the caller
+     * must drop it.
+     *
+     * @param client  The client connection.
+     * @param message The encoded message.
+     * @return Whether the message was queued.
+     */
+    private boolean queueMessage(Connection client, OutboundMessage message) {
+        boolean wakeup;
+
+        synchronized (client) {
+            if (client.buffersReleased) {
+                return false;
+            }
+
+            client.outbound.add(message);
+            client.queuedBytes.addAndGet(message.size());
+            wakeup = requestWrite(client, message.size());
+        }
+
+        if (wakeup) {
+            client.ioLoop.selector.wakeup();
+        }
+
+        return true;
+    }
+
+    /**
+     * Queue several encoded messages to be written to a client, one after another, and register interest in writing to
+     * the client. If the connection's buffers have already been released, the messages are dropped.
+     *
+     * @param client   The client connection.
+     * @param messages The pooled buffers holding the encoded messages.
+     */
+    private void queueMessages(Connection client, List<ByteBuffer> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+
+        synchronized (client) {
+            if (client.buffersReleased) {
+                for (ByteBuffer message : messages) {
+                    outboundPool.release(message);
+                }
+
+                return;
+            }
+
+            long bytes = 0;
+
+            for (ByteBuffer message : messages) {
+                client.outbound.add(new OutboundMessage(message));
+                bytes += message.remaining();
+            }
+
+            client.queuedBytes.addAndGet(bytes);
+
+            if (!requestWrite(client, bytes)) {
+                return;
+            }
+        }
+
+        client.ioLoop.selector.wakeup();
+    }
+
+    /**
+     * Register interest in writing newly queued bytes to a client, unless write combining holds them back, in which
+     * case a flush is scheduled for when the write combining delay is up. This must be called while holding the
+     * connection's lock.
+     *
+     * @param client The client connection.
+     * @param bytes  The number of bytes queued.
+     * @return Whether interest in writing was registered, in which case the client's I/O loop must be woken up.
+     */
+    private boolean requestWrite(Connection client, long bytes) {
+        ScheduledExecutorService scheduler = flushScheduler;
+
+        if (scheduler != null) {
+            client.unflushedBytes += bytes;
+
+            if (client.unflushedBytes < writeCombiningThreshold) {
+                if (client.flushScheduled) {
+                    return false;
+                }
+
+                try {
+                    scheduler.schedule(() -> flushOnDeadline(client), writeCombiningDelay, TimeUnit.MICROSECONDS);
+                    client.flushScheduled = true;
+                    return false;
+                } catch (RejectedExecutionException e) {
+                    // Server stopping, write at once
+                }
+            }
+
+            client.unflushedBytes = 0;
+        }
+
+        requestWrite(client);
+        return true;
+    }
+
+    /**
+     * Ask a client's I/O loop to write the messages held back by write combining.
+     *
+     * @param client The client connection.
+     */
+    private void flush(Connection client) {
+        synchronized (client) {
+            if (client.buffersReleased || client.unflushedBytes == 0) {
+                return;
+            }
+
+            client.unflushedBytes = 0;
+            requestWrite(client);
+        }
+
+        client.ioLoop.selector.wakeup();
+    }
+
+    /**
+     * Ask a client's I/O loop to write the messages held back by write combining, once the write combining delay is
+     * up. This is run on the flush scheduler.
+     *
+     * @param client The client connection.
+     */
+    private void flushOnDeadline(Connection client) {
+        synchronized (client) {
+            client.flushScheduled = false;
+        }
+
+        flush(client);
+    }
+
+    /**
+     * Register interest in writing to a client. This must be called while holding the connection's lock.
+     *
+     * @param client The client connection.
+     */
+    private void requestWrite(Connection client) {
+        SelectionKey key = client.selectionKey;
+
+        try {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        } catch (CancelledKeyException e) {
+            // Client disconnected, do nothing
+        }
+    }
+
+    /**
+     * Write as many queued messages to a client as its socket will accept. Queued messages are written together with
+     * gathering writes, and each message's buffer is released back to the pool once it has been fully written. Messages
+     * that are only partially written are resumed the next time the socket becomes writable.
+     *
+     * @param client        The client connection.
+     * @param gatherBuffers The array into which the buffers to write are gathered.
+     * @throws IOException If an error occurs while writing to the client socket.
+     */
+    private void writeFrames(Connection client, ByteBuffer[] gatherBuffers) throws IOException {
+        while (true) {
+            int count = 0;
+
+            for (OutboundMessage message : client.writing) {
+                gatherBuffers[count++] = message.buffer;
+            }
+
+            OutboundMessage message;
+
+            while (count < gatherBuffers.length && (message = client.outbound.poll()) != null) {
+                client.writing.add(message);
+                gatherBuffers[count++] = message.buffer;
+            }
+
+            if (count == 0) {
+                break;
+            }
+
+            client.sock.write(gatherBuffers, 0, count);
+            Arrays.fill(gatherBuffers, 0, count, null);
+            long writtenBytes = 0;
+
+            while ((message = client.writing.peek()) != null && !message.buffer.hasRemaining()) {
+                client.writing.poll();
+                writtenBytes += message.size();
+                message.written(outboundPool);
+            }
+
+            long queuedBytes = client.queuedBytes.addAndGet(-writtenBytes);
+
+            if (queuedBytes <= Util.maxStreamQueuedBytes && queuedBytes + writtenBytes > Util.maxStreamQueuedBytes) {
+                synchronized (client) {
+                    client.notifyAll();
+                }
+            }
+
+            if (!client.writing.isEmpty()) {
+                return;
+            }
+        }
+
+        synchronized (client) {
+            if (client.outbound.isEmpty()) {
+                SelectionKey key = client.selectionKey;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                client.unflushedBytes = 0;
+            }
+        }
+    }
+
+    /**
+     * Close a client connection that has been lost, calling the disconnect event method if the client had not already
+     * been removed.
+     *
+     * @param client The client connection.
+     * @throws IOException If an error occurs while closing the client socket.
      */
-    public int getPort() throws JDTPException, IOException {
-        if (!serving) {
-            throw new JDTPException("server is not serving");
-        }
+    private void closeConnection(Connection client) throws IOException {
+        client.sock.close();
+        releaseBuffers(client);
 
-        InetSocketAddress address = (InetSocketAddress) sock.getLocalAddress();
-        return address.getPort();
+        if (clients.remove(client.id) != null) {
+            callDisconnect(client);
+        }
     }
 
     /**
-     * Get the host address of a client.
+     * Release a closed connection's pooled buffers: those of the messages it had queued, of the messages it sent during
+     * the key exchange, and of any partially received message. Messages queued afterwards are dropped, the streams
+     * being received from the client are cut short, and the client's subscriptions end. This is run on the client's
+     * I/O loop, and does nothing if the buffers have already been released.
      *
-     * @param clientID The ID of the client.
-     * @return The host address of the client.
-     * @throws JDTPException If the server is not serving, or if the specified client does not exist.
-     * @throws IOException   If an error occurs while checking the host address of the client.
+     * @param client The client connection.
      */
-    public String getClientHost(long clientID) throws JDTPException, IOException {
-        if (!serving) {
-            throw new JDTPException("server is not serving");
+    private void releaseBuffers(Connection client) {
+        synchronized (client) {
+            if (client.buffersReleased) {
+                return;
+            }
+
+            client.buffersReleased = true;
+            client.notifyAll();
         }
 
-        SocketChannel client = clients.get(clientID);
+        for (String topic : client.topics) {
+            removeSubscriber(topic, client);
+        }
 
-        if (client != null) {
-            InetSocketAddress address = (InetSocketAddress) client.getRemoteAddress();
-            return address.getAddress().getHostAddress();
-        } else {
-            throw new JDTPException("client does not exist");
+        client.topics.clear();
+
+        for (StreamInput stream : client.streams.values()) {
+            stream.abort();
+        }
+
+        client.streams.clear();
+
+        client.decoder.release();
+
+        for (ByteBuffer frame : client.pendingFrames) {
+            inboundPool.release(frame);
+        }
+
+        client.pendingFrames.clear();
+
+        JDTPException disconnected = new JDTPException("client disconnected");
+
+        for (OutboundMessage message : client.writing) {
+            message.dropped(outboundPool, disconnected);
+        }
+
+        client.writing.clear();
+        OutboundMessage message;
+
+        while ((message = client.outbound.poll()) != null) {
+            message.dropped(outboundPool, disconnected);
         }
     }
 
     /**
-     * Get the port of a client.
+     * Abort the key exchange with a client.
      *
-     * @param clientID The ID of the client.
-     * @return The port of the client.
-     * @throws JDTPException If the server is not serving, or if the specified client does not exist.
-     * @throws IOException   If an error occurs while checking the port of the client.
+     * @param client The client connection.
      */
-    public int getClientPort(long clientID) throws JDTPException, IOException {
-        if (!serving) {
-            throw new JDTPException("server is not serving");
+    private void abortHandshake(Connection client) {
+        try {
+            client.sock.close();
+        } catch (IOException e) {
+            // Socket already unusable, do nothing
         }
 
-        SocketChannel client = clients.get(clientID);
-
-        if (client != null) {
-            InetSocketAddress address = (InetSocketAddress) client.getRemoteAddress();
-            return address.getPort();
-        } else {
-            throw new JDTPException("client does not exist");
-        }
+        client.ioLoop.execute(() -> releaseBuffers(client));
     }
 
     /**
-     * Get the next available client ID.
+     * Obtain a key pair for a key exchange, according to the key pair mode.
      *
-     * @return The next available client ID.
+     * @return The key pair.
+     * @throws NoSuchAlgorithmException When the key generation algorithm is invalid.
      */
-    private long newClientID() {
-        return nextClientID++;
+    private KeyPair newKeyPair() throws NoSuchAlgorithmException {
+        switch (keyPairMode) {
+            case LONG_LIVED:
+                return longLivedKeyPair;
+            case POOLED:
+                return keyPairPool.take();
+            default:
+                return Crypto.newRSAKeys();
+        }
     }
 
     /**
-     * Call the serve method.
+     * Obtain a key pair for a new client and send it the public key, preceded by a byte of flags announcing the
+     * server's settings and by the fingerprint of the codec. This is run on the handshake executor. Nothing is done
+     * for a connection that has already been closed, so that abandoned key exchanges do not hold up the executor.
+     *
+     * @param client The client connection.
      */
-    private void callServe() {
-        serveThread = new Thread(() -> {
-            try {
-                serve();
-            } catch (Exception e) {
-                throw new RuntimeException(e);
+    private void sendPublicKey(Connection client) {
+        if (!client.sock.isOpen()) {
+            return;
+        }
+
+        try {
+            KeyPair keyPair = newKeyPair();
+            client.privateKey = keyPair.getPrivate();
+
+            byte[] publicKeySerialized = Util.serialize(keyPair.getPublic());
+            byte[] hello = new byte[Util.helloHeaderSize + publicKeySerialized.length];
+            hello[0] = compression ? Util.compressionHelloFlag : 0;
+            ByteBuffer.wrap(hello).putLong(1, codec.fingerprint());
+            System.arraycopy(publicKeySerialized, 0, hello, Util.helloHeaderSize, publicKeySerialized.length);
+
+            if (!client.sock.isOpen()) {
+                return;
             }
-        });
-        serveThread.start();
+
+            ByteBuffer message = outboundPool.acquire(Util.lenSize + hello.length);
+            Util.encodeMessageSize(hello.length, message);
+            message.put(hello).flip();
+
+            if (!queueMessage(client, new OutboundMessage(message))) {
+                outboundPool.release(message);
+            }
+        } catch (Exception e) {
+            abortHandshake(client);
+        }
     }
 
     /**
-     * Serve clients.
+     * Decrypt the crypto key received from a client, then complete the key exchange on the client's I/O loop. The
+     * client is disconnected if the fingerprint of its codec differs from that of the server's. This is run on the
+     * handshake executor.
      *
-     * @throws JDTPException          If a key exchange fails.
-     * @throws IOException            If an error occurs while serving.
-     * @throws ClassNotFoundException If a class cannot be found during a key exchange.
+     * @param client The client connection.
+     * @param hello  The byte of flags announcing the client's settings and the fingerprint of its codec, followed by
+     *               the encrypted key.
      */
-    private void serve() throws JDTPException, IOException, ClassNotFoundException {
-        ByteBuffer sizeBuffer = ByteBuffer.allocate(Util.lenSize);
+    private void receiveKey(Connection client, byte[] hello) {
+        CipherContext cipherContext;
+        CompressionContext compressionContext = null;
 
-        while (serving) {
-            selector.select();
-            Set<SelectionKey> selectedKeys;
-
-            try {
-                selectedKeys = selector.selectedKeys();
-            } catch (ClosedSelectorException e) {
+        try {
+            if (hello.length < Util.helloHeaderSize || ByteBuffer.wrap(hello).getLong(1) != codec.fingerprint()) {
+                abortHandshake(client);
                 return;
             }
 
-            Iterator<SelectionKey> iter = selectedKeys.iterator();
+            byte[] keyEncrypted = Arrays.copyOfRange(hello, Util.helloHeaderSize, hello.length);
+            byte[] keySerialized = Crypto.rsaDecrypt(client.privateKey, keyEncrypted);
+            Key key = (Key) Util.deserialize(keySerialized);
+            cipherContext = new CipherContext(key, Util.serverNoncePrefix, Util.clientNoncePrefix);
 
-            while (iter.hasNext()) {
-                SelectionKey key = iter.next();
+            if (compression && (hello[0] & Util.compressionHelloFlag) != 0) {
+                compressionContext = new CompressionContext();
+            }
+        } catch (Exception e) {
+            abortHandshake(client);
+            return;
+        }
 
-                try {
-                    if (key.isAcceptable()) {
-                        SocketChannel client = sock.accept();
+        CompressionContext negotiatedCompressionContext = compressionContext;
+        client.ioLoop.execute(() -> completeHandshake(client, cipherContext, negotiatedCompressionContext));
+    }
 
-                        long clientID = newClientID();
+    /**
+     * Complete the key exchange with a client, making it available to the rest of the server and handling any messages
+     * it sent while the exchange was in progress.
+     *
+     * @param client             The client connection.
+     * @param cipherContext      The ciphers for the client crypto key.
+     * @param compressionContext The compression context, or null if compression was not negotiated.
+     * @throws IOException If an error occurs while disconnecting a client that sent an invalid message.
+     */
+    private void completeHandshake(Connection client, CipherContext cipherContext,
+                                   CompressionContext compressionContext) throws IOException {
+        if (!client.sock.isOpen()) {
+            releaseBuffers(client);
+            return;
+        }
 
-                        exchangeKeys(clientID, client);
+        client.cipherContext = cipherContext;
+        client.compressionContext = compressionContext;
+        client.privateKey = null;
 
-                        client.configureBlocking(false);
-                        client.register(selector, SelectionKey.OP_READ);
-                        clients.put(clientID, client);
+        if (broadcastKeySerialized != null) {
+            try {
+                sendFrame(client, Util.broadcastKeyFrame, ByteBuffer.wrap(broadcastKeySerialized));
+            } catch (JDTPException e) {
+                closeConnection(client);
+                return;
+            }
+        }
 
-                        callConnect(clientID);
-                    } else if (key.isReadable()) {
-                        SocketChannel client = (SocketChannel) key.channel();
-                        long clientID = clients
-                                .entrySet()
-                                .stream()
-                                .filter(entry -> Objects.equals(entry.getValue(), client))
-                                .map(Map.Entry::getKey)
-                                .collect(Collectors.toList())
-                                .get(0);
-                        sizeBuffer.clear();
+        clients.put(client);
 
-                        int bytesReceived = -1;
+        callConnect(client);
 
-                        try {
-                            bytesReceived = client.read(sizeBuffer);
-                        } catch (IOException e) {
-                            if (clients.containsKey(clientID)) {
-                                clients.remove(clientID);
-                                keys.remove(clientID);
-                                client.close();
+        try {
+            while (!client.pendingFrames.isEmpty()) {
+                callReceive(client, client.pendingFrames.remove(0));
+            }
+        } catch (JDTPException e) {
+            closeConnection(client);
+        }
+    }
 
-                                callDisconnect(clientID);
-                            }
+    /**
+     * Call the receive event method. The message's buffer is released back to the pool once the message has been
+     * handled.
+     *
+     * @param client The client who sent the data.
+     * @param frame  The pooled buffer holding the message received from the client.
+     * @throws JDTPException If the data cannot be decrypted or deserialized, or if its frame type is unknown.
+     */
+    private void callReceive(Connection client, ByteBuffer frame) throws JDTPException {
+        long clientID = client.id;
+        boolean frameRetained = false;
 
-                            continue;
-                        }
+        try {
+            byte[] data = frame.array();
+            int decryptedLength;
 
-                        if (bytesReceived != Util.lenSize) {
-                            if (clients.containsKey(clientID)) {
-                                clients.remove(clientID);
-                                keys.remove(clientID);
-                                client.close();
+            try {
+                decryptedLength = client.cipherContext.decrypt(data, frame.limit());
+            } catch (Exception e) {
+                throw new JDTPException("decryption error", e);
+            }
 
-                                callDisconnect(clientID);
-                            }
+            if (decryptedLength == 0) {
+                throw new JDTPException("unknown frame type");
+            }
 
-                            continue;
-                        }
+            byte frameType = data[0];
+            byte[] payload = data;
+            int offset = 1;
+            int length = decryptedLength - 1;
 
-                        long messageSize = Util.decodeMessageSize(sizeBuffer.array());
-                        ByteBuffer messageBuffer = ByteBuffer.allocate((int) messageSize);
+            if ((frameType & Util.compressedFrameFlag) != 0) {
+                if (client.compressionContext == null) {
+                    throw new JDTPException("compression was not negotiated");
+                }
 
-                        try {
-                            bytesReceived = client.read(messageBuffer);
-                        } catch (IOException e) {
-                            if (clients.containsKey(clientID)) {
-                                clients.remove(clientID);
-                                keys.remove(clientID);
-                                client.close();
+                try {
+                    payload = client.compressionContext.decompress(data, offset, length, maxMessageSize);
+                } catch (Exception e) {
+                    throw new JDTPException("decompression error", e);
+                }
 
-                                callDisconnect(clientID);
-                            }
+                frameType &= ~Util.compressedFrameFlag;
+                offset = 0;
+                length = payload.length;
+            }
 
-                            continue;
-                        }
+            if (frameType == Util.streamOpenFrame || frameType == Util.streamDataFrame ||
+                    frameType == Util.streamCloseFrame || frameType == Util.fileOpenFrame) {
+                receiveStreamFrame(client, frameType, payload, offset, length);
+                return;
+            }
 
-                        if (bytesReceived != messageSize) {
-                            if (clients.containsKey(clientID)) {
-                                clients.remove(clientID);
-                                keys.remove(clientID);
-                                client.close();
+            if (frameType == Util.bytesFrame) {
+                ByteBuffer bytes = ByteBuffer.wrap(payload, offset, length).slice();
+                frameRetained = eventDispatcher.dispatch(client.eventQueue, () -> {
+                    try {
+                        receiveBytes(clientID, bytes);
+                    } finally {
+                        inboundPool.release(frame);
+                    }
+                });
+                return;
+            }
 
-                                callDisconnect(clientID);
-                            }
+            if (frameType != Util.objectFrame) {
+                throw new JDTPException("unknown frame type");
+            }
 
-                            continue;
-                        }
+            Object deserializedData;
 
-                        callReceive(clientID, messageBuffer.array());
-                    }
+            try {
+                deserializedData = codec.decode(payload, offset, length);
+            } catch (Exception e) {
+                throw new JDTPException("deserialization error", e);
+            }
 
-                    iter.remove();
-                } catch (CancelledKeyException e) {
-                    // Key cancelled, do nothing
-                }
+            eventDispatcher.dispatch(client.eventQueue, () -> receive(clientID, deserializedData));
+        } finally {
+            if (!frameRetained) {
+                inboundPool.release(frame);
             }
         }
     }
 
     /**
-     * Exchange crypto keys with a client.
+     * Handle a message opening, continuing or closing a stream from a client. Opening a stream calls the receive stream
+     * or receive file event method, and each chunk is handed to the stream's reader as it arrives. While a stream's
+     * reader falls behind, the client is not read from.
      *
-     * @param clientID The ID of the new client.
-     * @param client   The client socket.
+     * @param client    The client who sent the message.
+     * @param frameType The frame type of the message.
+     * @param data      The buffer holding the message data.
+     * @param offset    The position in the buffer at which the message data starts.
+     * @param length    The length of the message data.
+     * @throws JDTPException If the message is malformed, or if it refers to a stream that is not open.
      */
-    private void exchangeKeys(long clientID, SocketChannel client) throws JDTPException, IOException, ClassNotFoundException {
-        KeyPair keyPair;
-
-        try {
-            keyPair = Crypto.newRSAKeys();
-        } catch (Exception e) {
-            throw new JDTPException("key generation error", e);
+    private void receiveStreamFrame(Connection client, byte frameType, byte[] data, int offset, int length)
+            throws JDTPException {
+        if (length < Util.streamIDSize) {
+            throw new JDTPException("invalid stream message");
         }
 
-        PublicKey publicKey = keyPair.getPublic();
-        PrivateKey privateKey = keyPair.getPrivate();
-        byte[] publicKeySerialized = Util.serialize(publicKey);
-        byte[] publicKeyEncoded = Util.encodeMessage(publicKeySerialized);
-        client.write(ByteBuffer.wrap(publicKeyEncoded));
+        long streamID = ByteBuffer.wrap(data, offset, Util.streamIDSize).getLong();
 
-        ByteBuffer sizeBuffer = ByteBuffer.allocate(Util.lenSize);
-        int bytesReceived = client.read(sizeBuffer);
+        if (frameType == Util.streamOpenFrame || frameType == Util.fileOpenFrame) {
+            if (client.streams.containsKey(streamID)) {
+                throw new JDTPException("stream is already open");
+            }
 
-        if (bytesReceived != Util.lenSize) {
-            throw new JDTPException("invalid number of bytes received");
-        }
+            StreamInput stream = new StreamInput(() -> client.ioLoop.execute(() -> resumeReading(client)));
+            long clientID = client.id;
+            Runnable event;
+
+            if (frameType == Util.fileOpenFrame) {
+                if (length < Util.streamIDSize + 8) {
+                    throw new JDTPException("invalid stream message");
+                }
+
+                long size = ByteBuffer.wrap(data, offset + Util.streamIDSize, 8).getLong();
+                String fileName = new String(data, offset + Util.streamIDSize + 8, length - Util.streamIDSize - 8,
+                        StandardCharsets.UTF_8);
+                event = () -> receiveFile(clientID, fileName, size, stream);
+            } else {
+                event = () -> receiveStream(clientID, stream);
+            }
 
-        long messageSize = Util.decodeMessageSize(sizeBuffer.array());
-        ByteBuffer messageBuffer = ByteBuffer.allocate((int) messageSize);
-        bytesReceived = client.read(messageBuffer);
+            client.streams.put(streamID, stream);
 
-        if (bytesReceived != messageSize) {
-            throw new JDTPException("invalid number of bytes received");
+            if (!eventDispatcher.dispatchStream(client.eventQueue, event)) {
+                stream.close();
+            }
+
+            return;
         }
 
-        byte[] keyEncrypted = messageBuffer.array();
-        byte[] keySerialized;
+        StreamInput stream = frameType == Util.streamCloseFrame ? client.streams.remove(streamID) :
+                client.streams.get(streamID);
 
-        try {
-            keySerialized = Crypto.rsaDecrypt(privateKey, keyEncrypted);
-        } catch (Exception e) {
-            throw new JDTPException("key decryption failed", e);
+        if (stream == null) {
+            throw new JDTPException("stream is not open");
         }
 
-        Key key = (Key) Util.deserialize(keySerialized);
-        keys.put(clientID, key);
+        if (frameType == Util.streamCloseFrame) {
+            stream.finish();
+        } else if (stream.offer(Arrays.copyOfRange(data, offset + Util.streamIDSize, offset + length))) {
+            if (client.pausedStreams++ == 0) {
+                setReadInterest(client, false);
+            }
+        }
     }
 
     /**
-     * Call the receive event method.
+     * Resume reading from a client once the reader of one of its streams has caught up. This is run on the client's
+     * I/O loop.
      *
-     * @param clientID The ID of the client who sent the data.
-     * @param data     The data received from the client.
+     * @param client The client connection.
      */
-    private void callReceive(long clientID, byte[] data) {
-        Key key = keys.get(clientID);
-        byte[] decryptedData;
-
-        try {
-            decryptedData = Crypto.aesDecrypt(key, data);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+    private void resumeReading(Connection client) {
+        if (--client.pausedStreams == 0) {
+            setReadInterest(client, true);
         }
+    }
 
-        Object deserializedData;
+    /**
+     * Register or remove interest in reading from a client.
+     *
+     * @param client   The client connection.
+     * @param interest Whether the client should be read from.
+     */
+    private void setReadInterest(Connection client, boolean interest) {
+        synchronized (client) {
+            SelectionKey key = client.selectionKey;
 
-        try {
-            deserializedData = Util.deserialize(decryptedData);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+            try {
+                if (interest) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                } else {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                }
+            } catch (CancelledKeyException e) {
+                // Client disconnected, do nothing
+            }
         }
-
-        new Thread(() -> receive(clientID, deserializedData)).start();
     }
 
     /**
      * Call the connect event method.
      *
-     * @param clientID The ID of the client who connected.
+     * @param client The client who connected.
      */
-    private void callConnect(long clientID) {
-        new Thread(() -> connect(clientID)).start();
+    private void callConnect(Connection client) {
+        long clientID = client.id;
+        eventDispatcher.dispatch(client.eventQueue, () -> connect(clientID));
     }
 
     /**
      * Call the disconnect event method.
      *
-     * @param clientID The ID of the client who disconnected.
+     * @param client The client who disconnected.
      */
-    private void callDisconnect(long clientID) {
-        new Thread(() -> disconnect(clientID)).start();
+    private void callDisconnect(Connection client) {
+        long clientID = client.id;
+        eventDispatcher.dispatch(client.eventQueue, () -> disconnect(clientID));
     }
 
     /**
@@ -546,6 +2093,62 @@ public abstract class Server {
      */
     protected abstract void receive(long clientID, Object data);
 
+    /**
+     * An event method, called when raw bytes sent with <code>sendBytes</code> or <code>sendBuffer</code> are received
+     * from a client. By default, the bytes are copied into a <code>byte[]</code> and passed to <code>receive</code>.
+     * The buffer is reused once this returns, so any bytes that are needed afterwards must be copied out of it.
+     *
+     * @param clientID The ID of the client who sent the bytes.
+     * @param data     The buffer holding the bytes received from the client.
+     */
+    protected void receiveBytes(long clientID, ByteBuffer data) {
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        receive(clientID, bytes);
+    }
+
+    /**
+     * An event method, called when a client opens a stream with <code>sendStream</code>. The stream's bytes can be read
+     * as they arrive, and the client stops being read from while the reader falls behind, so the method should read
+     * the stream to its end or close it. By default, the whole stream is read into a <code>byte[]</code> and passed to
+     * <code>receive</code>. If the client disconnects before closing the stream, reading from it fails.
+     *
+     * @param clientID The ID of the client who opened the stream.
+     * @param data     The stream.
+     */
+    protected void receiveStream(long clientID, InputStream data) {
+        byte[] bytes;
+
+        try (InputStream stream = data) {
+            bytes = stream.readAllBytes();
+        } catch (IOException e) {
+            return;
+        }
+
+        receive(clientID, bytes);
+    }
+
+    /**
+     * An event method, called when a client sends a file with <code>sendFile</code>. The file's contents are read from
+     * the stream as they arrive, just as with <code>receiveStream</code>. To write them straight to a file or channel,
+     * pass the stream to <code>Files.copy</code>, or call <code>transferTo</code> on it. By default, the file's
+     * contents are read and discarded as they arrive, so that a file of any size is received without being held in
+     * memory, and the method must be overridden to keep the file.
+     *
+     * @param clientID The ID of the client who sent the file.
+     * @param fileName The name of the file, without its directory, as given by the client. It should be checked before
+     *                 being used to build a path.
+     * @param size     The size of the file, in bytes.
+     * @param data     The stream of the file's contents.
+     */
+    protected void receiveFile(long clientID, String fileName, long size, InputStream data) {
+        try (InputStream stream = data) {
+            stream.transferTo(OutputStream.nullOutputStream());
+        } catch (IOException e) {
+            // Client lost before the file was fully received, do nothing
+        }
+    }
+
     /**
      * An event method, called when a client connects.
      *
@@ -559,4 +2162,263 @@ public abstract class Server {
      * @param clientID The ID of the client who disconnected.
      */
     protected abstract void disconnect(long clientID);
+
+    /**
+     * A task run on an I/O loop.
+     */
+    interface IOTask {
+        /**
+         * Run the task.
+         *
+         * @throws IOException If an error occurs while running the task.
+         */
+        void run() throws IOException;
+    }
+
+    /**
+     * An I/O loop, serving a share of the server's clients from its own selector and thread.
+     */
+    class IOLoop {
+        /**
+         * The selector with which the loop's client sockets are registered.
+         */
+        final Selector selector;
+
+        /**
+         * The thread from which the loop serves its clients.
+         */
+        private final Thread thread;
+
+        /**
+         * Tasks waiting to be run on the loop's thread.
+         */
+        private final Queue<IOTask> tasks = new ConcurrentLinkedQueue<>();
+
+        /**
+         * The loop's client connections that are exchanging keys, in the order they were accepted.
+         */
+        private final ArrayDeque<Connection> handshakes = new ArrayDeque<>();
+
+        /**
+         * The buffer that data received from clients is read into.
+         */
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(Util.readBufferSize);
+
+        /**
+         * The array into which buffers are gathered to be written to clients.
+         */
+        private final ByteBuffer[] gatherBuffers = new ByteBuffer[Util.maxGatherBuffers];
+
+        /**
+         * Instantiate an I/O loop.
+         *
+         * @throws IOException If an error occurs while opening the selector.
+         */
+        IOLoop() throws IOException {
+            selector = Selector.open();
+            thread = new Thread(() -> {
+                try {
+                    serve();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+        }
+
+        /**
+         * Start serving clients.
+         */
+        void start() {
+            thread.start();
+        }
+
+        /**
+         * Stop serving clients. Clients that have not completed the key exchange are disconnected.
+         *
+         * @throws IOException If an error occurs while closing the selector.
+         */
+        void stop() throws IOException {
+            selector.close();
+        }
+
+        /**
+         * Wait for the loop's thread to finish.
+         *
+         * @throws InterruptedException If an error occurs while waiting for the thread to join.
+         */
+        void join() throws InterruptedException {
+            if (thread != Thread.currentThread()) {
+                thread.join();
+            }
+        }
+
+        /**
+         * Run a task on the loop's thread.
+         *
+         * @param task The task to run.
+         */
+        void execute(IOTask task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        /**
+         * Register a newly accepted client with the loop and begin exchanging keys with it. The key pair is obtained on
+         * the handshake executor, and the rest of the exchange is driven by the loop as the client's messages arrive.
+         *
+         * @param client The client connection.
+         * @throws IOException If an error occurs while registering the client socket.
+         */
+        void register(Connection client) throws IOException {
+            try {
+                client.selectionKey = client.sock.register(selector, SelectionKey.OP_READ, client);
+            } catch (ClosedSelectorException e) {
+                client.sock.close();
+                return;
+            }
+
+            client.handshakeDeadline = System.nanoTime() + handshakeTimeout * 1000000;
+            handshakes.add(client);
+
+            handshakeExecutor.execute(() -> sendPublicKey(client));
+        }
+
+        /**
+         * Serve the loop's clients.
+         *
+         * @throws IOException If an error occurs while serving.
+         */
+        private void serve() throws IOException {
+            try {
+                while (serving) {
+                    selector.select(nextHandshakeTimeout());
+                    runTasks();
+                    expireHandshakes();
+
+                    Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+
+                    while (iter.hasNext()) {
+                        SelectionKey key = iter.next();
+                        iter.remove();
+
+                        try {
+                            serve((Connection) key.attachment(), key);
+                        } catch (CancelledKeyException e) {
+                            // Key cancelled, do nothing
+                        }
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                // Server stopped, do nothing
+            }
+
+            for (Connection client : handshakes) {
+                client.sock.close();
+
+                if (client.cipherContext == null) {
+                    releaseBuffers(client);
+                }
+            }
+
+            handshakes.clear();
+            runTasks();
+        }
+
+        /**
+         * Read from and write to a client whose socket is ready.
+         *
+         * @param client The client connection.
+         * @param key    The selection key of the client socket.
+         * @throws IOException If an error occurs while disconnecting the client.
+         */
+        private void serve(Connection client, SelectionKey key) throws IOException {
+            if (key.isReadable()) {
+                readBuffer.clear();
+
+                int bytesReceived;
+
+                try {
+                    bytesReceived = client.sock.read(readBuffer);
+                } catch (IOException e) {
+                    closeConnection(client);
+                    return;
+                }
+
+                if (bytesReceived < 0) {
+                    closeConnection(client);
+                    return;
+                }
+
+                readBuffer.flip();
+
+                if (!receiveFrames(client, readBuffer)) {
+                    closeConnection(client);
+                    return;
+                }
+            }
+
+            if (key.isValid() && key.isWritable()) {
+                try {
+                    writeFrames(client, gatherBuffers);
+                } catch (IOException e) {
+                    closeConnection(client);
+                }
+            }
+        }
+
+        /**
+         * Run the tasks waiting to be run on the loop's thread. Once the thread has finished, this is called by the
+         * server to run any tasks that were queued while the loop was stopping.
+         *
+         * @throws IOException If an error occurs while running a task.
+         */
+        private void runTasks() throws IOException {
+            IOTask task;
+
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+
+        /**
+         * Get the time until the oldest ongoing key exchange expires.
+         *
+         * @return The time until the next key exchange expires, in milliseconds, or 0 if no key exchanges are ongoing.
+         */
+        private long nextHandshakeTimeout() {
+            Connection client = handshakes.peek();
+
+            if (client == null) {
+                return 0;
+            }
+
+            return Math.max((client.handshakeDeadline - System.nanoTime()) / 1000000 + 1, 1);
+        }
+
+        /**
+         * Disconnect clients that have not completed the key exchange in time.
+         *
+         * @throws IOException If an error occurs while disconnecting a client.
+         */
+        private void expireHandshakes() throws IOException {
+            long now = System.nanoTime();
+            Connection client;
+
+            while ((client = handshakes.peek()) != null) {
+                if (client.cipherContext == null) {
+                    if (client.sock.isOpen()) {
+                        if (client.handshakeDeadline - now > 0) {
+                            break;
+                        }
+
+                        client.sock.close();
+                    }
+
+                    releaseBuffers(client);
+                }
+
+                handshakes.poll();
+            }
+        }
+    }
 }
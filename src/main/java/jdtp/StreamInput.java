@@ -0,0 +1,308 @@
+package jdtp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * The receiving end of a stream, through which the chunks of a stream are read as they arrive. Chunks are buffered
+ * until they are read, and once the buffered chunks exceed <code>Util.maxStreamBufferedBytes</code>, the stream asks
+ * for the connection to stop being read from until the reader catches up.
+ */
+class StreamInput extends InputStream {
+    /**
+     * The thread that receives the stream's chunks, which must never block waiting for them.
+     */
+    private final Thread receiver = Thread.currentThread();
+
+    /**
+     * Called once the reader has caught up with a stream that asked for the connection to stop being read from, or
+     * null if the receiver waits with <code>awaitDrained</code> instead.
+     */
+    private final Runnable onDrained;
+
+    /**
+     * The chunks that have been received and not yet fully read.
+     */
+    private final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+
+    /**
+     * The position of the next byte to be read from the first chunk.
+     */
+    private int chunkPosition = 0;
+
+    /**
+     * The number of bytes that have been received and not yet read.
+     */
+    private long bufferedBytes = 0;
+
+    /**
+     * Whether the stream has asked for the connection to stop being read from.
+     */
+    private boolean paused = false;
+
+    /**
+     * Whether the sender has closed the stream.
+     */
+    private boolean finished = false;
+
+    /**
+     * Whether the connection was lost before the sender closed the stream.
+     */
+    private boolean aborted = false;
+
+    /**
+     * Whether the reader has closed the stream.
+     */
+    private boolean closed = false;
+
+    /**
+     * Instantiate the receiving end of a stream. This must be called from the thread that receives the stream's chunks.
+     *
+     * @param onDrained Called once the reader has caught up with a stream that asked for the connection to stop being
+     *                  read from, or null if the receiver waits with <code>awaitDrained</code> instead.
+     */
+    StreamInput(Runnable onDrained) {
+        this.onDrained = onDrained;
+    }
+
+    /**
+     * Buffer a chunk received from the sender. Chunks received after the reader has closed the stream are discarded.
+     *
+     * @param chunk The chunk.
+     * @return Whether the connection should stop being read from until the reader catches up.
+     */
+    synchronized boolean offer(byte[] chunk) {
+        if (closed || aborted || chunk.length == 0) {
+            return false;
+        }
+
+        chunks.add(chunk);
+        bufferedBytes += chunk.length;
+        notifyAll();
+
+        if (!paused && bufferedBytes > Util.maxStreamBufferedBytes) {
+            paused = true;
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Mark the stream as closed by the sender, so that the reader reaches the end of the stream once it has read the
+     * buffered chunks.
+     */
+    synchronized void finish() {
+        finished = true;
+        notifyAll();
+    }
+
+    /**
+     * Mark the stream as cut short by the loss of the connection, so that the reader fails once it has read the
+     * buffered chunks.
+     */
+    synchronized void abort() {
+        aborted = true;
+        notifyAll();
+    }
+
+    /**
+     * Wait for the reader to catch up with a stream that asked for the connection to stop being read from.
+     *
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    synchronized void awaitDrained() throws InterruptedException {
+        while (paused && !aborted) {
+            wait();
+        }
+    }
+
+    /**
+     * Read a byte from the stream, waiting for it to arrive if necessary.
+     *
+     * @return The byte, or -1 if the end of the stream has been reached.
+     * @throws IOException If the stream has been closed, or if the connection was lost before the end of the stream.
+     */
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    /**
+     * Read bytes from the stream, waiting for at least one to arrive if necessary.
+     *
+     * @param b   The buffer to read the bytes into.
+     * @param off The position in the buffer at which to start writing the bytes.
+     * @param len The maximum number of bytes to read.
+     * @return The number of bytes read, or -1 if the end of the stream has been reached.
+     * @throws IOException If the stream has been closed, if the connection was lost before the end of the stream, or if
+     *                     this is called from the thread that receives the stream.
+     */
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+        Objects.checkFromIndexSize(off, len, b.length);
+
+        if (closed) {
+            throw new IOException("stream closed");
+        }
+
+        if (len == 0) {
+            return 0;
+        }
+
+        if (!awaitChunk()) {
+            return -1;
+        }
+
+        byte[] chunk = chunks.peek();
+        int bytesRead = Math.min(len, chunk.length - chunkPosition);
+        System.arraycopy(chunk, chunkPosition, b, off, bytesRead);
+        chunkPosition += bytesRead;
+
+        if (chunkPosition == chunk.length) {
+            chunks.poll();
+            chunkPosition = 0;
+        }
+
+        consumed(bytesRead);
+        return bytesRead;
+    }
+
+    /**
+     * Write the rest of the stream to an output stream as it arrives. Each chunk is written whole, straight from the
+     * buffer it was received into, so copying the stream to a file with <code>Files.copy</code> or to a channel through
+     * <code>Channels.newOutputStream</code> involves no intermediate buffer.
+     *
+     * @param out The output stream to write to.
+     * @return The number of bytes written.
+     * @throws IOException If the stream has been closed, if the connection was lost before the end of the stream, if
+     *                     this is called from the thread that receives the stream, or if an error occurs while writing
+     *                     to the output stream.
+     */
+    @Override
+    public long transferTo(OutputStream out) throws IOException {
+        Objects.requireNonNull(out);
+        long transferred = 0;
+        byte[] chunk;
+
+        while ((chunk = takeChunk()) != null) {
+            out.write(chunk);
+            transferred += chunk.length;
+        }
+
+        return transferred;
+    }
+
+    /**
+     * Get the number of bytes that can be read without waiting.
+     *
+     * @return The number of buffered bytes.
+     */
+    @Override
+    public synchronized int available() {
+        return (int) Math.min(bufferedBytes, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Close the stream, discarding the rest of its chunks as they arrive.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        chunks.clear();
+        bufferedBytes = 0;
+        resume();
+    }
+
+    /**
+     * Take the rest of the first chunk, waiting for it to arrive if necessary.
+     *
+     * @return The unread bytes of the first chunk, or null if the end of the stream has been reached.
+     * @throws IOException If the stream has been closed, if the connection was lost before the end of the stream, or if
+     *                     this is called from the thread that receives the stream.
+     */
+    private synchronized byte[] takeChunk() throws IOException {
+        if (closed) {
+            throw new IOException("stream closed");
+        }
+
+        if (!awaitChunk()) {
+            return null;
+        }
+
+        byte[] chunk = chunks.poll();
+
+        if (chunkPosition > 0) {
+            chunk = Arrays.copyOfRange(chunk, chunkPosition, chunk.length);
+            chunkPosition = 0;
+        }
+
+        consumed(chunk.length);
+        return chunk;
+    }
+
+    /**
+     * Wait for a chunk to arrive, unless one is already buffered.
+     *
+     * @return Whether a chunk is buffered, or false if the end of the stream has been reached.
+     * @throws IOException If the connection was lost before the end of the stream, or if this is called from the thread
+     *                     that receives the stream.
+     */
+    private boolean awaitChunk() throws IOException {
+        while (chunks.isEmpty()) {
+            if (finished) {
+                return false;
+            }
+
+            if (aborted) {
+                throw new IOException("connection lost before the end of the stream");
+            }
+
+            if (Thread.currentThread() == receiver) {
+                throw new IOException("stream cannot be read from the thread that receives it");
+            }
+
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Account for bytes that have been read, letting the connection be read from again once the reader has caught up.
+     *
+     * @param length The number of bytes read.
+     */
+    private void consumed(int length) {
+        bufferedBytes -= length;
+
+        if (bufferedBytes <= Util.maxStreamBufferedBytes / 2) {
+            resume();
+        }
+    }
+
+    /**
+     * Let the connection be read from again, if the stream asked for it to stop being read from.
+     */
+    private void resume() {
+        if (paused) {
+            paused = false;
+            notifyAll();
+
+            if (onDrained != null) {
+                onDrained.run();
+            }
+        }
+    }
+}
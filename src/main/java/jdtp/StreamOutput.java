@@ -0,0 +1,250 @@
+package jdtp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The sending end of a stream, which sends the bytes written to it in chunks of at most
+ * <code>Util.streamChunkSize</code> bytes, each encrypted and framed as a message of its own. The stream is opened as
+ * soon as it is created, and must be closed once all of its bytes have been written. Like other output streams, it is
+ * not safe to write to it from several threads at once.
+ */
+class StreamOutput extends OutputStream {
+    /**
+     * Sends a single frame of the stream.
+     */
+    interface FrameSender {
+        /**
+         * Send a frame.
+         *
+         * @param frameType The frame type.
+         * @param data      The buffer holding the frame data, which is read from its position up to its limit.
+         * @throws JDTPException If the frame cannot be sent.
+         * @throws IOException   If an error occurs while sending the frame.
+         */
+        void send(byte frameType, ByteBuffer data) throws JDTPException, IOException;
+    }
+
+    /**
+     * Sends the stream's frames.
+     */
+    private final FrameSender sender;
+
+    /**
+     * The ID of the stream.
+     */
+    private final long streamID;
+
+    /**
+     * The buffer into which the next chunk is written, following the stream ID.
+     */
+    private final ByteBuffer chunk = ByteBuffer.allocate(Util.streamIDSize + Util.streamChunkSize);
+
+    /**
+     * Whether the stream has been closed.
+     */
+    private boolean closed = false;
+
+    /**
+     * Instantiate the sending end of a stream, and open the stream.
+     *
+     * @param sender   Sends the stream's frames.
+     * @param streamID The ID of the stream.
+     * @throws IOException If the stream cannot be opened.
+     */
+    StreamOutput(FrameSender sender, long streamID) throws IOException {
+        this(sender, streamID, Util.streamOpenFrame, ByteBuffer.allocate(Util.streamIDSize).putLong(0, streamID));
+    }
+
+    /**
+     * Instantiate the sending end of a stream, and open the stream with a message of the given type.
+     *
+     * @param sender        Sends the stream's frames.
+     * @param streamID      The ID of the stream.
+     * @param openFrameType The frame type of the message opening the stream.
+     * @param openData      The buffer holding the data of the message opening the stream, starting with the stream ID.
+     * @throws IOException If the stream cannot be opened.
+     */
+    private StreamOutput(FrameSender sender, long streamID, byte openFrameType, ByteBuffer openData)
+            throws IOException {
+        this.sender = sender;
+        this.streamID = streamID;
+
+        chunk.putLong(streamID);
+        send(openFrameType, openData);
+    }
+
+    /**
+     * Send a file as a stream. The file is memory-mapped a region at a time and sent a chunk at a time, so that only a
+     * single chunk of it is ever held on the heap. The stream is opened with the file's name and size, so that the
+     * receiver can tell it apart from other streams.
+     *
+     * @param sender   Sends the stream's frames.
+     * @param streamID The ID of the stream.
+     * @param path     The path of the file to send.
+     * @throws IOException If the file cannot be read, or if the stream cannot be sent.
+     */
+    static void sendFile(FrameSender sender, long streamID, Path path) throws IOException {
+        Path fileNamePath = path.getFileName();
+        byte[] fileName = (fileNamePath != null ? fileNamePath.toString() : "").getBytes(StandardCharsets.UTF_8);
+
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = file.size();
+            ByteBuffer openData = ByteBuffer.allocate(Util.streamIDSize + 8 + fileName.length);
+            openData.putLong(streamID).putLong(size).put(fileName).flip();
+
+            try (StreamOutput stream = new StreamOutput(sender, streamID, Util.fileOpenFrame, openData)) {
+                for (long position = 0; position < size; position += Util.fileMapSize) {
+                    stream.write(file.map(FileChannel.MapMode.READ_ONLY, position,
+                            Math.min(Util.fileMapSize, size - position)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Write a byte to the stream.
+     *
+     * @param b The byte.
+     * @throws IOException If the stream has been closed, or if a chunk cannot be sent.
+     */
+    @Override
+    public void write(int b) throws IOException {
+        checkOpen();
+        chunk.put((byte) b);
+
+        if (!chunk.hasRemaining()) {
+            sendChunk();
+        }
+    }
+
+    /**
+     * Write bytes to the stream.
+     *
+     * @param b   The buffer holding the bytes.
+     * @param off The position in the buffer at which the bytes start.
+     * @param len The number of bytes to write.
+     * @throws IOException If the stream has been closed, or if a chunk cannot be sent.
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkOpen();
+
+        while (len > 0) {
+            int length = Math.min(len, chunk.remaining());
+            chunk.put(b, off, length);
+            off += length;
+            len -= length;
+
+            if (!chunk.hasRemaining()) {
+                sendChunk();
+            }
+        }
+    }
+
+    /**
+     * Write the bytes remaining in a buffer to the stream, advancing the buffer's position to its limit.
+     *
+     * @param src The buffer holding the bytes.
+     * @throws IOException If the stream has been closed, or if a chunk cannot be sent.
+     */
+    void write(ByteBuffer src) throws IOException {
+        checkOpen();
+
+        while (src.hasRemaining()) {
+            int length = Math.min(src.remaining(), chunk.remaining());
+            ByteBuffer piece = src.duplicate();
+            piece.limit(piece.position() + length);
+            chunk.put(piece);
+            src.position(src.position() + length);
+
+            if (!chunk.hasRemaining()) {
+                sendChunk();
+            }
+        }
+    }
+
+    /**
+     * Send the bytes written so far as a chunk, without waiting for the chunk to fill up.
+     *
+     * @throws IOException If the stream has been closed, or if the chunk cannot be sent.
+     */
+    @Override
+    public void flush() throws IOException {
+        checkOpen();
+
+        if (chunk.position() > Util.streamIDSize) {
+            sendChunk();
+        }
+    }
+
+    /**
+     * Send any remaining bytes, then close the stream, so that the receiver reaches the end of the stream. Closing a
+     * stream that has already been closed does nothing.
+     *
+     * @throws IOException If the remaining bytes cannot be sent.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        flush();
+        closed = true;
+        sendControlFrame(Util.streamCloseFrame);
+    }
+
+    /**
+     * Check that the stream has not been closed.
+     *
+     * @throws IOException If the stream has been closed.
+     */
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("stream closed");
+        }
+    }
+
+    /**
+     * Send the current chunk, and begin the next one.
+     *
+     * @throws IOException If the chunk cannot be sent.
+     */
+    private void sendChunk() throws IOException {
+        chunk.flip();
+        send(Util.streamDataFrame, chunk);
+        chunk.clear();
+        chunk.putLong(streamID);
+    }
+
+    /**
+     * Send a frame carrying nothing but the stream ID.
+     *
+     * @param frameType The frame type.
+     * @throws IOException If the frame cannot be sent.
+     */
+    private void sendControlFrame(byte frameType) throws IOException {
+        send(frameType, ByteBuffer.allocate(Util.streamIDSize).putLong(0, streamID));
+    }
+
+    /**
+     * Send a frame of the stream.
+     *
+     * @param frameType The frame type.
+     * @param data      The buffer holding the frame data.
+     * @throws IOException If the frame cannot be sent.
+     */
+    private void send(byte frameType, ByteBuffer data) throws IOException {
+        try {
+            sender.send(frameType, data);
+        } catch (JDTPException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+}
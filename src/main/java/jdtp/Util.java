@@ -1,10 +1,11 @@
 package jdtp;
 
 import java.io.*;
-import java.lang.reflect.Array;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.zip.Deflater;
 
 /**
  * JDTP utilities.
@@ -15,6 +16,103 @@ class Util {
      */
     public static final int lenSize = 5;
 
+    /**
+     * The frame type of messages carrying an object encoded by the codec.
+     */
+    public static final byte objectFrame = 0;
+
+    /**
+     * The frame type of messages carrying raw bytes.
+     */
+    public static final byte bytesFrame = 1;
+
+    /**
+     * The frame type of messages opening a stream.
+     */
+    public static final byte streamOpenFrame = 2;
+
+    /**
+     * The frame type of messages carrying a chunk of a stream.
+     */
+    public static final byte streamDataFrame = 3;
+
+    /**
+     * The frame type of messages closing a stream.
+     */
+    public static final byte streamCloseFrame = 4;
+
+    /**
+     * The frame type of messages opening a stream that carries a file.
+     */
+    public static final byte fileOpenFrame = 5;
+
+    /**
+     * The frame type of the message carrying the broadcast key from a server to a client.
+     */
+    public static final byte broadcastKeyFrame = 6;
+
+    /**
+     * The flag set in the frame type of messages whose data is compressed.
+     */
+    public static final byte compressedFrameFlag = (byte) 0x80;
+
+    /**
+     * The flag set in the key exchange by a side that wants messages to be compressed.
+     */
+    public static final byte compressionHelloFlag = 0x1;
+
+    /**
+     * The size of the header preceding each side's part of the key exchange: a byte of flags, followed by the
+     * fingerprint of the codec.
+     */
+    public static final int helloHeaderSize = 9;
+
+    /**
+     * The default size, in bytes, from which messages are compressed.
+     */
+    public static final int defaultCompressionThreshold = 1024;
+
+    /**
+     * The default number of bytes held back by write combining before they are written.
+     */
+    public static final int defaultWriteCombiningThreshold = 16384;
+
+    /**
+     * The size of the largest message accepted during the key exchange, before the other side has been authenticated.
+     */
+    public static final int maxHandshakeMessageSize = 65536;
+
+    /**
+     * The default size of the largest message accepted once the key exchange has completed. Larger payloads can be
+     * sent as streams, which are split into small messages.
+     */
+    public static final int defaultMaxMessageSize = 16 << 20;
+
+    /**
+     * The default time, in microseconds, for which write combining holds back a message before it is written.
+     */
+    public static final long defaultWriteCombiningDelay = 100;
+
+    /**
+     * The deflater compression level.
+     */
+    public static final int compressionLevel = Deflater.BEST_SPEED;
+
+    /**
+     * The AES nonce prefix of messages sent by clients.
+     */
+    public static final int clientNoncePrefix = 0;
+
+    /**
+     * The AES nonce prefix of messages sent by servers.
+     */
+    public static final int serverNoncePrefix = 1;
+
+    /**
+     * The AES nonce prefix of messages broadcast by servers under a broadcast key.
+     */
+    public static final int broadcastNoncePrefix = 2;
+
     /**
      * The default port.
      */
@@ -26,72 +124,100 @@ class Util {
     public static final int listenBacklog = 8;
 
     /**
-     * Get the default host.
-     *
-     * @return The default host.
-     * @throws UnknownHostException When the default host cannot be retrieved.
+     * The size of the buffer that data is read from sockets into.
      */
-    public static String defaultHost() throws UnknownHostException {
-        return InetAddress.getLocalHost().getHostName();
-    }
+    public static final int readBufferSize = 65536;
 
     /**
-     * Wrap a <code>byte[]</code> as a <code>Byte[]</code>.
-     *
-     * @param array The primitive byte array.
-     * @return The resulting byte array.
+     * The maximum number of buffers passed to a single gathering write.
      */
-    private static Byte[] wrapByteArray(byte[] array) {
-        if (array == null) {
-            return null;
-        }
+    public static final int maxGatherBuffers = 64;
 
-        final Byte[] result = new Byte[array.length];
+    /**
+     * The capacity of the smallest pooled buffers.
+     */
+    public static final int minPooledBufferSize = 256;
 
-        for (int i = 0; i < array.length; i++) {
-            result[i] = array[i];
-        }
+    /**
+     * The capacity of the largest pooled buffers. Larger buffers are allocated for each message that needs one.
+     */
+    public static final int maxPooledBufferSize = 1 << 20;
 
-        return result;
-    }
+    /**
+     * The maximum number of bytes held by the released buffers of each pooled size class.
+     */
+    public static final int maxPooledBytesPerSizeClass = 4 << 20;
 
     /**
-     * Unwrap a <code>Byte[]</code> as a <code>byte[]</code>.
-     *
-     * @param array The byte array.
-     * @return The primitive byte array.
+     * The length of the stream ID at the start of each stream message.
      */
-    private static byte[] unwrapByteArray(Byte[] array) {
-        if (array == null) {
-            return null;
-        }
+    public static final int streamIDSize = 8;
 
-        final byte[] result = new byte[array.length];
+    /**
+     * The maximum number of bytes sent in each chunk of a stream.
+     */
+    public static final int streamChunkSize = 65536;
 
-        for (int i = 0; i < array.length; i++) {
-            result[i] = array[i];
-        }
+    /**
+     * The size of the regions in which files are memory-mapped to be sent.
+     */
+    public static final long fileMapSize = 16 << 20;
 
-        return result;
-    }
+    /**
+     * The number of received bytes a stream buffers before the connection stops being read from until the stream's
+     * reader catches up.
+     */
+    public static final int maxStreamBufferedBytes = 1 << 20;
 
     /**
-     * Concatenate two arrays.
-     *
-     * @param a   The first array.
-     * @param b   The second array.
-     * @param <T> The array type.
-     * @return The resulting concatenated array.
+     * The number of bytes that may be queued to be written to a client before writing to a stream waits for the queue
+     * to drain.
+     */
+    public static final long maxStreamQueuedBytes = 1 << 20;
+
+    /**
+     * The default number of I/O loops serving a server's clients.
+     */
+    public static final int defaultIOThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * The default time allowed for a client to complete the key exchange, in milliseconds.
      */
-    private static <T> T[] arrayConcat(T[] a, T[] b) {
-        int aLen = a.length;
-        int bLen = b.length;
+    public static final long defaultHandshakeTimeout = 30000;
 
-        T[] c = (T[]) Array.newInstance(a.getClass().getComponentType(), aLen + bLen);
-        System.arraycopy(a, 0, c, 0, aLen);
-        System.arraycopy(b, 0, c, aLen, bLen);
+    /**
+     * The number of threads on which the server performs key exchanges.
+     */
+    public static final int handshakeThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * The default number of key pairs to keep in the pool when key pairs are pooled.
+     */
+    public static final int defaultKeyPairPoolSize = 16;
+
+    /**
+     * The default maximum number of threads on which events are run.
+     */
+    public static final int defaultEventThreads = Runtime.getRuntime().availableProcessors();
 
-        return c;
+    /**
+     * The default maximum number of events waiting to be run.
+     */
+    public static final int defaultEventQueueCapacity = 8192;
+
+    /**
+     * The time an idle event thread is kept alive, in milliseconds.
+     */
+    public static final long eventThreadKeepAlive = 60000;
+
+    /**
+     * Get the default host.
+     *
+     * @return The default host.
+     * @throws UnknownHostException When the default host cannot be retrieved.
+     */
+    public static String defaultHost() throws UnknownHostException {
+        return InetAddress.getLocalHost().getHostName();
     }
 
     /**
@@ -150,6 +276,18 @@ class Util {
         return encodedMessageSize;
     }
 
+    /**
+     * Encode the size portion of a message into a buffer, at the buffer's position.
+     *
+     * @param size   The message size.
+     * @param output The buffer to encode the message size into.
+     */
+    public static void encodeMessageSize(long size, ByteBuffer output) {
+        for (int i = lenSize - 1; i >= 0; i--) {
+            output.put((byte) (size >> (i * 8)));
+        }
+    }
+
     /**
      * Decode the size portion of a message.
      *
@@ -174,8 +312,11 @@ class Util {
      * @return The encoded message.
      */
     public static byte[] encodeMessage(byte[] data) {
-        byte[] encodedMessageSize = encodeMessageSize(data.length);
-        return unwrapByteArray(arrayConcat(wrapByteArray(encodedMessageSize), wrapByteArray(data)));
+        byte[] encodedMessage = new byte[lenSize + data.length];
+        System.arraycopy(encodeMessageSize(data.length), 0, encodedMessage, 0, lenSize);
+        System.arraycopy(data, 0, encodedMessage, lenSize, data.length);
+
+        return encodedMessage;
     }
 
     /**
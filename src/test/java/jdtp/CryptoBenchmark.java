@@ -0,0 +1,100 @@
+package jdtp;
+
+import javax.crypto.Cipher;
+import java.nio.ByteBuffer;
+import java.security.Key;
+import java.security.SecureRandom;
+import java.util.Random;
+
+class CryptoBenchmark {
+    private static final int[] messageSizes = {64, 1024, 16384};
+    private static final long warmupNanos = 2_000_000_000L;
+    private static final long measureNanos = 3_000_000_000L;
+    private static final int decryptRingSize = 4096;
+
+    private interface Operation {
+        void run(byte[] message) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Key key = Crypto.newAESKey();
+        CipherContext serverContext = new CipherContext(key, Util.serverNoncePrefix, Util.clientNoncePrefix);
+        Random random = new Random();
+
+        System.out.printf("%-24s %10s %14s %12s\n", "benchmark", "size", "ops/s", "MB/s");
+
+        for (int messageSize : messageSizes) {
+            byte[] message = new byte[messageSize];
+            random.nextBytes(message);
+            byte[][] encrypted = new byte[decryptRingSize][];
+            CipherContext ringContext = new CipherContext(key, Util.serverNoncePrefix, Util.clientNoncePrefix);
+            for (int i = 0; i < decryptRingSize; i++) {
+                encrypted[i] = ringContext.encrypt(Util.objectFrame, ByteBuffer.wrap(message));
+            }
+            byte[] encryptedWithNonce = Crypto.aesEncrypt(key, message);
+
+            run("encrypt (uncached)", message, m -> uncachedEncrypt(key, m));
+            run("encrypt (cached)", message, m -> serverContext.encrypt(Util.objectFrame, ByteBuffer.wrap(m)));
+            run("decrypt (uncached)", message, m -> Crypto.aesDecrypt(key, encryptedWithNonce));
+            run("decrypt (cached)", message, new CachedDecrypt(key, encrypted));
+        }
+    }
+
+    // Decrypt a ring of messages encrypted in order by a server context, starting a new client context each time the
+    // ring wraps around, since a context rejects messages it has already decrypted
+    private static class CachedDecrypt implements Operation {
+        private final Key key;
+        private final byte[][] encrypted;
+        private CipherContext clientContext = null;
+        private int next = 0;
+
+        CachedDecrypt(Key key, byte[][] encrypted) {
+            this.key = key;
+            this.encrypted = encrypted;
+        }
+
+        @Override
+        public void run(byte[] message) throws Exception {
+            if (next == 0) {
+                clientContext = new CipherContext(key, Util.clientNoncePrefix, Util.serverNoncePrefix);
+            }
+
+            clientContext.decrypt(encrypted[next].clone());
+            next = (next + 1) % encrypted.length;
+        }
+    }
+
+    // Seed a new random source and look up a new cipher for every message, as was done before they were reused
+    private static byte[] uncachedEncrypt(Key key, byte[] message) throws Exception {
+        byte[] nonce = new byte[12];
+        new SecureRandom().nextBytes(nonce);
+        Cipher cipher = Crypto.newAESCipher();
+        return Crypto.aesEncrypt(cipher, key, nonce, Util.objectFrame, ByteBuffer.wrap(message));
+    }
+
+    private static void run(String name, byte[] message, Operation operation) throws Exception {
+        // Warm up
+        long end = System.nanoTime() + warmupNanos;
+        while (System.nanoTime() < end) {
+            operation.run(message);
+        }
+
+        // Measure
+        long ops = 0;
+        long start = System.nanoTime();
+        end = start + measureNanos;
+        long now;
+        do {
+            for (int i = 0; i < 64; i++) {
+                operation.run(message);
+            }
+            ops += 64;
+            now = System.nanoTime();
+        } while (now < end);
+
+        double seconds = (now - start) / 1e9;
+        double opsPerSecond = ops / seconds;
+        double mbPerSecond = opsPerSecond * message.length / (1024 * 1024);
+        System.out.printf("%-24s %10d %14.0f %12.1f\n", name, message.length, opsPerSecond, mbPerSecond);
+    }
+}
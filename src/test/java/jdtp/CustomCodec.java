@@ -0,0 +1,58 @@
+package jdtp;
+
+import java.io.*;
+import java.util.ArrayList;
+
+class CustomCodec implements Codec {
+    private static final byte intTag = 0;
+    private static final byte customTag = 1;
+
+    @Override
+    public byte[] encode(Object data) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+
+        if (data instanceof Integer) {
+            out.writeByte(intTag);
+            out.writeInt((Integer) data);
+        } else if (data instanceof Custom) {
+            Custom custom = (Custom) data;
+            out.writeByte(customTag);
+            out.writeInt(custom.a);
+            out.writeUTF(custom.b);
+            out.writeInt(custom.c.size());
+
+            for (String cVal : custom.c) {
+                out.writeUTF(cVal);
+            }
+        } else {
+            throw new IOException("unsupported type");
+        }
+
+        return bos.toByteArray();
+    }
+
+    @Override
+    public Object decode(byte[] data, int offset, int length) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, offset, length));
+
+        switch (in.readByte()) {
+            case intTag:
+                return in.readInt();
+            case customTag:
+                Custom custom = new Custom();
+                custom.a = in.readInt();
+                custom.b = in.readUTF();
+                custom.c = new ArrayList<>();
+                int cSize = in.readInt();
+
+                for (int i = 0; i < cSize; i++) {
+                    custom.c.add(in.readUTF());
+                }
+
+                return custom;
+            default:
+                throw new IOException("unsupported type");
+        }
+    }
+}
@@ -3,12 +3,37 @@ package jdtp;
 import org.junit.jupiter.api.Test;
 
 import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.*;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 class JDTPTest {
     private final int waitTime = 100;
@@ -56,11 +81,16 @@ class JDTPTest {
         assert Util.decodeMessageSize(new byte[]{(byte) 0x1, (byte) 0x2, (byte) 0x3, (byte) 0x4, (byte) 0x5}) == 4328719365L;
         assert Util.decodeMessageSize(new byte[]{(byte) 0xb, (byte) 0x7, (byte) 0x5, (byte) 0x3, (byte) 0x2}) == 47362409218L;
         assert Util.decodeMessageSize(new byte[]{(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff}) == 1099511627775L;
+
+        // Test message encoding
+        assert Arrays.equals(Util.encodeMessage(new byte[]{}), new byte[]{(byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0});
+        assert Arrays.equals(Util.encodeMessage(new byte[]{(byte) 0x7, (byte) 0x8}), new byte[]{(byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x2, (byte) 0x7, (byte) 0x8});
     }
 
     @Test
     void TestCrypto() throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
-            IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException, IOException {
+            IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException, ShortBufferException,
+            IOException {
         // Test RSA
         byte[] rsaMessage = "Hello, RSA!".getBytes();
         KeyPair keyPair = Crypto.newRSAKeys();
@@ -77,6 +107,18 @@ class JDTPTest {
         assert Arrays.equals(aesDecrypted, aesMessage);
         assert !Arrays.equals(aesEncrypted, aesMessage);
 
+        // Test AES with a reused cipher and counter nonces
+        Cipher cipher = Crypto.newAESCipher();
+        for (long counter = 0; counter < 2; counter++) {
+            byte[] nonce = Crypto.aesNonce(0, counter);
+            byte[] aesEncryptedMessage = Crypto.aesEncrypt(cipher, key, nonce, Util.bytesFrame,
+                    ByteBuffer.wrap(aesMessage));
+            assert aesEncryptedMessage.length == Crypto.aesEncryptedSize(aesMessage.length);
+            byte[] aesDecryptedMessage = Crypto.aesDecrypt(key, aesEncryptedMessage);
+            assert aesDecryptedMessage[0] == Util.bytesFrame;
+            assert Arrays.equals(Arrays.copyOfRange(aesDecryptedMessage, 1, aesDecryptedMessage.length), aesMessage);
+        }
+
         // Test encrypting/decrypting AES key with RSA
         byte[] encodedKey = Util.serialize(key);
         byte[] encryptedKey = Crypto.rsaEncrypt(keyPair.getPublic(), encodedKey);
@@ -85,6 +127,363 @@ class JDTPTest {
         assert !Arrays.equals(encryptedKey, encodedKey);
     }
 
+    @Test
+    void TestCipherContext() throws GeneralSecurityException, JDTPException {
+        // Create both sides of a connection
+        Key key = Crypto.newAESKey();
+        CipherContext clientContext = new CipherContext(key, Util.clientNoncePrefix, Util.serverNoncePrefix);
+        CipherContext serverContext = new CipherContext(key, Util.serverNoncePrefix, Util.clientNoncePrefix);
+        byte[] message = new byte[random.nextInt(256) + 256];
+        random.nextBytes(message);
+
+        // Test encrypting and decrypting in place
+        byte[] encrypted1 = clientContext.encrypt(Util.bytesFrame, ByteBuffer.wrap(message));
+        byte[] encrypted2 = clientContext.encrypt(Util.bytesFrame, ByteBuffer.wrap(message));
+        assert !Arrays.equals(encrypted1, encrypted2);
+        int length = serverContext.decrypt(encrypted1);
+        assert length == message.length + 1;
+        assert encrypted1[0] == Util.bytesFrame;
+        assert Arrays.equals(Arrays.copyOfRange(encrypted1, 1, length), message);
+
+        // Test that tampered messages are rejected
+        encrypted2[encrypted2.length / 2] ^= 1;
+        try {
+            serverContext.decrypt(encrypted2);
+            assert false;
+        } catch (GeneralSecurityException e) {
+            // Expected
+        }
+
+        // Test that replayed and reordered messages are rejected
+        byte[] encrypted4 = clientContext.encrypt(Util.bytesFrame, ByteBuffer.wrap(message));
+        byte[] encrypted5 = clientContext.encrypt(Util.bytesFrame, ByteBuffer.wrap(message));
+        assert serverContext.decrypt(encrypted5.clone()) == message.length + 1;
+        try {
+            serverContext.decrypt(encrypted5);
+            assert false;
+        } catch (GeneralSecurityException e) {
+            // Expected
+        }
+        try {
+            serverContext.decrypt(encrypted4);
+            assert false;
+        } catch (GeneralSecurityException e) {
+            // Expected
+        }
+
+        // Test that messages reflected back to their sender are rejected
+        byte[] encrypted3 = serverContext.encrypt(Util.objectFrame, ByteBuffer.wrap(message));
+        try {
+            serverContext.decrypt(encrypted3.clone());
+            assert false;
+        } catch (GeneralSecurityException e) {
+            // Expected
+        }
+        assert clientContext.decrypt(encrypted3) == message.length + 1;
+
+        // Test encrypting several messages into pooled buffers
+        BufferPool pool = new BufferPool(false);
+        byte[] largeMessage = new byte[Util.maxPooledBufferSize - 64];
+        ByteBuffer[] plaintexts = new ByteBuffer[]{ByteBuffer.wrap(message), ByteBuffer.wrap(message),
+                ByteBuffer.wrap(largeMessage), ByteBuffer.wrap(message)};
+        byte[] frameTypes = new byte[]{Util.bytesFrame, Util.objectFrame, Util.bytesFrame, Util.bytesFrame};
+        List<ByteBuffer> packed = clientContext.encryptMessages(frameTypes, plaintexts, pool);
+        assert packed.size() == 3;
+        FrameDecoder decoder = new FrameDecoder(pool, Util.defaultMaxMessageSize);
+        int[] lengths = new int[]{message.length, message.length, largeMessage.length, message.length};
+        int decoded = 0;
+        for (ByteBuffer buffer : packed) {
+            while (decoder.decode(buffer)) {
+                ByteBuffer frame = decoder.frame();
+                assert serverContext.decrypt(frame.array(), frame.limit()) == lengths[decoded] + 1;
+                assert frame.get(0) == frameTypes[decoded];
+                decoded++;
+                pool.release(frame);
+            }
+            pool.release(buffer);
+        }
+        assert decoded == 4;
+        assert pool.outstanding() == 0;
+    }
+
+    @Test
+    void TestFrameDecoder() throws JDTPException {
+        // Generate messages
+        byte[] message1 = new byte[random.nextInt(256) + 256];
+        random.nextBytes(message1);
+        byte[] message2 = new byte[0];
+        byte[] message3 = new byte[random.nextInt(8192) + 8192];
+        random.nextBytes(message3);
+        byte[] encoded1 = Util.encodeMessage(message1);
+        byte[] encoded2 = Util.encodeMessage(message2);
+        byte[] encoded3 = Util.encodeMessage(message3);
+
+        // Test decoding several messages from a single buffer
+        ByteBuffer coalesced = ByteBuffer.allocate(encoded1.length + encoded2.length + encoded3.length);
+        coalesced.put(encoded1).put(encoded2).put(encoded3).flip();
+        BufferPool pool = new BufferPool(false);
+        FrameDecoder decoder = new FrameDecoder(pool, Util.defaultMaxMessageSize);
+        assert decoder.decode(coalesced);
+        ByteBuffer frame1 = decoder.frame();
+        assert Arrays.equals(Arrays.copyOf(frame1.array(), frame1.limit()), message1);
+        assert decoder.decode(coalesced);
+        ByteBuffer frame2 = decoder.frame();
+        assert Arrays.equals(Arrays.copyOf(frame2.array(), frame2.limit()), message2);
+        assert decoder.decode(coalesced);
+        ByteBuffer frame3 = decoder.frame();
+        assert Arrays.equals(Arrays.copyOf(frame3.array(), frame3.limit()), message3);
+        assert !coalesced.hasRemaining();
+        assert !decoder.decode(coalesced);
+        assert pool.outstanding() == 3;
+        pool.release(frame1);
+        pool.release(frame2);
+        pool.release(frame3);
+
+        // Test decoding a message split across many buffers
+        for (int i = 0; i < encoded3.length - 1; i += 3) {
+            ByteBuffer segment = ByteBuffer.wrap(encoded3, i, Math.min(3, encoded3.length - 1 - i));
+            assert !decoder.decode(segment);
+            assert !segment.hasRemaining();
+        }
+        assert decoder.decode(ByteBuffer.wrap(encoded3, encoded3.length - 1, 1));
+        ByteBuffer frame4 = decoder.frame();
+        assert Arrays.equals(Arrays.copyOf(frame4.array(), frame4.limit()), message3);
+        pool.release(frame4);
+
+        // Test releasing a partially decoded message
+        assert !decoder.decode(ByteBuffer.wrap(encoded1, 0, encoded1.length - 1));
+        assert pool.outstanding() == 1;
+        decoder.release();
+        assert pool.outstanding() == 0;
+        assert decoder.decode(ByteBuffer.wrap(encoded2));
+        pool.release(decoder.frame());
+        assert pool.outstanding() == 0;
+
+        // Test rejecting messages larger than the maximum message size
+        decoder.setMaxMessageSize(message1.length);
+        assert decoder.decode(ByteBuffer.wrap(encoded1));
+        pool.release(decoder.frame());
+        try {
+            decoder.decode(ByteBuffer.wrap(encoded3));
+            assert false;
+        } catch (JDTPException e) {
+            // Expected
+        }
+        try {
+            decoder.release();
+            decoder.decode(ByteBuffer.wrap(Util.encodeMessageSize(1L << 32)));
+            assert false;
+        } catch (JDTPException e) {
+            // Expected
+        }
+        assert pool.outstanding() == 0;
+    }
+
+    @Test
+    void TestBufferPool() {
+        for (boolean direct : new boolean[]{false, true}) {
+            BufferPool pool = new BufferPool(direct);
+
+            // Test acquiring buffers of different sizes
+            ByteBuffer small = pool.acquire(1);
+            assert small.isDirect() == direct;
+            assert small.position() == 0 && small.limit() == 1;
+            assert small.capacity() == Util.minPooledBufferSize;
+            ByteBuffer medium = pool.acquire(Util.minPooledBufferSize * 3);
+            assert medium.limit() == Util.minPooledBufferSize * 3;
+            assert medium.capacity() == Util.minPooledBufferSize * 4;
+            ByteBuffer large = pool.acquire(Util.maxPooledBufferSize + 1);
+            assert large.capacity() == Util.maxPooledBufferSize + 1;
+            assert pool.outstanding() == 3;
+
+            // Test that released buffers are reused
+            medium.position(10);
+            pool.release(medium);
+            ByteBuffer reused = pool.acquire(Util.minPooledBufferSize * 2 + 1);
+            assert reused == medium;
+            assert reused.position() == 0 && reused.limit() == Util.minPooledBufferSize * 2 + 1;
+            pool.release(reused);
+            pool.release(small);
+            pool.release(large);
+            assert pool.outstanding() == 0;
+            assert pool.acquire(Util.maxPooledBufferSize + 1) != large;
+        }
+    }
+
+    @Test
+    void TestStreamInput() throws IOException, InterruptedException {
+        // Test buffering chunks until the reader falls behind
+        StreamInput stream = new StreamInput(null);
+        byte[] chunk = new byte[Util.streamChunkSize];
+        random.nextBytes(chunk);
+        int chunksBeforePause = Util.maxStreamBufferedBytes / chunk.length;
+        for (int i = 0; i < chunksBeforePause; i++) {
+            assert !stream.offer(chunk);
+        }
+        assert stream.offer(chunk);
+        assert !stream.offer(chunk);
+        assert stream.available() == (chunksBeforePause + 2) * chunk.length;
+
+        // Test reading buffered chunks from the receiving thread
+        byte[] buffer = new byte[chunk.length];
+        assert stream.read(buffer, 0, buffer.length) == chunk.length;
+        assert Arrays.equals(buffer, chunk);
+
+        // Test reading the stream to its end from another thread, once the receiver has waited for it to drain
+        long[] totalRead = new long[1];
+        Thread reader = new Thread(() -> {
+            try {
+                int bytesRead;
+                while ((bytesRead = stream.read(buffer, 0, 1000)) >= 0) {
+                    totalRead[0] += bytesRead;
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        reader.start();
+        stream.awaitDrained();
+        stream.offer(chunk);
+        stream.finish();
+        reader.join();
+        assert totalRead[0] == (long) (chunksBeforePause + 2) * chunk.length;
+        assert stream.read() == -1;
+
+        // Test reading a stream cut short by the loss of the connection
+        StreamInput abortedStream = new StreamInput(null);
+        abortedStream.offer(new byte[]{1, 2, 3});
+        abortedStream.abort();
+        assert abortedStream.read(buffer, 0, buffer.length) == 3;
+        try {
+            abortedStream.read();
+            assert false;
+        } catch (IOException e) {
+            // Expected
+        }
+
+        // Test that the receiving thread cannot wait for chunks
+        try {
+            new StreamInput(null).read();
+            assert false;
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    void TestSerialExecutor() throws InterruptedException {
+        // Create a thread pool with a single thread and room for a single queued task, which rejects any more
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(1),
+                new ThreadPoolExecutor.AbortPolicy());
+        SerialExecutor serialExecutor = new SerialExecutor(pool);
+        List<Integer> ran = Collections.synchronizedList(new ArrayList<>());
+
+        // Queue tasks behind a slow task, while the pool's queue is full
+        serialExecutor.execute(() -> {
+            try {
+                Thread.sleep(waitTime);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            ran.add(0);
+        });
+        serialExecutor.execute(() -> {
+            ran.add(1);
+            throw new RuntimeException("task failed");
+        });
+        serialExecutor.execute(() -> ran.add(2));
+        CountDownLatch firstTasksDone = new CountDownLatch(1);
+        pool.execute(() -> {
+            ran.add(-1);
+            firstTasksDone.countDown();
+        });
+        assert firstTasksDone.await(waitTime * 10, TimeUnit.MILLISECONDS);
+        assert ran.equals(List.of(0, 1, 2, -1));
+
+        // Test a task rejected while the pool is saturated
+        SerialExecutor otherSerialExecutor = new SerialExecutor(pool);
+        CountDownLatch slowTaskStarted = new CountDownLatch(1);
+        pool.execute(() -> {
+            slowTaskStarted.countDown();
+            try {
+                Thread.sleep(waitTime);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        assert slowTaskStarted.await(waitTime * 10, TimeUnit.MILLISECONDS);
+        CountDownLatch saturatingTasksDone = new CountDownLatch(1);
+        pool.execute(() -> {
+            ran.add(-2);
+            saturatingTasksDone.countDown();
+        });
+        try {
+            otherSerialExecutor.execute(() -> ran.add(3));
+            assert false;
+        } catch (RejectedExecutionException e) {
+            // Expected
+        }
+        assert saturatingTasksDone.await(waitTime * 10, TimeUnit.MILLISECONDS);
+
+        // Test that both serial executors still run tasks
+        CountDownLatch nextTaskDone = new CountDownLatch(1);
+        serialExecutor.execute(() -> {
+            ran.add(4);
+            nextTaskDone.countDown();
+        });
+        assert nextTaskDone.await(waitTime * 10, TimeUnit.MILLISECONDS);
+        CountDownLatch lastTaskDone = new CountDownLatch(1);
+        otherSerialExecutor.execute(() -> {
+            ran.add(5);
+            lastTaskDone.countDown();
+        });
+        assert lastTaskDone.await(waitTime * 10, TimeUnit.MILLISECONDS);
+        assert ran.equals(List.of(0, 1, 2, -1, -2, 4, 5));
+        pool.shutdown();
+    }
+
+    @Test
+    void TestConnectionRegistry() throws JDTPException, IOException {
+        // Register connections
+        ConnectionRegistry registry = new ConnectionRegistry();
+        int count = random.nextInt(512) + 512;
+        for (long id = 0; id < count; id++) {
+            registry.put(new Connection(id, null, null, null, null));
+        }
+
+        // Test lookups
+        for (long id = 0; id < count; id++) {
+            assert registry.get(id).id == id;
+        }
+        assert registry.get(count) == null;
+        assert registry.get(-1) == null;
+
+        // Test removing every other connection
+        for (long id = 0; id < count; id += 2) {
+            assert registry.remove(id).id == id;
+        }
+        assert registry.remove(0) == null;
+        for (long id = 0; id < count; id++) {
+            assert (registry.get(id) != null) == (id % 2 == 1);
+        }
+
+        // Test iterating, removing connections along the way
+        long[] visited = new long[1];
+        registry.forEach(client -> {
+            assert client.id % 2 == 1;
+            assert registry.remove(client.id) == client;
+            visited[0]++;
+        });
+        assert visited[0] == count / 2;
+        registry.forEach(client -> {
+            assert false;
+        });
+
+        // Test reusing the registry after it has been emptied
+        registry.put(new Connection(count, null, null, null, null));
+        assert registry.get(count).id == count;
+    }
+
     @Test
     void TestServerServe() throws JDTPException, IOException, InterruptedException {
         // Create server
@@ -209,13 +608,9 @@ class JDTPTest {
     }
 
     @Test
-    void TestSendDifferentTypes() throws JDTPException, IOException, InterruptedException {
-        // Messages
-        Object[] serverMessages = new Object[]{false, 11, "Hello from client #0!", 1.61803398, null};
-        Object[] clientMessages = new Object[]{"Hello from the server!", 2.718, 4294967296L, true};
-
+    void TestSendBytes() throws JDTPException, IOException, InterruptedException {
         // Create server
-        TestServer s = new TestServer(serverMessages.length, 1, 1);
+        TestServer s = new TestServer(3, 1, 1);
         s.start();
         String serverHost = s.getHost();
         int serverPort = s.getPort();
@@ -223,19 +618,31 @@ class JDTPTest {
         Thread.sleep(waitTime);
 
         // Create client
-        TestClient c = new TestClient(clientMessages.length, 0);
+        TestClient c = new TestClient(3, 0);
         c.connect(serverHost, serverPort);
         Thread.sleep(waitTime);
 
-        // Send messages
-        for (Object serverMessage : serverMessages) {
-            c.send(serverMessage);
-            Thread.sleep(10);
-        }
-        for (Object clientMessage : clientMessages) {
-            s.send(0, clientMessage);
-            Thread.sleep(10);
-        }
+        // Messages
+        byte[] serverMessage1 = new byte[random.nextInt(256) + 256];
+        random.nextBytes(serverMessage1);
+        byte[] serverMessage2 = new byte[random.nextInt(65536) + 65536];
+        random.nextBytes(serverMessage2);
+        byte[] clientMessage1 = new byte[random.nextInt(256) + 256];
+        random.nextBytes(clientMessage1);
+        byte[] clientMessage2 = new byte[random.nextInt(65536) + 65536];
+        random.nextBytes(clientMessage2);
+
+        // Send raw bytes, from arrays and from a direct buffer with a nonzero position, mixed with objects
+        c.sendBytes(serverMessage1);
+        ByteBuffer serverBuffer = ByteBuffer.allocateDirect(serverMessage2.length + 16);
+        serverBuffer.position(16);
+        serverBuffer.put(serverMessage2).flip().position(16);
+        c.sendBuffer(serverBuffer);
+        assert !serverBuffer.hasRemaining();
+        c.send("Hello, server!");
+        s.sendBytes(0, clientMessage1);
+        s.sendBuffer(0, ByteBuffer.wrap(clientMessage2));
+        s.send(0, "Hello, client #0!");
         Thread.sleep(waitTime);
 
         // Disconnect client
@@ -246,24 +653,42 @@ class JDTPTest {
         s.stop();
         Thread.sleep(waitTime);
 
+        // Check for leaked buffers
+        assert s.outstandingBuffers() == 0;
+        assert c.outstandingBuffers() == 0;
+
         // Check event counts
-        assert s.getReceiveCount() == 0;
-        assert s.getConnectCount() == 0;
-        assert s.getDisconnectCount() == 0;
         assert s.eventsDone();
-        assert Arrays.equals(s.getReceived(), serverMessages);
-        assert Arrays.equals(s.getConnectClientIDs(), new long[]{0});
-        assert Arrays.equals(s.getDisconnectClientIDs(), new long[]{0});
-        assert c.getReceiveCount() == 0;
-        assert c.getDisconnectedCount() == 0;
+        Object[] serverReceived = s.getReceived();
+        assert Arrays.equals((byte[]) serverReceived[0], serverMessage1);
+        assert Arrays.equals((byte[]) serverReceived[1], serverMessage2);
+        assert serverReceived[2].equals("Hello, server!");
+        assert Arrays.equals(s.getReceivedClientIDs(), new long[]{0, 0, 0});
         assert c.eventsDone();
-        assert Arrays.equals(c.getReceived(), clientMessages);
+        Object[] clientReceived = c.getReceived();
+        assert Arrays.equals((byte[]) clientReceived[0], clientMessage1);
+        assert Arrays.equals((byte[]) clientReceived[1], clientMessage2);
+        assert clientReceived[2].equals("Hello, client #0!");
     }
 
     @Test
-    void TestSendLargeMessages() throws JDTPException, IOException, InterruptedException {
+    void TestSendBatch() throws JDTPException, IOException, InterruptedException {
+        // Messages
+        ArrayList<Object> clientMessages = new ArrayList<>();
+        int clientMessageCount = random.nextInt(64) + 64;
+        for (int i = 0; i < clientMessageCount; i++) {
+            clientMessages.add(random.nextInt());
+        }
+        ArrayList<Object> serverMessages = new ArrayList<>();
+        serverMessages.add("Hello, batch!");
+        serverMessages.add("Hello, compression! ".repeat(random.nextInt(1024) + 1024));
+        serverMessages.add(new byte[Util.maxPooledBufferSize + random.nextInt(1024)]);
+        serverMessages.add(123);
+
         // Create server
-        TestServer s = new TestServer(1, 1, 1);
+        TestServer s = new TestServer(clientMessageCount, 1, 1);
+        s.setOrderedDelivery(true);
+        s.setCompression(true);
         s.start();
         String serverHost = s.getHost();
         int serverPort = s.getPort();
@@ -271,17 +696,17 @@ class JDTPTest {
         Thread.sleep(waitTime);
 
         // Create client
-        TestClient c = new TestClient(1, 0);
+        TestClient c = new TestClient(4, 0);
+        c.setOrderedDelivery(true);
+        c.setCompression(true);
         c.connect(serverHost, serverPort);
         Thread.sleep(waitTime);
 
-        // Send messages
-        byte[] largeServerMessage = new byte[random.nextInt(2048) + 2048];
-        random.nextBytes(largeServerMessage);
-        byte[] largeClientMessage = new byte[random.nextInt(1024) + 1024];
-        random.nextBytes(largeClientMessage);
-        c.send(largeServerMessage);
-        s.sendAll(largeClientMessage);
+        // Send batches
+        c.sendBatch(clientMessages);
+        c.sendBatch(List.of());
+        s.sendBatch(0, serverMessages);
+        s.sendBatch(0, List.of());
         Thread.sleep(waitTime);
 
         // Disconnect client
@@ -297,53 +722,67 @@ class JDTPTest {
         assert s.getConnectCount() == 0;
         assert s.getDisconnectCount() == 0;
         assert s.eventsDone();
-        assert Arrays.equals((byte[]) s.getReceived()[0], largeServerMessage);
-        assert Arrays.equals(s.getReceivedClientIDs(), new long[]{0});
-        assert Arrays.equals(s.getConnectClientIDs(), new long[]{0});
-        assert Arrays.equals(s.getDisconnectClientIDs(), new long[]{0});
+        assert Arrays.equals(s.getReceived(), clientMessages.toArray());
         assert c.getReceiveCount() == 0;
         assert c.getDisconnectedCount() == 0;
         assert c.eventsDone();
-        assert Arrays.equals((byte[]) c.getReceived()[0], largeClientMessage);
+        assert Arrays.deepEquals(c.getReceived(), serverMessages.toArray());
+        assert s.outstandingBuffers() == 0;
+        assert c.outstandingBuffers() == 0;
     }
 
     @Test
-    void TestSendingNumerousMessages() throws JDTPException, IOException, InterruptedException {
+    void TestWriteCombining() throws JDTPException, IOException, InterruptedException {
         // Messages
-        int[] serverMessages = new int[random.nextInt(64) + 64];
-        int[] clientMessages = new int[random.nextInt(128) + 128];
-        for (int i = 0; i < serverMessages.length; i++) {
-            serverMessages[i] = random.nextInt();
-        }
-        for (int i = 0; i < clientMessages.length; i++) {
-            clientMessages[i] = random.nextInt();
-        }
-
-        // Create server
-        TestServer s = new TestServer(serverMessages.length, 1, 1);
+        String firstMessage = "Hello, write combining!";
+        String secondMessage = "Hello again!";
+        String largeMessage = "Hello, threshold! ".repeat(random.nextInt(256) + 256);
+        String lastMessage = "Goodbye, write combining!";
+
+        // Create server, which flushes once the delay is up
+        TestServer s = new TestServer(5, 1, 1);
+        s.setOrderedDelivery(true);
+        s.setWriteCombining(true);
+        s.setWriteCombiningDelay(1000);
         s.start();
         String serverHost = s.getHost();
         int serverPort = s.getPort();
         System.out.printf("Server address: %s:%d\n", serverHost, serverPort);
         Thread.sleep(waitTime);
 
-        // Create client
-        TestClient c = new TestClient(clientMessages.length, 0);
+        // Create client, which only flushes explicitly or once the threshold is reached
+        TestClient c = new TestClient(2, 0);
+        c.setOrderedDelivery(true);
+        c.setWriteCombining(true);
+        c.setWriteCombiningThreshold(4096);
+        c.setWriteCombiningDelay(60000000);
         c.connect(serverHost, serverPort);
         Thread.sleep(waitTime);
 
-        // Send messages
-        for (int serverMessage : serverMessages) {
-            c.send(serverMessage);
-            Thread.sleep(10);
-        }
-        for (int clientMessage : clientMessages) {
-            s.sendAll(clientMessage);
-            Thread.sleep(10);
-        }
+        // Send messages that are held back until flushed
+        c.send(firstMessage);
+        c.send(secondMessage);
+        Thread.sleep(waitTime);
+        assert s.getReceived().length == 0;
+        c.flush();
         Thread.sleep(waitTime);
+        assert s.getReceived().length == 2;
 
-        // Disconnect client
+        // Send messages that are held back until the threshold is reached
+        c.send(firstMessage);
+        c.send(largeMessage);
+        Thread.sleep(waitTime);
+        assert s.getReceived().length == 4;
+
+        // Send messages that are held back until the delay is up
+        s.send(0, firstMessage);
+        s.send(0, secondMessage);
+        Thread.sleep(waitTime);
+        assert c.getReceived().length == 2;
+        s.flushAll();
+
+        // Send a message that is flushed when the client disconnects
+        c.send(lastMessage);
         c.disconnect();
         Thread.sleep(waitTime);
 
@@ -356,19 +795,31 @@ class JDTPTest {
         assert s.getConnectCount() == 0;
         assert s.getDisconnectCount() == 0;
         assert s.eventsDone();
-        assert Arrays.equals(Arrays.stream(Arrays.asList(s.getReceived()).toArray(new Integer[0])).mapToInt(x -> x).toArray(), serverMessages);
-        assert Arrays.equals(s.getConnectClientIDs(), new long[]{0});
-        assert Arrays.equals(s.getDisconnectClientIDs(), new long[]{0});
+        assert Arrays.equals(s.getReceived(),
+                new Object[]{firstMessage, secondMessage, firstMessage, largeMessage, lastMessage});
         assert c.getReceiveCount() == 0;
         assert c.getDisconnectedCount() == 0;
         assert c.eventsDone();
-        assert Arrays.equals(Arrays.stream(Arrays.asList(c.getReceived()).toArray(new Integer[0])).mapToInt(x -> x).toArray(), clientMessages);
+        assert Arrays.equals(c.getReceived(), new Object[]{firstMessage, secondMessage});
+        assert s.outstandingBuffers() == 0;
+        assert c.outstandingBuffers() == 0;
     }
 
     @Test
-    void TestSendingCustomTypes() throws JDTPException, IOException, InterruptedException {
+    void TestSendAsync() throws JDTPException, IOException, InterruptedException, ExecutionException {
+        // Messages
+        ArrayList<Object> clientMessages = new ArrayList<>();
+        int clientMessageCount = random.nextInt(16) + 16;
+        for (int i = 0; i < clientMessageCount; i++) {
+            clientMessages.add(random.nextInt());
+        }
+        String lastMessage = "Hello, synchronous send!";
+        String[] serverMessages = {"Hello, async!", "Hello, compression! ".repeat(random.nextInt(1024) + 1024)};
+
         // Create server
-        TestServer s = new TestServer(1, 1, 1);
+        TestServer s = new TestServer(clientMessageCount + 1, 1, 1);
+        s.setOrderedDelivery(true);
+        s.setCompression(true);
         s.start();
         String serverHost = s.getHost();
         int serverPort = s.getPort();
@@ -376,105 +827,174 @@ class JDTPTest {
         Thread.sleep(waitTime);
 
         // Create client
-        TestClient c = new TestClient(1, 0);
+        TestClient c = new TestClient(2, 0);
+        c.setOrderedDelivery(true);
+        c.setCompression(true);
         c.connect(serverHost, serverPort);
         Thread.sleep(waitTime);
 
-        // Send messages
-        Custom serverMessage = new Custom();
-        serverMessage.a = 123;
-        serverMessage.b = "Hello, custom server class!";
-        serverMessage.c.add("first server item");
-        serverMessage.c.add("second server item");
-        Custom clientMessage = new Custom();
-        clientMessage.a = 456;
-        clientMessage.b = "Hello, custom client class!";
-        clientMessage.c.add("#1 client item");
-        clientMessage.c.add("client item #2");
-        clientMessage.c.add("(3) client item");
-        c.send(serverMessage);
-        s.send(0, clientMessage);
+        // Send messages from the client, followed by a synchronous send
+        ArrayList<CompletableFuture<Void>> clientFutures = new ArrayList<>();
+        for (Object message : clientMessages) {
+            clientFutures.add(c.sendAsync(message));
+        }
+        c.send(lastMessage);
+        CompletableFuture.allOf(clientFutures.toArray(new CompletableFuture<?>[0])).get();
+
+        // Send messages from the server
+        CompletableFuture<Void> serverFuture1 = s.sendAsync(0, serverMessages[0]);
+        CompletableFuture<Void> serverFuture2 = s.sendAsync(0, serverMessages[1]);
+        serverFuture1.get();
+        serverFuture2.get();
         Thread.sleep(waitTime);
 
+        // Send to a client that does not exist
+        try {
+            s.sendAsync(1, "Nobody is listening").get();
+            assert false;
+        } catch (ExecutionException e) {
+            assert e.getCause() instanceof JDTPException;
+        }
+
         // Disconnect client
         c.disconnect();
         Thread.sleep(waitTime);
 
+        // Send after disconnecting
+        assert c.sendAsync("Too late").isCompletedExceptionally();
+
         // Stop server
         s.stop();
         Thread.sleep(waitTime);
 
+        // Send after stopping
+        assert s.sendAsync(0, "Too late").isCompletedExceptionally();
+
         // Check event counts
+        clientMessages.add(lastMessage);
         assert s.getReceiveCount() == 0;
         assert s.getConnectCount() == 0;
         assert s.getDisconnectCount() == 0;
         assert s.eventsDone();
-        assert Arrays.equals(s.getReceived(), new Object[]{serverMessage});
-        assert Arrays.equals(s.getReceivedClientIDs(), new long[]{0});
-        assert Arrays.equals(s.getConnectClientIDs(), new long[]{0});
-        assert Arrays.equals(s.getDisconnectClientIDs(), new long[]{0});
+        assert Arrays.equals(s.getReceived(), clientMessages.toArray());
         assert c.getReceiveCount() == 0;
         assert c.getDisconnectedCount() == 0;
         assert c.eventsDone();
-        assert Arrays.equals(c.getReceived(), new Object[]{clientMessage});
+        assert Arrays.equals(c.getReceived(), serverMessages);
+        assert s.outstandingBuffers() == 0;
+        assert c.outstandingBuffers() == 0;
     }
 
     @Test
-    void TestMultipleClients() throws JDTPException, IOException, InterruptedException {
-        // Messages
-        String messageFromClient1 = "Hello from client #1!";
-        String messageFromClient2 = "Goodbye from client #2!";
-        String messageFromServer = "Hello from the server :)";
-
+    void TestStreams() throws JDTPException, IOException, InterruptedException {
         // Create server
-        TestServer s = new TestServer(2, 2, 2);
-        s.replyWithStringLength = true;
+        TestServer s = new TestServer(2, 1, 1);
+        s.setOrderedDelivery(true);
         s.start();
         String serverHost = s.getHost();
         int serverPort = s.getPort();
         System.out.printf("Server address: %s:%d\n", serverHost, serverPort);
         Thread.sleep(waitTime);
 
-        // Create client 1
-        TestClient c1 = new TestClient(2, 0);
-        c1.connect(serverHost, serverPort);
+        // Create client
+        TestClient c = new TestClient(2, 0);
+        c.setOrderedDelivery(true);
+        c.connect(serverHost, serverPort);
         Thread.sleep(waitTime);
 
-        // Check client 1 address info
-        assert c1.getHost().equals(s.getClientHost(0));
-        assert c1.getPort() == s.getClientPort(0);
-        assert c1.getServerHost().equals(s.getHost());
-        assert c1.getServerPort() == s.getPort();
+        // Messages
+        byte[] serverMessage = new byte[random.nextInt(4194304) + 4194304];
+        random.nextBytes(serverMessage);
+        byte[] clientMessage = new byte[random.nextInt(4194304) + 4194304];
+        random.nextBytes(clientMessage);
+
+        // Stream the messages in pieces of varying sizes, alongside an ordinary message
+        OutputStream serverStream = c.sendStream();
+        OutputStream clientStream = s.sendStream(0);
+        for (int i = 0; i < serverMessage.length; ) {
+            int length = Math.min(random.nextInt(100000) + 1, serverMessage.length - i);
+            serverStream.write(serverMessage, i, length);
+            i += length;
+        }
+        serverStream.close();
+        c.send("Hello, server!");
+        clientStream.write(clientMessage[0]);
+        clientStream.flush();
+        clientStream.write(clientMessage, 1, clientMessage.length - 1);
+        clientStream.close();
+        try {
+            clientStream.write(0);
+            assert false;
+        } catch (IOException e) {
+            // Expected
+        }
+        Thread.sleep(waitTime * 10);
 
-        // Create client 2
-        TestClient c2 = new TestClient(2, 0);
-        c2.connect(serverHost, serverPort);
+        // Stream nothing at all
+        OutputStream emptyStream = s.sendStream(0);
+        emptyStream.close();
         Thread.sleep(waitTime);
 
-        // Check client 2 address info
-        assert c2.getHost().equals(s.getClientHost(1));
-        assert c2.getPort() == s.getClientPort(1);
-        assert c2.getServerHost().equals(s.getHost());
-        assert c2.getServerPort() == s.getPort();
-
-        // Send message from client 1
-        c1.send(messageFromClient1);
+        // Disconnect client
+        c.disconnect();
         Thread.sleep(waitTime);
 
-        // Send message from client 2
-        c2.send(messageFromClient2);
+        // Stop server
+        s.stop();
         Thread.sleep(waitTime);
 
-        // Send message to all clients
-        s.sendAll(messageFromServer);
+        // Check for leaked buffers
+        assert s.outstandingBuffers() == 0;
+        assert c.outstandingBuffers() == 0;
+
+        // Check event counts
+        assert s.eventsDone();
+        Object[] serverReceived = s.getReceived();
+        assert Arrays.equals((byte[]) serverReceived[0], serverMessage);
+        assert serverReceived[1].equals("Hello, server!");
+        assert Arrays.equals(s.getReceivedClientIDs(), new long[]{0, 0});
+        assert c.eventsDone();
+        Object[] clientReceived = c.getReceived();
+        assert Arrays.equals((byte[]) clientReceived[0], clientMessage);
+        assert Arrays.equals((byte[]) clientReceived[1], new byte[0]);
+    }
+
+    @Test
+    void TestStreamEvents() throws JDTPException, IOException, InterruptedException {
+        // Messages
+        int numStreams = 4;
+        byte[] message = new byte[random.nextInt(1048576) + 1048576];
+        random.nextBytes(message);
+
+        // Create server with an event thread pool too small to hold every stream event
+        TestServer s = new TestServer(numStreams, 1, 1);
+        s.setEventThreads(1);
+        s.setEventQueueCapacity(1);
+        s.start();
+        String serverHost = s.getHost();
+        int serverPort = s.getPort();
+        System.out.printf("Server address: %s:%d\n", serverHost, serverPort);
         Thread.sleep(waitTime);
 
-        // Disconnect client 1
-        c1.disconnect();
+        // Create client with an event executor that runs events on the thread reading from the server
+        TestClient c = new TestClient(numStreams, 0);
+        c.setEventExecutor(Runnable::run);
+        c.connect(serverHost, serverPort);
         Thread.sleep(waitTime);
 
-        // Disconnect client 2
-        c2.disconnect();
+        // Send several streams each way
+        for (int i = 0; i < numStreams; i++) {
+            try (OutputStream stream = c.sendStream()) {
+                stream.write(message);
+            }
+            try (OutputStream stream = s.sendStream(0)) {
+                stream.write(message);
+            }
+        }
+        Thread.sleep(waitTime * 10);
+
+        // Disconnect client
+        c.disconnect();
         Thread.sleep(waitTime);
 
         // Stop server
@@ -482,54 +1002,1288 @@ class JDTPTest {
         Thread.sleep(waitTime);
 
         // Check event counts
-        assert s.getReceiveCount() == 0;
-        assert s.getConnectCount() == 0;
-        assert s.getDisconnectCount() == 0;
         assert s.eventsDone();
-        assert Arrays.equals(s.getReceived(), new Object[]{messageFromClient1, messageFromClient2});
-        assert Arrays.equals(s.getReceivedClientIDs(), new long[]{0, 1});
-        assert Arrays.equals(s.getConnectClientIDs(), new long[]{0, 1});
-        assert Arrays.equals(s.getDisconnectClientIDs(), new long[]{0, 1});
-        assert c1.getReceiveCount() == 0;
-        assert c1.getDisconnectedCount() == 0;
-        assert c1.eventsDone();
-        assert Arrays.equals(c1.getReceived(), new Object[]{messageFromClient1.length(), messageFromServer});
-        assert c2.getReceiveCount() == 0;
-        assert c2.getDisconnectedCount() == 0;
-        assert c2.eventsDone();
-        assert Arrays.equals(c2.getReceived(), new Object[]{messageFromClient2.length(), messageFromServer});
+        for (Object received : s.getReceived()) {
+            assert Arrays.equals((byte[]) received, message);
+        }
+        assert c.eventsDone();
+        for (Object received : c.getReceived()) {
+            assert Arrays.equals((byte[]) received, message);
+        }
+        assert s.outstandingBuffers() == 0;
+        assert c.outstandingBuffers() == 0;
     }
 
     @Test
-    void TestClientDisconnected() throws JDTPException, IOException, InterruptedException {
+    void TestSendFile() throws JDTPException, IOException, InterruptedException {
+        // Create files
+        Path directory = Files.createTempDirectory("jdtp");
+        Path receiveDirectory = Files.createDirectory(directory.resolve("received"));
+        byte[] serverFileContents = new byte[random.nextInt(4194304) + 4194304];
+        random.nextBytes(serverFileContents);
+        Path serverFile = Files.write(directory.resolve("server.bin"), serverFileContents);
+        byte[] clientFileContents = new byte[random.nextInt(65536) + 65536];
+        random.nextBytes(clientFileContents);
+        Path clientFile = Files.write(directory.resolve("client.bin"), clientFileContents);
+        Path emptyFile = Files.createFile(directory.resolve("empty.bin"));
+
         // Create server
-        TestServer s = new TestServer(0, 1, 0);
-        assert !s.isServing();
+        TestServer s = new TestServer(2, 2, 2);
+        s.receiveFileDirectory = receiveDirectory;
         s.start();
-        assert s.isServing();
         String serverHost = s.getHost();
         int serverPort = s.getPort();
         System.out.printf("Server address: %s:%d\n", serverHost, serverPort);
         Thread.sleep(waitTime);
 
-        // Create client
-        TestClient c = new TestClient(0, 1);
-        assert !c.isConnected();
+        // Create clients, the second of which discards received files by default
+        TestClient c = new TestClient(1, 0);
+        c.receiveFileDirectory = receiveDirectory;
         c.connect(serverHost, serverPort);
-        assert c.isConnected();
+        TestClient c2 = new TestClient(1, 0);
+        c2.connect(serverHost, serverPort);
+        Thread.sleep(waitTime);
+
+        // Send files
+        c.sendFile(serverFile);
+        c.sendFile(emptyFile);
+        s.sendFile(0, clientFile);
+        s.sendFile(1, serverFile);
+        String messageAfterFile = "Hello after the file!";
+        s.send(1, messageAfterFile);
+        Thread.sleep(waitTime * 10);
+
+        // Disconnect clients
+        c.disconnect();
+        c2.disconnect();
         Thread.sleep(waitTime);
 
         // Stop server
-        assert s.isServing();
-        assert c.isConnected();
         s.stop();
-        assert !s.isServing();
         Thread.sleep(waitTime);
-        assert !c.isConnected();
+
+        // Check for leaked buffers
+        assert s.outstandingBuffers() == 0;
+        assert c.outstandingBuffers() == 0;
+        assert c2.outstandingBuffers() == 0;
 
         // Check event counts
-        assert s.getReceiveCount() == 0;
-        assert s.getConnectCount() == 0;
+        assert s.eventsDone();
+        Object[] serverReceived = s.getReceived();
+        Arrays.sort(serverReceived);
+        assert serverReceived[0].equals(receiveDirectory.resolve("empty.bin"));
+        assert serverReceived[1].equals(receiveDirectory.resolve("server.bin"));
+        assert Files.size(receiveDirectory.resolve("empty.bin")) == 0;
+        assert Arrays.equals(Files.readAllBytes(receiveDirectory.resolve("server.bin")), serverFileContents);
+        assert c.eventsDone();
+        assert c.getReceived()[0].equals(receiveDirectory.resolve("client.bin"));
+        assert Arrays.equals(Files.readAllBytes(receiveDirectory.resolve("client.bin")), clientFileContents);
+        assert c2.eventsDone();
+        assert Arrays.equals(c2.getReceived(), new Object[]{messageAfterFile});
+
+        // Clean up files
+        for (Path path : new Path[]{receiveDirectory.resolve("empty.bin"), receiveDirectory.resolve("server.bin"),
+                receiveDirectory.resolve("client.bin"), receiveDirectory, serverFile, clientFile, emptyFile,
+                directory}) {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    void TestSendDifferentTypes() throws JDTPException, IOException, InterruptedException {
+        // Messages
+        Object[] serverMessages = new Object[]{false, 11, "Hello from client #0!", 1.61803398, null};
+        Object[] clientMessages = new Object[]{"Hello from the server!", 2.718, 4294967296L, true};
+
+        // Create server
+        TestServer s = new TestServer(serverMessages.length, 1, 1);
+        s.start();
+        String serverHost = s.getHost();
+        int serverPort = s.getPort();
+        System.out.printf("Server address: %s:%d\n", serverHost, serverPort);
+        Thread.sleep(waitTime);
+
+        // Create client
+        TestClient c = new TestClient(clientMessages.length, 0);
+        c.connect(serverHost, serverPort);
+        Thread.sleep(waitTime);
+
+        // Send messages
+        for (Object serverMessage : serverMessages) {
+            c.send(serverMessage);
+            Thread.sleep(10);
+        }
+        for (Object clientMessage : clientMessages) {
+            s.send(0, clientMessage);
+            Thread.sleep(10);
+        }
+        Thread.sleep(waitTime);
+
+        // Disconnect client
+        c.disconnect();
+        Thread.sleep(waitTime);
+
+        // Stop server
+        s.stop();
+        Thread.sleep(waitTime);
+
+        // Check event counts
+        assert s.getReceiveCount() == 0;
+        assert s.getConnectCount() == 0;
+        assert s.getDisconnectCount() == 0;
+        assert s.eventsDone();
+        assert Arrays.equals(s.getReceived(), serverMessages);
+        assert Arrays.equals(s.getConnectClientIDs(), new long[]{0});
+        assert Arrays.equals(s.getDisconnectClientIDs(), new long[]{0});
+        assert c.getReceiveCount() == 0;
+        assert c.getDisconnectedCount() == 0;
+        assert c.eventsDone();
+        assert Arrays.equals(c.getReceived(), clientMessages);
+    }
+
+    @Test
+    void TestSendLargeMessages() throws JDTPException, IOException, InterruptedException {
+        // Create server
+        TestServer s = new TestServer(1, 1, 1);
+        s.start();
+        String serverHost = s.getHost();
+        int serverPort = s.getPort();
+        System.out.printf("Server address: %s:%d\n", serverHost, serverPort);
+        Thread.sleep(waitTime);
+
+        // Create client
+        TestClient c = new TestClient(1, 0);
+        c.connect(serverHost, serverPort);
+        Thread.sleep(waitTime);
+
+        // Send messages
+        byte[] largeServerMessage = new byte[random.nextInt(2048) + 2048];
+        random.nextBytes(largeServerMessage);
+        byte[] largeClientMessage = new byte[random.nextInt(1024) + 1024];
+        random.nextBytes(largeClientMessage);
+        c.send(largeServerMessage);
+        s.sendAll(largeClientMessage);
+        Thread.sleep(waitTime);
+
+        // Disconnect client
+        c.disconnect();
+        Thread.sleep(waitTime);
+
+        // Stop server
+        s.stop();
+        Thread.sleep(waitTime);
+
+        // Check event counts
+        assert s.getReceiveCount() == 0;
+        assert s.getConnectCount() == 0;
+        assert s.getDisconnectCount() == 0;
+        assert s.eventsDone();
+        assert Arrays.equals((byte[]) s.getReceived()[0], largeServerMessage);
+        assert Arrays.equals(s.getReceivedClientIDs(), new long[]{0});
+        assert Arrays.equals(s.getConnectClientIDs(), new long[]{0});
+        assert Arrays.equals(s.getDisconnectClientIDs(), new long[]{0});
+        assert c.getReceiveCount() == 0;
+        assert c.getDisconnectedCount() == 0;
+        assert c.eventsDone();
+        assert Arrays.equals((byte[]) c.getReceived()[0], largeClientMessage);
+    }
+
+    @Test
+    void TestSendVeryLargeMessages() throws JDTPException, IOException, InterruptedException {
+        // Create server
+        TestServer s = new TestServer(1, 1, 1);
+        s.start();
+        String serverHost = s.getHost();
+        int serverPort = s.getPort();
+        System.out.printf("Server address: %s:%d\n", serverHost, serverPort);
+        Thread.sleep(waitTime);
+
+        // Create client
+        TestClient c = new TestClient(1, 0);
+        c.connect(serverHost, serverPort);
+        Thread.sleep(waitTime);
+
+        // Send messages larger than the socket buffers
+        byte[] largeServerMessage = new byte[random.nextInt(4194304) + 4194304];
+        random.nextBytes(largeServerMessage);
+        byte[] largeClientMessage = new byte[random.nextInt(4194304) + 4194304];
+        random.nextBytes(largeClientMessage);
+        c.send(largeServerMessage);
+        s.send(0, largeClientMessage);
+        Thread.sleep(waitTime * 10);
+
+        // Disconnect client
+        c.disconnect();
+        Thread.sleep(waitTime);
+
+        // Stop server
+        s.stop();
+        Thread.sleep(waitTime);
+
+        // Check event counts
+        assert s.getReceiveCount() == 0;
+        assert s.getConnectCount() == 0;
+        assert s.getDisconnectCount() == 0;
+        assert s.eventsDone();
+        assert Arrays.equals((byte[]) s.getReceived()[0], largeServerMessage);
+        assert Arrays.equals(s.getReceivedClientIDs(), new long[]{0});
+        assert c.getReceiveCount() == 0;
+        assert c.getDisconnectedCount() == 0;
+        assert c.eventsDone();
+        assert Arrays.equals((byte[]) c.getReceived()[0], largeClientMessage);
+    }
+
+    @Test
+    void TestSendingNumerousMessages() throws JDTPException, IOException, InterruptedException {
+        // Messages
+        int[] serverMessages = new int[random.nextInt(64) + 64];
+        int[] clientMessages = new int[random.nextInt(128) + 128];
+        for (int i = 0; i < serverMessages.length; i++) {
+            serverMessages[i] = random.nextInt();
+        }
+        for (int i = 0; i < clientMessages.length; i++) {
+            clientMessages[i] = random.nextInt();
+        }
+
+        // Create server
+        TestServer s = new TestServer(serverMessages.length, 1, 1);
+        s.start();
+        String serverHost = s.getHost();
+        int serverPort = s.getPort();
+        System.out.printf("Server address: %s:%d\n", serverHost, serverPort);
+        Thread.sleep(waitTime);
+
+        // Create client
+        TestClient c = new TestClient(clientMessages.length, 0);
+        c.connect(serverHost, serverPort);
+        Thread.sleep(waitTime);
+
+        // Send messages
+        for (int serverMessage : serverMessages) {
+            c.send(serverMessage);
+            Thread.sleep(10);
+        }
+        for (int clientMessage : clientMessages) {
+            s.sendAll(clientMessage);
+            Thread.sleep(10);
+        }
+        Thread.sleep(waitTime);
+
+        // Disconnect client
+        c.disconnect();
+        Thread.sleep(waitTime);
+
+        // Stop server
+        s.stop();
+        Thread.sleep(waitTime);
+
+        // Check for leaked buffers
+        assert s.outstandingBuffers() == 0;
+        assert c.outstandingBuffers() == 0;
+
+        // Check event counts
+        assert s.getReceiveCount() == 0;
+        assert s.getConnectCount() == 0;
+        assert s.getDisconnectCount() == 0;
+        assert s.eventsDone();
+        assert Arrays.equals(Arrays.stream(Arrays.asList(s.getReceived()).toArray(new Integer[0])).mapToInt(x -> x).toArray(), serverMessages);
+        assert Arrays.equals(s.getConnectClientIDs(), new long[]{0});
+        assert Arrays.equals(s.getDisconnectClientIDs(), new long[]{0});
+        assert c.getReceiveCount() == 0;
+        assert c.getDisconnectedCount() == 0;
+        assert c.eventsDone();
+        assert Arrays.equals(Arrays.stream(Arrays.asList(c.getReceived()).toArray(new Integer[0])).mapToInt(x -> x).toArray(), clientMessages);
+    }
+
+    @Test
+    void TestCompression() throws JDTPException, IOException, InterruptedException, DataFormatException {
+        // Test the compression context
+        CompressionContext compressionContext = new CompressionContext();
+        BufferPool pool = new BufferPool(true);
+        byte[] compressible = "Hello, compression! ".repeat(random.nextInt(1024) + 1024).getBytes();
+        ByteBuffer compressed = compressionContext.compress(ByteBuffer.wrap(compressible), pool);
+        assert compressed.remaining() < compressible.length / 10;
+        byte[] compressedBytes = new byte[compressed.remaining() + 3];
+        compressed.get(compressedBytes, 3, compressedBytes.length - 3);
+        pool.release(compressed);
+        assert Arrays.equals(compressionContext.decompress(compressedBytes, 3, compressedBytes.length - 3,
+                compressible.length), compressible);
+        byte[] incompressible = new byte[random.nextInt(1024) + 1024];
+        random.nextBytes(incompressible);
+        ByteBuffer incompressibleBuffer = ByteBuffer.wrap(incompressible);
+        assert compressionContext.compress(incompressibleBuffer, pool) == null;
+        assert incompressibleBuffer.remaining() == incompressible.length;
+        assert pool.outstanding() == 0;
+        try {
+            compressionContext.decompress(compressedBytes, 3, compressedBytes.length - 13, compressible.length);
+            assert false;
+        } catch (DataFormatException e) {
+            // Expected
+        }
+        try {
+            compressionContext.decompress(compressedBytes, 3, compressedBytes.length - 3, compressible.length - 1);
+            assert false;
+        } catch (DataFormatException e) {
+            // Expected
+        }
+        byte[] understatedBytes = compressedBytes.clone();
+        ByteBuffer.wrap(understatedBytes).putInt(3, compressible.length - 1);
+        try {
+            compressionContext.decompress(understatedBytes, 3, understatedBytes.length - 3, compressible.length);
+            assert false;
+        } catch (DataFormatException e) {
+            // Expected
+        }
+
+        // Messages
+        String largeMessage = "Hello, compression! ".repeat(random.nextInt(1024) + 1024);
+        String smallMessage = "Hello!";
+
+        for (boolean serverCompression : new boolean[]{true, false}) {
+            // Create server
+            TestServer s = new TestServer(4, 1, 1);
+            s.setCompression(serverCompression);
+            s.setCompressionThreshold(64);
+            s.start();
+            String serverHost = s.getHost();
+            int serverPort = s.getPort();
+            System.out.printf("Server address: %s:%d\n", serverHost, serverPort);
+            Thread.sleep(waitTime);
+
+            // Create client
+            TestClient c = new TestClient(4, 0);
+            c.setCompression(true);
+            c.setCompressionThreshold(64);
+            c.connect(serverHost, serverPort);
+            Thread.sleep(waitTime);
+
+            // Send compressible, small and incompressible messages
+            c.send(largeMessage);
+            c.send(smallMessage);
+            c.sendBytes(compressible);
+            c.sendBytes(incompressible);
+            s.send(0, largeMessage);
+            s.send(0, smallMessage);
+            s.sendBytes(0, compressible);
+            s.sendBytes(0, incompressible);
+            Thread.sleep(waitTime);
+
+            // Disconnect client
+            c.disconnect();
+            Thread.sleep(waitTime);
+
+            // Stop server
+            s.stop();
+            Thread.sleep(waitTime);
+
+            // Check for leaked buffers
+            assert s.outstandingBuffers() == 0;
+            assert c.outstandingBuffers() == 0;
+
+            // Check event counts
+            assert s.eventsDone();
+            Object[] serverReceived = s.getReceived();
+            assert serverReceived[0].equals(largeMessage);
+            assert serverReceived[1].equals(smallMessage);
+            assert Arrays.equals((byte[]) serverReceived[2], compressible);
+            assert Arrays.equals((byte[]) serverReceived[3], incompressible);
+            assert c.eventsDone();
+            Object[] clientReceived = c.getReceived();
+            assert clientReceived[0].equals(largeMessage);
+            assert clientReceived[1].equals(smallMessage);
+            assert Arrays.equals((byte[]) clientReceived[2], compressible);
+            assert Arrays.equals((byte[]) clientReceived[3], incompressible);
+        }
+    }
+
+    @Test
+    void TestEventExecutors() throws JDTPException, IOException, InterruptedException {
+        // Messages
+        int[] serverMessages = new int[random.nextInt(512) + 512];
+        int[] clientMessages = new int[random.nextInt(512) + 512];
+        for (int i = 0; i < serverMessages.length; i++) {
+            serverMessages[i] = random.nextInt();
+        }
+        for (int i = 0; i < clientMessages.length; i++) {
+            clientMessages[i] = random.nextInt();
+        }
+
+        // Create server with a custom event executor
+        ExecutorService serverExecutor = Executors.newSingleThreadExecutor();
+        TestServer s = new TestServer(serverMessages.length, 1, 1);
+        s.setEventExecutor(serverExecutor);
+        s.start();
+        String serverHost = s.getHost();
+        int serverPort = s.getPort();
+        System.out.printf("Server address: %s:%d\n", serverHost, serverPort);
+        Thread.sleep(waitTime);
+
+        // Create client with a small event thread pool that blocks when full
+        TestClient c = new TestClient(clientMessages.length, 0);
+        try {
+            c.setEventThreads(0);
+            assert false;
+        } catch (JDTPException e) {
+            // Expected
+        }
+        try {
+            c.setEventQueueCapacity(0);
+            assert false;
+        } catch (JDTPException e) {
+            // Expected
+        }
+        c.setEventThreads(1);
+        c.setEventQueueCapacity(16);
+        c.setEventRejectionHandler((event, executor) -> {
+            try {
+                executor.getQueue().put(event);
+            } catch (InterruptedException e) {
+                throw new RejectedExecutionException(e);
+            }
+        });
+        c.connect(serverHost, serverPort);
+        Thread.sleep(waitTime);
+
+        // Send messages without waiting between them
+        for (int serverMessage : serverMessages) {
+            c.send(serverMessage);
+        }
+        for (int clientMessage : clientMessages) {
+            s.send(0, clientMessage);
+        }
+        Thread.sleep(waitTime * 5);
+
+        // Disconnect client
+        c.disconnect();
+        Thread.sleep(waitTime);
+
+        // Stop server
+        s.stop();
+        serverExecutor.shutdown();
+        Thread.sleep(waitTime);
+
+        // Check event counts
+        assert s.eventsDone();
+        assert Arrays.equals(Arrays.stream(Arrays.asList(s.getReceived()).toArray(new Integer[0])).mapToInt(x -> x).toArray(), serverMessages);
+        assert Arrays.equals(s.getConnectClientIDs(), new long[]{0});
+        assert Arrays.equals(s.getDisconnectClientIDs(), new long[]{0});
+        assert c.eventsDone();
+        assert Arrays.equals(Arrays.stream(Arrays.asList(c.getReceived()).toArray(new Integer[0])).mapToInt(x -> x).toArray(), clientMessages);
+    }
+
+    @Test
+    void TestEventExceptions() throws JDTPException, IOException, InterruptedException {
+        // Messages
+        int[] messages = new int[random.nextInt(16) + 16];
+        for (int i = 0; i < messages.length; i++) {
+            messages[i] = random.nextInt();
+        }
+        String lastMessage = "Hello from the second client!";
+
+        // Create server with a single I/O thread, a tiny event thread pool, and an event method that throws
+        TestServer s = new TestServer(messages.length + 1, 2, 2);
+        s.throwInReceive = true;
+        s.setIOThreads(1);
+        try {
+            s.setEventThreads(0);
+            assert false;
+        } catch (JDTPException e) {
+            // Expected
+        }
+        try {
+            s.setEventQueueCapacity(0);
+            assert false;
+        } catch (JDTPException e) {
+            // Expected
+        }
+        s.setEventThreads(1);
+        s.setEventQueueCapacity(1);
+        s.start();
+        String serverHost = s.getHost();
+        int serverPort = s.getPort();
+        System.out.printf("Server address: %s:%d\n", serverHost, serverPort);
+        Thread.sleep(waitTime);
+
+        // Create clients, which share the I/O thread
+        TestClient c1 = new TestClient(0, 0);
+        c1.connect(serverHost, serverPort);
+        Thread.sleep(waitTime);
+        TestClient c2 = new TestClient(0, 0);
+        c2.connect(serverHost, serverPort);
+        Thread.sleep(waitTime);
+
+        // Flood the event queue, then send from the other client
+        for (int message : messages) {
+            c1.send(message);
+        }
+        Thread.sleep(waitTime);
+        c2.send(lastMessage);
+        Thread.sleep(waitTime);
+
+        // Disconnect clients
+        c1.disconnect();
+        c2.disconnect();
+        Thread.sleep(waitTime);
+
+        // Stop server
+        s.stop();
+        Thread.sleep(waitTime);
+
+        // Check event counts
+        assert s.eventsDone();
+        assert s.getReceived()[messages.length].equals(lastMessage);
+        assert c1.eventsDone();
+        assert c2.eventsDone();
+    }
+
+    @Test
+    void TestOrderedDelivery() throws JDTPException, IOException, InterruptedException {
+        // Messages
+        int[] serverMessages = new int[random.nextInt(512) + 512];
+        int[] clientMessages = new int[random.nextInt(512) + 512];
+        for (int i = 0; i < serverMessages.length; i++) {
+            serverMessages[i] = random.nextInt();
+        }
+        for (int i = 0; i < clientMessages.length; i++) {
+            clientMessages[i] = random.nextInt();
+        }
+
+        // Create server with ordered delivery on several event threads
+        TestServer s = new TestServer(serverMessages.length, 1, 1);
+        s.setEventThreads(4);
+        s.setOrderedDelivery(true);
+        s.start();
+        String serverHost = s.getHost();
+        int serverPort = s.getPort();
+        System.out.printf("Server address: %s:%d\n", serverHost, serverPort);
+        Thread.sleep(waitTime);
+
+        // Create client with ordered delivery on several event threads
+        TestClient c = new TestClient(clientMessages.length, 0);
+        c.setEventThreads(4);
+        c.setOrderedDelivery(true);
+        c.connect(serverHost, serverPort);
+        Thread.sleep(waitTime);
+
+        // Send messages without waiting between them
+        for (int serverMessage : serverMessages) {
+            c.send(serverMessage);
+        }
+        for (int clientMessage : clientMessages) {
+            s.send(0, clientMessage);
+        }
+        Thread.sleep(waitTime * 5);
+
+        // Disconnect client
+        c.disconnect();
+        Thread.sleep(waitTime);
+
+        // Stop server
+        s.stop();
+        Thread.sleep(waitTime);
+
+        // Check events were delivered in order
+        assert s.eventsDone();
+        assert Arrays.equals(Arrays.stream(Arrays.asList(s.getReceived()).toArray(new Integer[0])).mapToInt(x -> x).toArray(), serverMessages);
+        assert Arrays.equals(s.getConnectClientIDs(), new long[]{0});
+        assert Arrays.equals(s.getDisconnectClientIDs(), new long[]{0});
+        assert c.eventsDone();
+        assert Arrays.equals(Arrays.stream(Arrays.asList(c.getReceived()).toArray(new Integer[0])).mapToInt(x -> x).toArray(), clientMessages);
+    }
+
+    @Test
+    void TestVirtualThreads() throws JDTPException, IOException, InterruptedException {
+        // Virtual threads require Java 21 or later
+        assumeTrue(EventDispatcher.virtualThreadsSupported());
+
+        // Create server
+        TestServer s = new TestServer(1, 1, 1);
+        s.setVirtualThreads(true);
+        s.start();
+        String serverHost = s.getHost();
+        int serverPort = s.getPort();
+        System.out.printf("Server address: %s:%d\n", serverHost, serverPort);
+        Thread.sleep(waitTime);
+
+        // Create client
+        TestClient c = new TestClient(1, 0);
+        c.setVirtualThreads(true);
+        c.connect(serverHost, serverPort);
+        Thread.sleep(waitTime);
+
+        // Send messages
+        String serverMessage = "Hello, server!";
+        String clientMessage = "Hello, client #0!";
+        c.send(serverMessage);
+        s.send(0, clientMessage);
+        Thread.sleep(waitTime);
+
+        // Disconnect client
+        c.disconnect();
+        Thread.sleep(waitTime);
+
+        // Stop server
+        s.stop();
+        Thread.sleep(waitTime);
+
+        // Check event counts
+        assert s.eventsDone();
+        assert Arrays.equals(s.getReceived(), new Object[]{serverMessage});
+        assert Arrays.equals(s.getConnectClientIDs(), new long[]{0});
+        assert Arrays.equals(s.getDisconnectClientIDs(), new long[]{0});
+        assert c.eventsDone();
+        assert Arrays.equals(c.getReceived(), new Object[]{clientMessage});
+    }
+
+    @Test
+    void TestSendingCustomTypes() throws JDTPException, IOException, InterruptedException {
+        // Create server
+        TestServer s = new TestServer(1, 1, 1);
+        s.start();
+        String serverHost = s.getHost();
+        int serverPort = s.getPort();
+        System.out.printf("Server address: %s:%d\n", serverHost, serverPort);
+        Thread.sleep(waitTime);
+
+        // Create client
+        TestClient c = new TestClient(1, 0);
+        c.connect(serverHost, serverPort);
+        Thread.sleep(waitTime);
+
+        // Send messages
+        Custom serverMessage = new Custom();
+        serverMessage.a = 123;
+        serverMessage.b = "Hello, custom server class!";
+        serverMessage.c.add("first server item");
+        serverMessage.c.add("second server item");
+        Custom clientMessage = new Custom();
+        clientMessage.a = 456;
+        clientMessage.b = "Hello, custom client class!";
+        clientMessage.c.add("#1 client item");
+        clientMessage.c.add("client item #2");
+        clientMessage.c.add("(3) client item");
+        c.send(serverMessage);
+        s.send(0, clientMessage);
+        Thread.sleep(waitTime);
+
+        // Disconnect client
+        c.disconnect();
+        Thread.sleep(waitTime);
+
+        // Stop server
+        s.stop();
+        Thread.sleep(waitTime);
+
+        // Check event counts
+        assert s.getReceiveCount() == 0;
+        assert s.getConnectCount() == 0;
+        assert s.getDisconnectCount() == 0;
+        assert s.eventsDone();
+        assert Arrays.equals(s.getReceived(), new Object[]{serverMessage});
+        assert Arrays.equals(s.getReceivedClientIDs(), new long[]{0});
+        assert Arrays.equals(s.getConnectClientIDs(), new long[]{0});
+        assert Arrays.equals(s.getDisconnectClientIDs(), new long[]{0});
+        assert c.getReceiveCount() == 0;
+        assert c.getDisconnectedCount() == 0;
+        assert c.eventsDone();
+        assert Arrays.equals(c.getReceived(), new Object[]{clientMessage});
+    }
+
+    @Test
+    void TestCustomCodec() throws JDTPException, IOException, InterruptedException {
+        // Create server with a custom codec
+        TestServer s = new TestServer(new CustomCodec(), 2, 1, 1);
+        s.start();
+        String serverHost = s.getHost();
+        int serverPort = s.getPort();
+        System.out.printf("Server address: %s:%d\n", serverHost, serverPort);
+        Thread.sleep(waitTime);
+
+        // Create client with a custom codec
+        TestClient c = new TestClient(new CustomCodec(), 2, 0);
+        c.connect(serverHost, serverPort);
+        Thread.sleep(waitTime);
+
+        // Send messages
+        Custom serverMessage = new Custom();
+        serverMessage.a = 123;
+        serverMessage.b = "Hello, custom server class!";
+        serverMessage.c.add("first server item");
+        serverMessage.c.add("second server item");
+        Custom clientMessage = new Custom();
+        clientMessage.a = 456;
+        clientMessage.b = "Hello, custom client class!";
+        clientMessage.c.add("#1 client item");
+        clientMessage.c.add("client item #2");
+        clientMessage.c.add("(3) client item");
+        c.send(serverMessage);
+        c.send(789);
+        s.send(0, clientMessage);
+        s.send(0, 1011);
+        Thread.sleep(waitTime);
+
+        // Disconnect client
+        c.disconnect();
+        Thread.sleep(waitTime);
+
+        // Stop server
+        s.stop();
+        Thread.sleep(waitTime);
+
+        // Check event counts
+        assert s.getReceiveCount() == 0;
+        assert s.getConnectCount() == 0;
+        assert s.getDisconnectCount() == 0;
+        assert s.eventsDone();
+        assert Arrays.equals(s.getReceived(), new Object[]{serverMessage, 789});
+        assert Arrays.equals(s.getReceivedClientIDs(), new long[]{0, 0});
+        assert Arrays.equals(s.getConnectClientIDs(), new long[]{0});
+        assert Arrays.equals(s.getDisconnectClientIDs(), new long[]{0});
+        assert c.getReceiveCount() == 0;
+        assert c.getDisconnectedCount() == 0;
+        assert c.eventsDone();
+        assert Arrays.equals(c.getReceived(), new Object[]{clientMessage, 1011});
+    }
+
+    @Test
+    void TestRegisteredClasses() throws JDTPException, IOException, InterruptedException {
+        // Test registered classes in the codec
+        JavaSerializationCodec defaultCodec = new JavaSerializationCodec();
+        JavaSerializationCodec registeredCodec = new JavaSerializationCodec(Custom.class, Integer.class, Number.class);
+        Custom custom = new Custom();
+        custom.a = 123;
+        custom.b = "Hello, registered class!";
+        custom.c.add("registered item");
+        byte[] customEncoded = registeredCodec.encode(custom);
+        assert customEncoded.length < defaultCodec.encode(custom).length;
+        assert custom.equals(registeredCodec.decode(customEncoded, 0, customEncoded.length));
+        byte[] integerEncoded = registeredCodec.encode(456);
+        assert integerEncoded.length < defaultCodec.encode(456).length;
+        assert registeredCodec.decode(integerEncoded, 0, integerEncoded.length).equals(456);
+        byte[] unregisteredEncoded = registeredCodec.encode(new ArrayList<>(List.of(7L, 8L)));
+        assert registeredCodec.decode(unregisteredEncoded, 0, unregisteredEncoded.length).equals(List.of(7L, 8L));
+        assert registeredCodec.fingerprint() == new JavaSerializationCodec(Custom.class, Integer.class, Number.class)
+                .fingerprint();
+        assert registeredCodec.fingerprint() != new JavaSerializationCodec(Integer.class, Number.class, Custom.class)
+                .fingerprint();
+        assert registeredCodec.fingerprint() != defaultCodec.fingerprint();
+        try {
+            new JavaSerializationCodec(Object.class);
+            assert false;
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        try {
+            new JavaSerializationCodec(Custom.class, Custom.class);
+            assert false;
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+
+        // Create server with registered classes
+        TestServer s = new TestServer(new JavaSerializationCodec(Custom.class, Integer.class, Number.class), 2, 1, 1);
+        s.start();
+        String serverHost = s.getHost();
+        int serverPort = s.getPort();
+        System.out.printf("Server address: %s:%d\n", serverHost, serverPort);
+        Thread.sleep(waitTime);
+
+        // Create client with the same registered classes
+        TestClient c = new TestClient(new JavaSerializationCodec(Custom.class, Integer.class, Number.class), 2, 0);
+        c.connect(serverHost, serverPort);
+        Thread.sleep(waitTime);
+
+        // Fail to connect a client with different registered classes
+        TestClient c2 = new TestClient(new JavaSerializationCodec(Custom.class), 0, 0);
+        try {
+            c2.connect(serverHost, serverPort);
+            assert false;
+        } catch (JDTPException e) {
+            // Expected
+        }
+        Thread.sleep(waitTime);
+
+        // Send messages
+        c.send(custom);
+        c.send(789);
+        s.send(0, custom);
+        s.send(0, "Hello, unregistered class!");
+        Thread.sleep(waitTime);
+
+        // Disconnect client
+        c.disconnect();
+        Thread.sleep(waitTime);
+
+        // Stop server
+        s.stop();
+        Thread.sleep(waitTime);
+
+        // Check event counts
+        assert s.getReceiveCount() == 0;
+        assert s.getConnectCount() == 0;
+        assert s.getDisconnectCount() == 0;
+        assert s.eventsDone();
+        assert Arrays.equals(s.getReceived(), new Object[]{custom, 789});
+        assert Arrays.equals(s.getReceivedClientIDs(), new long[]{0, 0});
+        assert Arrays.equals(s.getConnectClientIDs(), new long[]{0});
+        assert Arrays.equals(s.getDisconnectClientIDs(), new long[]{0});
+        assert c.getReceiveCount() == 0;
+        assert c.getDisconnectedCount() == 0;
+        assert c.eventsDone();
+        assert Arrays.equals(c.getReceived(), new Object[]{custom, "Hello, unregistered class!"});
+        assert c2.eventsDone();
+        assert s.outstandingBuffers() == 0;
+    }
+
+    @Test
+    void TestMultipleClients() throws JDTPException, IOException, InterruptedException {
+        // Messages
+        String messageFromClient1 = "Hello from client #1!";
+        String messageFromClient2 = "Goodbye from client #2!";
+        String messageFromServer = "Hello from the server :)";
+
+        // Create server
+        TestServer s = new TestServer(2, 2, 2);
+        s.replyWithStringLength = true;
+        s.start();
+        String serverHost = s.getHost();
+        int serverPort = s.getPort();
+        System.out.printf("Server address: %s:%d\n", serverHost, serverPort);
+        Thread.sleep(waitTime);
+
+        // Create client 1
+        TestClient c1 = new TestClient(2, 0);
+        c1.connect(serverHost, serverPort);
+        Thread.sleep(waitTime);
+
+        // Check client 1 address info
+        assert c1.getHost().equals(s.getClientHost(0));
+        assert c1.getPort() == s.getClientPort(0);
+        assert c1.getServerHost().equals(s.getHost());
+        assert c1.getServerPort() == s.getPort();
+
+        // Create client 2
+        TestClient c2 = new TestClient(2, 0);
+        c2.connect(serverHost, serverPort);
+        Thread.sleep(waitTime);
+
+        // Check client 2 address info
+        assert c2.getHost().equals(s.getClientHost(1));
+        assert c2.getPort() == s.getClientPort(1);
+        assert c2.getServerHost().equals(s.getHost());
+        assert c2.getServerPort() == s.getPort();
+
+        // Send message from client 1
+        c1.send(messageFromClient1);
+        Thread.sleep(waitTime);
+
+        // Send message from client 2
+        c2.send(messageFromClient2);
+        Thread.sleep(waitTime);
+
+        // Send message to all clients
+        s.sendAll(messageFromServer);
+        Thread.sleep(waitTime);
+
+        // Disconnect client 1
+        c1.disconnect();
+        Thread.sleep(waitTime);
+
+        // Disconnect client 2
+        c2.disconnect();
+        Thread.sleep(waitTime);
+
+        // Stop server
+        s.stop();
+        Thread.sleep(waitTime);
+
+        // Check event counts
+        assert s.getReceiveCount() == 0;
+        assert s.getConnectCount() == 0;
+        assert s.getDisconnectCount() == 0;
+        assert s.eventsDone();
+        assert Arrays.equals(s.getReceived(), new Object[]{messageFromClient1, messageFromClient2});
+        assert Arrays.equals(s.getReceivedClientIDs(), new long[]{0, 1});
+        assert Arrays.equals(s.getConnectClientIDs(), new long[]{0, 1});
+        assert Arrays.equals(s.getDisconnectClientIDs(), new long[]{0, 1});
+        assert c1.getReceiveCount() == 0;
+        assert c1.getDisconnectedCount() == 0;
+        assert c1.eventsDone();
+        assert Arrays.equals(c1.getReceived(), new Object[]{messageFromClient1.length(), messageFromServer});
+        assert c2.getReceiveCount() == 0;
+        assert c2.getDisconnectedCount() == 0;
+        assert c2.eventsDone();
+        assert Arrays.equals(c2.getReceived(), new Object[]{messageFromClient2.length(), messageFromServer});
+    }
+
+    @Test
+    void TestBroadcastEncryption() throws JDTPException, IOException, InterruptedException {
+        // Test shared outbound messages
+        BufferPool pool = new BufferPool(true);
+        OutboundMessage shared = OutboundMessage.shared(pool.acquire(100));
+        OutboundMessage first = shared.share();
+        OutboundMessage second = shared.share();
+        first.buffer.position(first.size());
+        assert second.buffer.remaining() == 100;
+        shared.release(pool);
+        first.release(pool);
+        assert pool.outstanding() == 1;
+        second.release(pool);
+        assert pool.outstanding() == 0;
+
+        // Messages
+        String directMessage = "Hello, client #1!";
+        String broadcastMessage = "Hello, everyone! ".repeat(random.nextInt(64) + 64);
+        Custom broadcastObject = new Custom();
+        broadcastObject.a = 123;
+        broadcastObject.b = "Hello, broadcast!";
+
+        // Create server with broadcast encryption
+        TestServer s = new TestServer(0, 2, 2);
+        s.setBroadcastEncryption(true);
+        s.setCompression(true);
+        s.setCompressionThreshold(0);
+        s.start();
+        String serverHost = s.getHost();
+        int serverPort = s.getPort();
+        System.out.printf("Server address: %s:%d\n", serverHost, serverPort);
+        Thread.sleep(waitTime);
+
+        // Create clients
+        TestClient c1 = new TestClient(3, 0);
+        c1.setOrderedDelivery(true);
+        c1.setCompression(true);
+        c1.connect(serverHost, serverPort);
+        TestClient c2 = new TestClient(2, 0);
+        c2.setOrderedDelivery(true);
+        c2.connect(serverHost, serverPort);
+        Thread.sleep(waitTime);
+
+        // Send a message to one client, then broadcast messages to all clients
+        s.send(0, directMessage);
+        s.sendAll(broadcastMessage);
+        s.sendAll(broadcastObject);
+        Thread.sleep(waitTime);
+
+        // Disconnect clients
+        c1.disconnect();
+        c2.disconnect();
+        Thread.sleep(waitTime);
+
+        // Stop server
+        s.stop();
+        Thread.sleep(waitTime);
+
+        // Check event counts
+        assert s.getReceiveCount() == 0;
+        assert s.getConnectCount() == 0;
+        assert s.getDisconnectCount() == 0;
+        assert s.eventsDone();
+        assert c1.getReceiveCount() == 0;
+        assert c1.getDisconnectedCount() == 0;
+        assert c1.eventsDone();
+        assert Arrays.equals(c1.getReceived(), new Object[]{directMessage, broadcastMessage, broadcastObject});
+        assert c2.getReceiveCount() == 0;
+        assert c2.getDisconnectedCount() == 0;
+        assert c2.eventsDone();
+        assert Arrays.equals(c2.getReceived(), new Object[]{broadcastMessage, broadcastObject});
+        assert s.outstandingBuffers() == 0;
+    }
+
+    @Test
+    void TestTopics() throws JDTPException, IOException, InterruptedException {
+        // Messages
+        String news1 = "Hello, news subscribers!";
+        String sports1 = "Hello, sports subscribers!";
+        String news2 = "More news!";
+        String sports2 = "More sports!";
+
+        // Create server
+        TestServer s = new TestServer(0, 3, 3);
+        s.start();
+        String serverHost = s.getHost();
+        int serverPort = s.getPort();
+        System.out.printf("Server address: %s:%d\n", serverHost, serverPort);
+        Thread.sleep(waitTime);
+
+        // Create clients
+        TestClient c1 = new TestClient(2, 0);
+        c1.setOrderedDelivery(true);
+        c1.connect(serverHost, serverPort);
+        Thread.sleep(waitTime);
+        TestClient c2 = new TestClient(3, 0);
+        c2.setOrderedDelivery(true);
+        c2.connect(serverHost, serverPort);
+        Thread.sleep(waitTime);
+        TestClient c3 = new TestClient(1, 0);
+        c3.setOrderedDelivery(true);
+        c3.connect(serverHost, serverPort);
+        Thread.sleep(waitTime);
+
+        // Subscribe clients to topics
+        s.subscribe(0, "news");
+        s.subscribe(1, "news");
+        s.subscribe(1, "sports");
+        s.subscribe(1, "sports");
+        s.subscribe(2, "sports");
+        try {
+            s.subscribe(3, "news");
+            assert false;
+        } catch (JDTPException e) {
+            // Expected
+        }
+
+        // Publish to topics
+        s.publish("news", news1);
+        s.publish("sports", sports1);
+        s.publish("weather", "Nobody is listening");
+        Thread.sleep(waitTime);
+
+        // Unsubscribe a client, and disconnect another
+        s.unsubscribe(1, "news");
+        s.unsubscribe(1, "weather");
+        c3.disconnect();
+        Thread.sleep(waitTime);
+
+        // Publish to topics again
+        s.publish("news", news2);
+        s.publish("sports", sports2);
+        Thread.sleep(waitTime);
+
+        // Disconnect clients
+        c1.disconnect();
+        c2.disconnect();
+        Thread.sleep(waitTime);
+
+        // Stop server
+        s.stop();
+        Thread.sleep(waitTime);
+
+        // Check event counts
+        assert s.getReceiveCount() == 0;
+        assert s.getConnectCount() == 0;
+        assert s.getDisconnectCount() == 0;
+        assert s.eventsDone();
+        assert c1.getReceiveCount() == 0;
+        assert c1.eventsDone();
+        assert Arrays.equals(c1.getReceived(), new Object[]{news1, news2});
+        assert c2.getReceiveCount() == 0;
+        assert c2.eventsDone();
+        assert Arrays.equals(c2.getReceived(), new Object[]{news1, sports1, sports2});
+        assert c3.getReceiveCount() == 0;
+        assert c3.eventsDone();
+        assert Arrays.equals(c3.getReceived(), new Object[]{sports1});
+        assert s.outstandingBuffers() == 0;
+    }
+
+    @Test
+    void TestIOThreads() throws JDTPException, IOException, InterruptedException {
+        // Create server with several I/O loops
+        int numClients = 5;
+        TestServer s = new TestServer(numClients, numClients, numClients);
+        s.replyWithStringLength = true;
+        s.setIOThreads(3);
+        s.setKeyPairMode(KeyPairMode.LONG_LIVED);
+        s.start();
+        String serverHost = s.getHost();
+        int serverPort = s.getPort();
+        System.out.printf("Server address: %s:%d\n", serverHost, serverPort);
+        Thread.sleep(waitTime);
+
+        // Create clients, which are spread across the I/O loops
+        TestClient[] clients = new TestClient[numClients];
+        for (int i = 0; i < numClients; i++) {
+            clients[i] = new TestClient(1, 0);
+            clients[i].connect(serverHost, serverPort);
+        }
+        Thread.sleep(waitTime);
+
+        // Send messages
+        String[] messages = new String[numClients];
+        for (int i = 0; i < numClients; i++) {
+            messages[i] = "Hello from client #" + "!".repeat(i + 1);
+            clients[i].send(messages[i]);
+            Thread.sleep(10);
+        }
+        Thread.sleep(waitTime);
+
+        // Disconnect clients
+        for (TestClient c : clients) {
+            c.disconnect();
+            Thread.sleep(10);
+        }
+        Thread.sleep(waitTime);
+
+        // Stop server
+        s.stop();
+        Thread.sleep(waitTime);
+
+        // Check event counts
+        assert s.eventsDone();
+        assert Arrays.equals(s.getReceived(), messages);
+        assert Arrays.equals(s.getReceivedClientIDs(), new long[]{0, 1, 2, 3, 4});
+        assert Arrays.equals(s.getConnectClientIDs(), new long[]{0, 1, 2, 3, 4});
+        assert Arrays.equals(s.getDisconnectClientIDs(), new long[]{0, 1, 2, 3, 4});
+        for (int i = 0; i < numClients; i++) {
+            assert clients[i].eventsDone();
+            assert Arrays.equals(clients[i].getReceived(), new Object[]{messages[i].length()});
+        }
+    }
+
+    @Test
+    void TestHandshakeTimeout() throws JDTPException, IOException, InterruptedException {
+        // Create server
+        TestServer s = new TestServer(1, 1, 1);
+        s.setHandshakeTimeout(waitTime * 100);
+        s.start();
+        String serverHost = s.getHost();
+        int serverPort = s.getPort();
+        System.out.printf("Server address: %s:%d\n", serverHost, serverPort);
+        Thread.sleep(waitTime);
+
+        // Open a connection that never completes the key exchange
+        SocketChannel stalled = SocketChannel.open(new InetSocketAddress(serverHost, serverPort));
+        stalled.configureBlocking(false);
+        Thread.sleep(waitTime);
+
+        // Create client while the other key exchange is stalled
+        TestClient c = new TestClient(1, 0);
+        c.connect(serverHost, serverPort);
+        Thread.sleep(waitTime);
+
+        // Send messages
+        String serverMessage = "Hello, server!";
+        String clientMessage = "Hello, client #1!";
+        c.send(serverMessage);
+        s.send(1, clientMessage);
+        Thread.sleep(waitTime);
+
+        // Wait for the server to drop the stalled connection
+        ByteBuffer buffer = ByteBuffer.allocate(Util.readBufferSize);
+        long deadline = System.currentTimeMillis() + waitTime * 300;
+        int bytesReceived = 0;
+        while (bytesReceived >= 0 && System.currentTimeMillis() < deadline) {
+            buffer.clear();
+            bytesReceived = stalled.read(buffer);
+            Thread.sleep(10);
+        }
+        assert bytesReceived < 0;
+        stalled.close();
+
+        // Disconnect client
+        c.disconnect();
+        Thread.sleep(waitTime);
+
+        // Stop server
+        s.stop();
+        Thread.sleep(waitTime);
+
+        // Check for leaked buffers
+        assert s.outstandingBuffers() == 0;
+        assert c.outstandingBuffers() == 0;
+
+        // Check event counts
+        assert s.getReceiveCount() == 0;
+        assert s.getConnectCount() == 0;
+        assert s.getDisconnectCount() == 0;
+        assert s.eventsDone();
+        assert Arrays.equals(s.getReceived(), new Object[]{serverMessage});
+        assert Arrays.equals(s.getReceivedClientIDs(), new long[]{1});
+        assert Arrays.equals(s.getConnectClientIDs(), new long[]{1});
+        assert Arrays.equals(s.getDisconnectClientIDs(), new long[]{1});
+        assert c.getReceiveCount() == 0;
+        assert c.getDisconnectedCount() == 0;
+        assert c.eventsDone();
+        assert Arrays.equals(c.getReceived(), new Object[]{clientMessage});
+    }
+
+    @Test
+    void TestKeyPairModes() throws JDTPException, IOException, InterruptedException {
+        for (KeyPairMode keyPairMode : new KeyPairMode[]{KeyPairMode.LONG_LIVED, KeyPairMode.POOLED}) {
+            // Create server
+            TestServer s = new TestServer(2, 2, 2);
+            s.replyWithStringLength = true;
+            s.setKeyPairMode(keyPairMode);
+            try {
+                s.setKeyPairPoolSize(0);
+                assert false;
+            } catch (JDTPException e) {
+                // Expected
+            }
+            s.setKeyPairPoolSize(2);
+            s.start();
+            String serverHost = s.getHost();
+            int serverPort = s.getPort();
+            System.out.printf("Server address: %s:%d\n", serverHost, serverPort);
+            Thread.sleep(waitTime);
+
+            // Create clients
+            TestClient c1 = new TestClient(1, 0);
+            c1.connect(serverHost, serverPort);
+            TestClient c2 = new TestClient(1, 0);
+            c2.connect(serverHost, serverPort);
+            Thread.sleep(waitTime);
+
+            // Send messages
+            String messageFromClient1 = "Hello from client #1!";
+            String messageFromClient2 = "Goodbye from client #2!";
+            c1.send(messageFromClient1);
+            Thread.sleep(waitTime);
+            c2.send(messageFromClient2);
+            Thread.sleep(waitTime);
+
+            // Disconnect clients
+            c1.disconnect();
+            Thread.sleep(waitTime);
+            c2.disconnect();
+            Thread.sleep(waitTime);
+
+            // Stop server
+            s.stop();
+            Thread.sleep(waitTime);
+
+            // Check event counts
+            assert s.eventsDone();
+            assert Arrays.equals(s.getReceived(), new Object[]{messageFromClient1, messageFromClient2});
+            assert Arrays.equals(s.getConnectClientIDs(), new long[]{0, 1});
+            assert Arrays.equals(s.getDisconnectClientIDs(), new long[]{0, 1});
+            assert c1.eventsDone();
+            assert Arrays.equals(c1.getReceived(), new Object[]{messageFromClient1.length()});
+            assert c2.eventsDone();
+            assert Arrays.equals(c2.getReceived(), new Object[]{messageFromClient2.length()});
+        }
+    }
+
+    @Test
+    void TestClientDisconnected() throws JDTPException, IOException, InterruptedException {
+        // Create server
+        TestServer s = new TestServer(0, 1, 0);
+        assert !s.isServing();
+        s.start();
+        assert s.isServing();
+        String serverHost = s.getHost();
+        int serverPort = s.getPort();
+        System.out.printf("Server address: %s:%d\n", serverHost, serverPort);
+        Thread.sleep(waitTime);
+
+        // Create client
+        TestClient c = new TestClient(0, 1);
+        assert !c.isConnected();
+        c.connect(serverHost, serverPort);
+        assert c.isConnected();
+        Thread.sleep(waitTime);
+
+        // Stop server
+        assert s.isServing();
+        assert c.isConnected();
+        s.stop();
+        assert !s.isServing();
+        Thread.sleep(waitTime);
+        assert !c.isConnected();
+
+        // Check event counts
+        assert s.getReceiveCount() == 0;
+        assert s.getConnectCount() == 0;
         assert s.getDisconnectCount() == 0;
         assert s.eventsDone();
         assert Arrays.equals(s.getReceived(), new Object[]{});
@@ -542,6 +2296,145 @@ class JDTPTest {
         assert Arrays.equals(c.getReceived(), new Object[]{});
     }
 
+    @Test
+    void TestClientProtocolError() throws JDTPException, IOException, InterruptedException, NoSuchAlgorithmException {
+        // Create a server that performs the key exchange by hand, then sends data on a stream that is not open
+        ServerSocketChannel serverSock = ServerSocketChannel.open();
+        serverSock.bind(new InetSocketAddress("127.0.0.1", 0));
+        int serverPort = ((InetSocketAddress) serverSock.getLocalAddress()).getPort();
+        KeyPair keyPair = Crypto.newRSAKeys();
+        boolean[] clientClosed = {false};
+        Thread serverThread = new Thread(() -> {
+            try (SocketChannel sock = serverSock.accept()) {
+                byte[] publicKeySerialized = Util.serialize(keyPair.getPublic());
+                byte[] hello = new byte[Util.helloHeaderSize + publicKeySerialized.length];
+                System.arraycopy(publicKeySerialized, 0, hello, Util.helloHeaderSize, publicKeySerialized.length);
+                ByteBuffer helloMessage = ByteBuffer.wrap(Util.encodeMessage(hello));
+                while (helloMessage.hasRemaining()) {
+                    sock.write(helloMessage);
+                }
+
+                ByteBuffer sizeBuffer = ByteBuffer.allocate(Util.lenSize);
+                while (sizeBuffer.hasRemaining() && sock.read(sizeBuffer) >= 0) {
+                    // Keep reading
+                }
+                ByteBuffer clientHello = ByteBuffer.allocate((int) Util.decodeMessageSize(sizeBuffer.array()));
+                while (clientHello.hasRemaining() && sock.read(clientHello) >= 0) {
+                    // Keep reading
+                }
+                byte[] keyEncrypted = Arrays.copyOfRange(clientHello.array(), Util.helloHeaderSize,
+                        clientHello.capacity());
+                Key key = (Key) Util.deserialize(Crypto.rsaDecrypt(keyPair.getPrivate(), keyEncrypted));
+                CipherContext cipherContext = new CipherContext(key, Util.serverNoncePrefix, Util.clientNoncePrefix);
+
+                byte[] streamData = cipherContext.encrypt(Util.streamDataFrame,
+                        ByteBuffer.allocate(Util.streamIDSize + 1));
+                ByteBuffer streamDataMessage = ByteBuffer.wrap(Util.encodeMessage(streamData));
+                while (streamDataMessage.hasRemaining()) {
+                    sock.write(streamDataMessage);
+                }
+
+                clientClosed[0] = sock.read(ByteBuffer.allocate(1)) < 0;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        serverThread.start();
+
+        // Create client
+        TestClient c = new TestClient(0, 1);
+        c.connect("127.0.0.1", serverPort);
+        Thread.sleep(waitTime);
+
+        // Check that the client disconnected
+        serverThread.join(waitTime * 10);
+        serverSock.close();
+        assert clientClosed[0];
+        assert !c.isConnected();
+        assert c.eventsDone();
+        assert c.outstandingBuffers() == 0;
+    }
+
+    @Test
+    void TestMaxMessageSize() throws JDTPException, IOException, InterruptedException {
+        // Create server
+        TestServer s = new TestServer(1, 1, 1);
+        try {
+            s.setMaxMessageSize(0);
+            assert false;
+        } catch (JDTPException e) {
+            // Expected
+        }
+        s.setMaxMessageSize(1024);
+        s.setKeyPairMode(KeyPairMode.LONG_LIVED);
+        s.setHandshakeTimeout(waitTime * 600);
+        s.start();
+        TestClient c = new TestClient(0, 1);
+        try {
+            String serverHost = s.getHost();
+            int serverPort = s.getPort();
+            System.out.printf("Server address: %s:%d\n", serverHost, serverPort);
+            Thread.sleep(waitTime);
+
+            // Connect a socket that announces a message larger than is allowed during the key exchange
+            boolean[] socketClosed = {false};
+            Thread socketThread = new Thread(() -> {
+                try (SocketChannel sock = SocketChannel.open(new InetSocketAddress(serverHost, serverPort))) {
+                    ByteBuffer largeSize = ByteBuffer.wrap(Util.encodeMessageSize(Util.maxHandshakeMessageSize + 1));
+                    while (largeSize.hasRemaining()) {
+                        sock.write(largeSize);
+                    }
+
+                    ByteBuffer discard = ByteBuffer.allocate(Util.readBufferSize);
+                    while (sock.read(discard) >= 0) {
+                        discard.clear();
+                    }
+                    socketClosed[0] = true;
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            socketThread.start();
+            socketThread.join(waitTime * 10);
+            assert socketClosed[0];
+
+            // Connect client
+            c.connect(serverHost, serverPort);
+            Thread.sleep(waitTime);
+
+            // Send a message within the limit, then one beyond it
+            String smallMessage = "Hello, server!";
+            byte[] largeMessage = new byte[2048];
+            random.nextBytes(largeMessage);
+            c.send(smallMessage);
+            Thread.sleep(waitTime);
+            c.send(largeMessage);
+            Thread.sleep(waitTime);
+
+            // Check that the server disconnected the client
+            assert !c.isConnected();
+
+            // Stop server
+            s.stop();
+            Thread.sleep(waitTime);
+
+            // Check event counts
+            assert s.eventsDone();
+            assert Arrays.equals(s.getReceived(), new Object[]{smallMessage});
+            assert Arrays.equals(s.getConnectClientIDs(), new long[]{1});
+            assert Arrays.equals(s.getDisconnectClientIDs(), new long[]{1});
+            assert c.eventsDone();
+            assert c.outstandingBuffers() == 0;
+        } finally {
+            if (c.isConnected()) {
+                c.disconnect();
+            }
+            if (s.isServing()) {
+                s.stop();
+            }
+        }
+    }
+
     @Test
     void TestRemoveClient() throws JDTPException, IOException, InterruptedException {
         // Create server
@@ -573,6 +2466,10 @@ class JDTPTest {
         assert !s.isServing();
         Thread.sleep(waitTime);
 
+        // Check for leaked buffers
+        assert s.outstandingBuffers() == 0;
+        assert c.outstandingBuffers() == 0;
+
         // Check event counts
         assert s.getReceiveCount() == 0;
         assert s.getConnectCount() == 0;
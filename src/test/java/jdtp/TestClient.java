@@ -1,14 +1,23 @@
 package jdtp;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 
 class TestClient extends Client {
     private int receiveCount;
     private int disconnectedCount;
     private final ArrayList<Object> received = new ArrayList<>();
+    public Path receiveFileDirectory = null;
 
     TestClient(int receiveCount, int disconnectedCount) {
-        super();
+        this(new JavaSerializationCodec(), receiveCount, disconnectedCount);
+    }
+
+    TestClient(Codec codec, int receiveCount, int disconnectedCount) {
+        super(codec);
 
         this.receiveCount = receiveCount;
         this.disconnectedCount = disconnectedCount;
@@ -31,11 +40,29 @@ class TestClient extends Client {
     }
 
     @Override
-    protected void receive(Object data) {
+    protected synchronized void receive(Object data) {
         receiveCount -= 1;
         received.add(data);
     }
 
+    @Override
+    protected void receiveFile(String fileName, long size, InputStream data) {
+        if (receiveFileDirectory == null) {
+            super.receiveFile(fileName, size, data);
+            return;
+        }
+
+        Path target = receiveFileDirectory.resolve(fileName);
+
+        try (InputStream stream = data) {
+            Files.copy(stream, target);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        receive(target);
+    }
+
     @Override
     protected void disconnected() {
         disconnectedCount -= 1;
@@ -1,5 +1,9 @@
 package jdtp;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 
 class TestServer extends Server {
@@ -11,9 +15,15 @@ class TestServer extends Server {
     private final ArrayList<Long> connectClientIDs = new ArrayList<>();
     private final ArrayList<Long> disconnectClientIDs = new ArrayList<>();
     public boolean replyWithStringLength = false;
+    public Path receiveFileDirectory = null;
+    public boolean throwInReceive = false;
 
     TestServer(int receiveCount, int connectCount, int disconnectCount) {
-        super();
+        this(new JavaSerializationCodec(), receiveCount, connectCount, disconnectCount);
+    }
+
+    TestServer(Codec codec, int receiveCount, int connectCount, int disconnectCount) {
+        super(codec);
 
         this.receiveCount = receiveCount;
         this.connectCount = connectCount;
@@ -53,11 +63,15 @@ class TestServer extends Server {
     }
 
     @Override
-    protected void receive(long clientID, Object data) {
+    protected synchronized void receive(long clientID, Object data) {
         receiveCount -= 1;
         received.add(data);
         receivedClientIDs.add(clientID);
 
+        if (throwInReceive) {
+            throw new RuntimeException("receive failed");
+        }
+
         if (replyWithStringLength) {
             try {
                 send(clientID, ((String) data).length());
@@ -67,6 +81,24 @@ class TestServer extends Server {
         }
     }
 
+    @Override
+    protected void receiveFile(long clientID, String fileName, long size, InputStream data) {
+        if (receiveFileDirectory == null) {
+            super.receiveFile(clientID, fileName, size, data);
+            return;
+        }
+
+        Path target = receiveFileDirectory.resolve(fileName);
+
+        try (InputStream stream = data) {
+            Files.copy(stream, target);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        receive(clientID, target);
+    }
+
     @Override
     protected void connect(long clientID) {
         connectCount -= 1;